@@ -17,9 +17,11 @@
 }
 -keep class v.blade.sources.spotify.Spotify$SpotifyTokenResponse {*;}
 -keep class v.blade.sources.spotify.SpotifyService$* {*;}
+-keep class v.blade.sources.spotify.SpotifyPlaylistCache$* {*;}
 -keep class v.blade.sources.deezer.Deezer$DeezerTokenResponse {*;}
 -keep class v.blade.sources.deezer.Deezer$DeezerErrorObject {*;}
 -keep class v.blade.sources.deezer.DeezerService$* {*;}
+-keep class v.blade.sources.deezer.DeezerAlbumCache$* {*;}
 
 # The spotify librespot player needs an 'output class'
 # for it's audio output ; we need to keep that
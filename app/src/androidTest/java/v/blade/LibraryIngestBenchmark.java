@@ -0,0 +1,153 @@
+package v.blade;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.fragment.app.Fragment;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import v.blade.library.Library;
+import v.blade.library.Playlist;
+import v.blade.sources.Source;
+import v.blade.ui.ExploreFragment;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LibraryIngestBenchmark
+{
+    /*
+     * Three simulated sources feed 20k tracks each to Library, as during a synchronization ;
+     * catalogs overlap (half of each source tracks are also in the next source), so that
+     * sources merge on the same artists, albums and songs
+     * Measures ingest throughput depending on the number of threads feeding Library
+     */
+
+    private static final int SOURCE_COUNT = 3;
+    private static final int TRACKS_PER_SOURCE = 20_000;
+    private static final int ROUNDS = 3;
+
+    private static class BenchmarkSource extends Source
+    {
+        @Override
+        public int getImageResource()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean synchronizeLibrary()
+        {
+            return true;
+        }
+
+        @Override
+        public Fragment getSettingsFragment()
+        {
+            return null;
+        }
+
+        @Override
+        public JsonObject saveToJSON()
+        {
+            return null;
+        }
+
+        @Override
+        public void restoreFromJSON(JsonObject jsonObject)
+        {
+        }
+
+        @Override
+        public void explore(ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void exploreSearch(String query, ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void createPlaylist(String name, BladeApplication.Callback<Playlist> callback, Runnable failureCallback)
+        {
+        }
+    }
+
+    private static void feed(Source source, int sourceIndex)
+    {
+        String[] noImages = new String[1];
+        int first = sourceIndex * TRACKS_PER_SOURCE / 2;
+        for(int i = first; i < first + TRACKS_PER_SOURCE; i++)
+        {
+            String artist = "Artist " + (i % 1500);
+            String album = "Album " + (i / 12);
+            Library.addSong("Track " + i, album, new String[]{artist}, source, "id" + i,
+                    new String[]{artist}, null, i % 12 + 1, noImages, noImages, null, 1, 0);
+        }
+    }
+
+    private static long ingest(int threads, Source[] sources) throws Exception
+    {
+        Library.reset();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for(int i = 0; i < sources.length; i++)
+            {
+                final int sourceIndex = i;
+                futures.add(executor.submit(() -> feed(sources[sourceIndex], sourceIndex)));
+            }
+            for(Future<?> f : futures) f.get();
+            return System.nanoTime() - start;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ingestThroughputVersusThreads() throws Exception
+    {
+        Source[] sources = new Source[SOURCE_COUNT];
+        for(int i = 0; i < SOURCE_COUNT; i++) sources[i] = new BenchmarkSource();
+
+        //Warm up
+        ingest(SOURCE_COUNT, sources);
+
+        for(int threads = 1; threads <= SOURCE_COUNT; threads++)
+        {
+            long best = Long.MAX_VALUE;
+            for(int round = 0; round < ROUNDS; round++)
+                best = Math.min(best, ingest(threads, sources));
+
+            long tracksPerSecond = (long) SOURCE_COUNT * TRACKS_PER_SOURCE * 1_000_000_000L / best;
+            System.out.println("BLADE-BENCHMARK: Library ingest with " + threads + " thread(s) : "
+                    + (best / 1_000_000) + "ms, " + tracksPerSecond + " tracks/s");
+        }
+
+        Library.generateLists();
+        assertEquals(TRACKS_PER_SOURCE * (SOURCE_COUNT + 1) / 2, Library.getSongs().size());
+    }
+
+    @After
+    public void tearDown()
+    {
+        Library.reset();
+        Library.generateLists();
+    }
+}
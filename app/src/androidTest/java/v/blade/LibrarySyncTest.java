@@ -0,0 +1,128 @@
+package v.blade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.fragment.app.Fragment;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import v.blade.library.Library;
+import v.blade.library.Playlist;
+import v.blade.library.Song;
+import v.blade.sources.Source;
+import v.blade.ui.ExploreFragment;
+
+@RunWith(AndroidJUnit4.class)
+public class LibrarySyncTest
+{
+    private static class TestSource extends Source
+    {
+        @Override
+        public int getImageResource()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean synchronizeLibrary()
+        {
+            return true;
+        }
+
+        @Override
+        public Fragment getSettingsFragment()
+        {
+            return null;
+        }
+
+        @Override
+        public JsonObject saveToJSON()
+        {
+            return null;
+        }
+
+        @Override
+        public void restoreFromJSON(JsonObject jsonObject)
+        {
+        }
+
+        @Override
+        public void explore(ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void exploreSearch(String query, ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void createPlaylist(String name, BladeApplication.Callback<Playlist> callback, Runnable failureCallback)
+        {
+        }
+    }
+
+    private static Song add(Source source, String title)
+    {
+        String[] artist = new String[]{"Artist"};
+        return Library.addSong(title, "Album", artist, source, title, artist, null, 1,
+                null, null, null, 1, 0);
+    }
+
+    private static boolean inLibrary(String title)
+    {
+        for(Song s : Library.getSongs()) if(s.getName().equals(title)) return true;
+        return false;
+    }
+
+    @Test
+    public void syncPublishesSourcesWithoutPartialStates()
+    {
+        Source first = new TestSource();
+        Source second = new TestSource();
+
+        Library.reset();
+        Song kept = add(first, "Kept");
+        add(first, "Removed");
+        add(second, "Other");
+        Library.generateLists();
+
+        Library.beginSync(Arrays.asList(first, second));
+        add(first, "Kept");
+        add(first, "New");
+
+        //Nothing changes until first source publishes
+        assertEquals(3, Library.getSongs().size());
+        assertFalse(inLibrary("New"));
+
+        Library.publish(first);
+        assertTrue(inLibrary("New"));
+        assertFalse(inLibrary("Removed"));
+        //Second source did not publish yet : its songs are still there
+        assertTrue(inLibrary("Other"));
+        //Song in both old and new library is the same object
+        assertTrue(Library.getSongs().contains(kept));
+        assertSame(kept.getAlbum(), Library.getAlbums().get(0));
+
+        Library.publish(second);
+        assertFalse(inLibrary("Other"));
+        assertEquals(2, Library.getSongs().size());
+    }
+
+    @After
+    public void tearDown()
+    {
+        Library.reset();
+        Library.generateLists();
+    }
+}
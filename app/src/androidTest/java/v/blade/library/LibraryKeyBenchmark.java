@@ -0,0 +1,119 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LibraryKeyBenchmark
+{
+    /*
+     * Compares the 'old' library keys (lowercase String concatenation) with interned
+     * Names + LibraryKey, on a synthetic 60k tracks library ingested twice
+     * (as a library sync + cache reload would do), on device
+     */
+
+    private static final int TRACKS = 60000;
+    private static final int ROUNDS = 5;
+
+    private static String[][] generateTracks()
+    {
+        //~2000 artists, ~6000 albums : names repeat a lot, as in a real library
+        String[][] tracks = new String[TRACKS][];
+        for(int i = 0; i < TRACKS; i++)
+        {
+            String artist = "Artist Name " + (i % 2000);
+            String album = "Some Album Title " + (i % 6000);
+            String title = "Track Title Number " + i;
+            tracks[i] = new String[]{artist, album, title};
+        }
+        return tracks;
+    }
+
+    @Test
+    public void stringKeysAgainstLibraryKeys()
+    {
+        String[][] tracks = generateTracks();
+
+        //Warm up (JIT) both paths
+        for(int round = 0; round < 3; round++)
+        {
+            ingestWithStrings(tracks);
+            ingestWithKeys(tracks);
+        }
+
+        long stringTime = 0;
+        long keyTime = 0;
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            long start = System.nanoTime();
+            int stringSize = ingestWithStrings(tracks);
+            stringTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int keySize = ingestWithKeys(tracks);
+            keyTime += System.nanoTime() - start;
+
+            assertEquals(stringSize, keySize);
+        }
+
+        System.out.println("BLADE-BENCHMARK: Library keys (" + TRACKS + " tracks, " + ROUNDS + " rounds) : "
+                + "lowercase String keys " + (stringTime / ROUNDS / 1000) + "us/round, "
+                + "interned LibraryKey " + (keyTime / ROUNDS / 1000) + "us/round");
+    }
+
+    //Same lookups as old Library.addSong : artist, album and song maps, twice each (get + put)
+    private static int ingestWithStrings(String[][] tracks)
+    {
+        HashMap<String, Object> artists = new HashMap<>();
+        HashMap<String, Object> albums = new HashMap<>();
+        HashMap<String, Object> songs = new HashMap<>();
+
+        for(int pass = 0; pass < 2; pass++)
+        {
+            for(String[] track : tracks)
+            {
+                if(artists.get(track[0].toLowerCase()) == null)
+                    artists.put(track[0].toLowerCase(), track);
+                if(albums.get(track[0].toLowerCase() + ":" + track[1].toLowerCase()) == null)
+                    albums.put(track[0].toLowerCase() + ":" + track[1].toLowerCase(), track);
+                if(songs.get(track[0].toLowerCase() + ":" + track[1].toLowerCase() + ":" + track[2].toLowerCase()) == null)
+                    songs.put(track[0].toLowerCase() + ":" + track[1].toLowerCase() + ":" + track[2].toLowerCase(), track);
+            }
+        }
+        return artists.size() + albums.size() + songs.size();
+    }
+
+    //Same lookups with interned keys : second pass (cache reload, re-sync) does not allocate
+    private static int ingestWithKeys(String[][] tracks)
+    {
+        NameTable names = new NameTable();
+        LibraryKey probe = new LibraryKey();
+        HashMap<NameTable.Name, Object> artists = new HashMap<>();
+        HashMap<LibraryKey, Object> albums = new HashMap<>();
+        HashMap<LibraryKey, Object> songs = new HashMap<>();
+
+        for(int pass = 0; pass < 2; pass++)
+        {
+            for(String[] track : tracks)
+            {
+                NameTable.Name artist = names.get(track[0]);
+                NameTable.Name album = names.get(track[1]);
+                if(artists.get(artist) == null)
+                    artists.put(artist, track);
+                if(albums.get(probe.set(artist, album, null)) == null)
+                    albums.put(probe.copy(), track);
+                if(songs.get(probe.set(artist, album, names.get(track[2]))) == null)
+                    songs.put(probe.copy(), track);
+            }
+        }
+        return artists.size() + albums.size() + songs.size();
+    }
+}
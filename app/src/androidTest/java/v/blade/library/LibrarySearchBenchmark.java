@@ -0,0 +1,59 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertFalse;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LibrarySearchBenchmark
+{
+    /*
+     * Search as you type on a 50k songs index : measures the worst keystroke, which should fit
+     * in a frame (16ms at 60fps) on device
+     */
+
+    private static final int SONG_COUNT = 50_000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void searchAsYouTypeWorstKeystroke()
+    {
+        LibrarySearchIndex index = new LibrarySearchIndex();
+        Artist[] artists = new Artist[500];
+        for(int i = 0; i < artists.length; i++) artists[i] = new Artist("Artist " + i, null);
+        Album[] albums = new Album[5000];
+        for(int i = 0; i < albums.length; i++)
+            albums[i] = new Album("Album " + i, new Artist[]{artists[i % artists.length]}, null, null, 0);
+        String[] words = {"love", "night", "dance", "blue", "heart", "fire", "river", "dream", "light", "rain"};
+        for(int i = 0; i < SONG_COUNT; i++)
+        {
+            String title = words[i % words.length] + " " + words[(i / words.length) % words.length] + " " + i;
+            index.add(new Song(title, albums[i % albums.length], new Artist[]{artists[i % artists.length]}, 1));
+        }
+
+        String query = "dream light 4";
+        //Warm up (JIT)
+        for(int round = 0; round < 50; round++)
+            for(int i = 1; i <= query.length(); i++) index.search(query.substring(0, i), 100);
+
+        long worst = 0;
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            for(int i = 1; i <= query.length(); i++)
+            {
+                long start = System.nanoTime();
+                LibrarySearchIndex.Result result = index.search(query.substring(0, i), 100);
+                worst = Math.max(worst, System.nanoTime() - start);
+                assertFalse(result.songs.isEmpty());
+            }
+        }
+
+        System.out.println("BLADE-BENCHMARK: Search as you type (" + SONG_COUNT + " songs) : worst keystroke "
+                + (worst / 1000) + "us");
+    }
+}
@@ -23,17 +23,21 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatDelegate;
 import androidx.preference.PreferenceManager;
 
+import java.io.File;
+import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
 import v.blade.library.Library;
 import v.blade.player.MediaBrowserService;
 import v.blade.sources.Source;
@@ -45,14 +49,79 @@ public class BladeApplication extends Application
         public abstract void run(T arg0);
     }
 
-    private static final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(4, 4, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
-    private static final ExecutorService executorService = threadPoolExecutor;
+    /**
+     * Execution lanes : each lane has its own threads, at its own priority, and its own bounded queue,
+     * so that e.g. playing a song is never queued behind a library synchronization
+     */
+    public enum Lane
+    {
+        //Player commands (play, pause, seek), run in order
+        PLAYBACK(1, 16, Process.THREAD_PRIORITY_AUDIO, false),
+        //Requests user is waiting for (explore, search, library edits, login)
+        INTERACTIVE(3, 32, Process.THREAD_PRIORITY_DEFAULT, false),
+        //What user is looking at, superseded when user looks elsewhere (lyrics) : oldest requests are dropped
+        DISPLAY(1, 8, Process.THREAD_PRIORITY_DEFAULT, true),
+        //Library synchronization and loading
+        BACKGROUND(3, 64, Process.THREAD_PRIORITY_BACKGROUND, false),
+        //Saves (library, sources, queue), one at a time
+        PERSISTENCE(1, 64, Process.THREAD_PRIORITY_BACKGROUND, false);
+
+        private final LaneExecutor executor;
+
+        Lane(int threads, int capacity, int priority, boolean dropOldest)
+        {
+            this.executor = new LaneExecutor(name(), threads, capacity, priority, dropOldest);
+        }
+    }
+
+    /**
+     * Task categories, each running on its lane : tasks are timed by category, so that e.g. playing
+     * a song is not averaged with other player commands (see obtainExecutorReport)
+     */
+    public enum Category
+    {
+        PLAY_SONG(Lane.PLAYBACK),
+        PLAYER_COMMAND(Lane.PLAYBACK),
+        EXPLORE(Lane.INTERACTIVE),
+        LIBRARY_EDIT(Lane.INTERACTIVE),
+        LOGIN(Lane.INTERACTIVE),
+        PLAYER_RETRY(Lane.INTERACTIVE),
+        LYRICS(Lane.DISPLAY),
+        STARTUP(Lane.BACKGROUND),
+        LIBRARY_SYNC(Lane.BACKGROUND),
+        LIBRARY_SAVE(Lane.PERSISTENCE),
+        SOURCES_SAVE(Lane.PERSISTENCE),
+        QUEUE_SAVE(Lane.PERSISTENCE);
+
+        private final Lane lane;
+        private final LaneExecutor.Timings timings = new LaneExecutor.Timings();
+
+        Category(Lane lane)
+        {
+            this.lane = lane;
+        }
+    }
+
+    //HTTP responses disk cache, in app cache dir
+    private static final String HTTP_CACHE_DIR = "http";
+    private static final long HTTP_CACHE_SIZE = 32L * 1024 * 1024;
+    private static OkHttpClient httpClient;
+    private static final HashMap<String, Retrofit> retrofits = new HashMap<>();
     public static Context appContext;
     public static boolean shouldDisplayFirstLaunchDialog = false;
 
     @SuppressLint("StaticFieldLeak")
     public static Activity currentActivity = null;
 
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+
+        //App is in background (or about to be killed) : do not wait to write pending saves
+        if(level >= TRIM_MEMORY_UI_HIDDEN) Source.flushSources();
+    }
+
     @Override
     protected void attachBaseContext(Context base)
     {
@@ -83,9 +152,8 @@ public class BladeApplication extends Application
                 if(currentActivity == activity)
                     currentActivity = null;
 
-                // NOTE: This happens even when switching between Main/Play activities
-                // TODO: Maybe find a better place to save playlist ? (this will cost disk usage...)
-                // (it's not as bad as it seems, we have kernel cache...)
+                // NOTE: This happens even when switching between Main/Play activities ; queue songs are
+                // written only if they changed, else only index and position (see savePlaylist)
                 System.out.println("BLADE: onActivityPaused....");
                 if(MediaBrowserService.getInstance() != null)
                     MediaBrowserService.getInstance().savePlaylist();
@@ -130,7 +198,7 @@ public class BladeApplication extends Application
         appContext = base;
 
         //Load sources
-        executorService.execute(() ->
+        execute(Category.STARTUP, () ->
         {
             Source.loadSourcesFromSave();
             Source.initSources();
@@ -157,8 +225,63 @@ public class BladeApplication extends Application
         });
     }
 
-    public static ExecutorService obtainExecutorService()
+    public static ExecutorService obtainExecutorService(Lane lane)
     {
-        return executorService;
+        return lane.executor;
+    }
+
+    /**
+     * Runs task on the lane of its category, timed with the tasks of that category
+     */
+    public static void execute(Category category, Runnable task)
+    {
+        category.lane.executor.execute(category.timings, task);
+    }
+
+    /**
+     * @return text report of every lane : tasks and queue, then wait/run times percentiles since start
+     * of each category (and of tasks without category) ; then sources saves
+     */
+    public static String obtainExecutorReport()
+    {
+        StringBuilder report = new StringBuilder();
+        for(Lane lane : Lane.values())
+        {
+            lane.executor.report(report);
+            for(Category category : Category.values())
+                if(category.lane == lane) LaneExecutor.report(report, category.name(), category.timings);
+        }
+        Source.reportSaves(report);
+        return report.toString();
+    }
+
+    /**
+     * Application-wide HTTP client : every request shares its connection pool (and TLS sessions),
+     * and its disk cache, which stores cacheable responses and revalidates them (ETag, If-None-Match)
+     */
+    public static synchronized OkHttpClient obtainHttpClient()
+    {
+        if(httpClient == null)
+        {
+            httpClient = new OkHttpClient.Builder()
+                    .cache(new Cache(new File(appContext.getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_SIZE))
+                    .build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Retrofit instance for web API at baseUrl, using the application HTTP client
+     */
+    public static synchronized Retrofit obtainRetrofit(String baseUrl)
+    {
+        Retrofit retrofit = retrofits.get(baseUrl);
+        if(retrofit == null)
+        {
+            retrofit = new Retrofit.Builder().baseUrl(baseUrl).client(obtainHttpClient())
+                    .addConverterFactory(GsonConverterFactory.create()).build();
+            retrofits.put(baseUrl, retrofit);
+        }
+        return retrofit;
     }
 }
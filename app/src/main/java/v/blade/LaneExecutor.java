@@ -0,0 +1,227 @@
+package v.blade;
+
+import android.os.Process;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor of an execution lane (see BladeApplication.Lane) : fixed threads running at the lane priority,
+ * and a bounded queue
+ * A task changing its thread priority does not change it for the next tasks : lane priority is restored
+ * after each task
+ * When the queue is full, lanes whose tasks can be superseded (e.g. lyrics) drop their oldest task,
+ * cancelling it if it was submitted ; on other lanes the caller waits for room in the queue, so that
+ * the task is not lost and lane threads and order are kept
+ * <p>
+ * Tasks are timed : time waiting in queue (scheduling stalls) and running time (e.g. I/O stalls)
+ * are recorded in histograms of their category (see BladeApplication.Category), or of the lane for
+ * tasks without category (e.g. submitted futures), for the diagnostics report
+ */
+final class LaneExecutor extends ThreadPoolExecutor
+{
+    //Idle lane threads are stopped after that long
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final int priority;
+
+    //Timings of tasks without category
+    private final Timings timings = new Timings();
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    //Lane of current thread, if it is a lane thread
+    private static final ThreadLocal<LaneExecutor> currentLane = new ThreadLocal<>();
+
+    LaneExecutor(String name, int threads, int capacity, int priority, boolean dropOldest)
+    {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity),
+                new LaneThreadFactory(name, priority),
+                (task, executor) -> ((LaneExecutor) executor).reject(task, dropOldest));
+        this.name = name;
+        this.priority = priority;
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Wait and run times of tasks
+     */
+    static final class Timings
+    {
+        private final LatencyHistogram waitTimes = new LatencyHistogram();
+        private final LatencyHistogram runTimes = new LatencyHistogram();
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        if(task instanceof TimedTask) super.execute(task);
+        else execute(timings, task);
+    }
+
+    /**
+     * Runs task, timed in given timings
+     */
+    void execute(Timings timings, Runnable task)
+    {
+        tasks.incrementAndGet();
+        super.execute(new TimedTask(task, timings));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task)
+    {
+        super.beforeExecute(thread, task);
+        currentLane.set(this);
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable throwable)
+    {
+        super.afterExecute(task, throwable);
+        if(Process.getThreadPriority(Process.myTid()) != priority) Process.setThreadPriority(priority);
+    }
+
+    private void reject(Runnable task, boolean dropOldest)
+    {
+        if(isShutdown()) return;
+
+        if(dropOldest)
+        {
+            System.err.println("BLADE: " + name + " lane full, dropping oldest task");
+            Runnable oldest = getQueue().poll();
+            if(oldest != null)
+            {
+                dropped.incrementAndGet();
+                //Whoever waits for a submitted task should not wait forever
+                Runnable queued = oldest instanceof TimedTask ? ((TimedTask) oldest).task : oldest;
+                if(queued instanceof Future) ((Future<?>) queued).cancel(false);
+            }
+            execute(task);
+        }
+        else
+        {
+            blocked.incrementAndGet();
+            //A lane task waiting for room in its own lane could wait forever : task is run now, still on the lane
+            if(currentLane.get() == this)
+            {
+                System.err.println("BLADE: " + name + " lane full, running task in current lane task");
+                task.run();
+                return;
+            }
+
+            System.err.println("BLADE: " + name + " lane full, waiting for room");
+            try
+            {
+                getQueue().put(task);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in " + name + " lane");
+            }
+        }
+    }
+
+    /**
+     * Appends lane statistics to report : tasks, queue, then wait and run times percentiles of tasks
+     * without category
+     */
+    void report(StringBuilder report)
+    {
+        report.append(name).append(" : ").append(tasks.get()).append(" tasks, ")
+                .append(getActiveCount()).append(" running, ").append(getQueue().size()).append(" queued, ")
+                .append(dropped.get()).append(" dropped, ").append(blocked.get()).append(" blocked\n");
+        report(report, "OTHER", timings);
+    }
+
+    /**
+     * Appends wait and run times percentiles of a category to report, if it had tasks
+     */
+    static void report(StringBuilder report, String category, Timings timings)
+    {
+        if(timings.runTimes.getCount() == 0) return;
+
+        report.append("  ").append(category).append(" : ").append(timings.runTimes.getCount()).append(" tasks\n");
+        appendHistogram(report, "    wait", timings.waitTimes);
+        appendHistogram(report, "    run ", timings.runTimes);
+    }
+
+    private static void appendHistogram(StringBuilder report, String label, LatencyHistogram histogram)
+    {
+        report.append(label)
+                .append(" p50 ").append(formatMicros(histogram.getPercentile(50)))
+                .append(" p95 ").append(formatMicros(histogram.getPercentile(95)))
+                .append(" p99 ").append(formatMicros(histogram.getPercentile(99)))
+                .append(" max ").append(formatMicros(histogram.getMax())).append('\n');
+    }
+
+    private static String formatMicros(long micros)
+    {
+        if(micros < 1000) return micros + "us";
+        if(micros < 1_000_000) return String.format(Locale.ROOT, "%.1fms", micros / 1000.0);
+        return String.format(Locale.ROOT, "%.2fs", micros / 1_000_000.0);
+    }
+
+    /*
+     * Task with its queueing time
+     */
+    private static final class TimedTask implements Runnable
+    {
+        private final Runnable task;
+        private final Timings timings;
+        private final long queuedAt = System.nanoTime();
+
+        TimedTask(Runnable task, Timings timings)
+        {
+            this.task = task;
+            this.timings = timings;
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            timings.waitTimes.record(start - queuedAt, TimeUnit.NANOSECONDS);
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                timings.runTimes.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static final class LaneThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        LaneThreadFactory(String name, int priority)
+        {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            return new Thread(() ->
+            {
+                Process.setThreadPriority(priority);
+                runnable.run();
+            }, "BLADE-" + name + "-" + count.incrementAndGet());
+        }
+    }
+}
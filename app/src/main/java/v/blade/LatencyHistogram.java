@@ -0,0 +1,92 @@
+package v.blade;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, with buckets of constant relative precision (as HdrHistogram does) :
+ * durations are counted in microseconds, with 16 linear sub-buckets per power of two, so that
+ * percentiles are within 1/16 of the recorded values, from microseconds to hours, in a few KB
+ * Recording is lock-free, it can be done from any thread
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Durations above 2^MAX_EXPONENT microseconds (about 12 days) are counted as that
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit)
+    {
+        long micros = Math.max(0, Math.min(MAX_VALUE, unit.toMicros(duration)));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+
+        long previous;
+        while(micros > (previous = max.get()))
+            if(max.compareAndSet(previous, micros)) break;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return longest recorded duration, in microseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return duration (in microseconds) that percentile (0 to 100) of recorded durations do not exceed,
+     * or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long total = count.get();
+        if(total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /*
+     * Durations below SUB_BUCKETS have a bucket each ; above, each power of two is split in SUB_BUCKETS
+     */
+    static int bucket(long micros)
+    {
+        if(micros < SUB_BUCKETS) return (int) micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /*
+     * @return highest duration counted in bucket
+     */
+    static long highestValue(int bucket)
+    {
+        if(bucket < SUB_BUCKETS) return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -22,9 +22,10 @@ public class Album extends LibraryObject
         setImage(imageMiniature, imageBig, imageLevel);
     }
 
-    protected void addSong(Song s)
+    protected synchronized void addSong(Song s)
     {
-        this.songList.add(s);
+        //Keep songs sorted by track number
+        SortedLists.insertInPlace(this.songList, s, SortedLists.BY_TRACK_NUMBER);
     }
 
     public Artist[] getArtists()
@@ -48,12 +49,22 @@ public class Album extends LibraryObject
         return songList;
     }
 
+    /**
+     * @return total duration of album songs, in milliseconds (songs of unknown duration count for 0)
+     */
+    public synchronized long getDuration()
+    {
+        long duration = 0;
+        for(Song s : songList) duration += s.duration;
+        return duration;
+    }
+
     public String getImageBigStr()
     {
         return imageBigStr;
     }
 
-    public void setImage(String imageMiniature, String imageBig, int imageLevel)
+    public synchronized void setImage(String imageMiniature, String imageBig, int imageLevel)
     {
         if(this.imageLevel > imageLevel) return;
 
@@ -3,25 +3,54 @@ package v.blade.library;
 import com.squareup.picasso.Picasso;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 public class Artist extends LibraryObject
 {
     List<Album> albums;
+    //Same albums, for constant time linking (prolific artists are featured on lots of albums)
+    private HashSet<Album> albumSet;
     int track_count;
 
     public Artist(String name, String image)
     {
         this.albums = new ArrayList<>();
+        this.albumSet = new HashSet<>();
         this.name = name;
         this.imageRequest = (image == null || image.equals("")) ? null : Picasso.get().load(image);
         this.imageStr = image;
         this.track_count = 0;
     }
 
-    protected void addAlbum(Album album)
+    protected synchronized void addAlbum(Album album)
     {
         this.albums.add(album);
+        this.albumSet.add(album);
+    }
+
+    /*
+     * Artists are shared by concurrent ingest : modifications are done holding artist lock
+     */
+    synchronized void addAlbumIfAbsent(Album album)
+    {
+        if(this.albumSet.add(album)) this.albums.add(album);
+    }
+
+    synchronized void removeAlbum(Album album)
+    {
+        if(this.albumSet.remove(album)) this.albums.remove(album);
+    }
+
+    synchronized void setAlbums(List<Album> albums)
+    {
+        this.albums = albums;
+        this.albumSet = new HashSet<>(albums);
+    }
+
+    synchronized void addTrack()
+    {
+        this.track_count++;
     }
 
     public int getTrackCount()
@@ -0,0 +1,115 @@
+package v.blade.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import v.blade.sources.Source;
+
+/**
+ * Batched ingest of a source library, opened once per synchronization (see Library.openIngestSession)
+ * Settings are read once, library maps are pre-sized from the expected track count, and tracks
+ * are added page by page : sources add the tracks of a page, then flush it
+ * Outside of a synchronization, sessions apply source changes to library (e.g. observed MediaStore
+ * changes) : sorted lists and search index are rebuilt once, when the session is closed
+ */
+public final class IngestSession implements AutoCloseable
+{
+    final Source source;
+    final boolean showAlbumArtistOnly;
+    private final ArrayList<Track> page = new ArrayList<>();
+    private final ArrayList<Song> removed = new ArrayList<>();
+    //Songs modified at source, by source id
+    private final HashMap<Object, Song> updated = new HashMap<>();
+    //Tracks were ingested into live content (not into a staging content)
+    private boolean live = false;
+
+    static final class Track
+    {
+        String title;
+        String album;
+        String[] artists;
+        String[] artistsImages;
+        Object sourceId;
+        String[] albumArtists;
+        String[] albumArtistsImages;
+        String albumMiniatureURL;
+        String albumImageURL;
+        int trackNumber;
+        int imageLevel;
+        int duration;
+    }
+
+    IngestSession(Source source, boolean showAlbumArtistOnly)
+    {
+        this.source = source;
+        this.showAlbumArtistOnly = showAlbumArtistOnly;
+    }
+
+    /**
+     * Announces that count tracks are going to be added (e.g. 'total' of first page)
+     */
+    public void expectTracks(int count)
+    {
+        if(count > 0) Library.expectSongs(source, count);
+    }
+
+    /**
+     * Adds a track to current page ; it is added to library on flush
+     * Artists images arrays can be null, if source does not provide them ; duration is in milliseconds (0 if unknown)
+     */
+    public void addTrack(String title, String album, String[] artists, String[] artistsImages, Object sourceId,
+                         String[] albumArtists, String[] albumArtistsImages, String albumMiniatureURL,
+                         String albumImageURL, int trackNumber, int imageLevel, int duration)
+    {
+        Track track = new Track();
+        track.title = title;
+        track.album = album;
+        track.artists = artists;
+        track.artistsImages = artistsImages;
+        track.sourceId = sourceId;
+        track.albumArtists = albumArtists;
+        track.albumArtistsImages = albumArtistsImages;
+        track.albumMiniatureURL = albumMiniatureURL;
+        track.albumImageURL = albumImageURL;
+        track.trackNumber = trackNumber;
+        track.imageLevel = imageLevel;
+        track.duration = duration;
+        page.add(track);
+    }
+
+    /**
+     * Removes song from what source has in library (source does not have it anymore) ; it is
+     * removed on flush, before the tracks of current page
+     */
+    public void removeSong(Song song)
+    {
+        removed.add(song);
+    }
+
+    /**
+     * Song was modified at source : the track added with the same source id gives it its new state,
+     * on flush, keeping the song object (e.g. in play queue, or playlists)
+     */
+    public void updateSong(Song song, Object sourceId)
+    {
+        updated.put(sourceId, song);
+    }
+
+    /**
+     * Adds current page tracks to library
+     */
+    public void flush()
+    {
+        if(page.isEmpty() && removed.isEmpty()) return;
+        if(Library.ingest(this, removed, updated, page)) live = true;
+        removed.clear();
+        page.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
+        if(live) Library.generateLists();
+    }
+}
@@ -1,25 +1,36 @@
 package v.blade.library;
 
-import androidx.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import androidx.preference.PreferenceManager;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import v.blade.BladeApplication;
 import v.blade.R;
@@ -29,80 +40,367 @@ import v.blade.ui.LibraryFragment;
 
 public class Library
 {
+    private static final String LIBRARY_SNAPSHOT_FILE = "/library.bin";
+    private static final String LIBRARY_JOURNAL_FILE = "/library.journal";
+    //Journal size after which it is merged into a new snapshot
+    private static final long JOURNAL_COMPACTION_THRESHOLD = 256 * 1024;
+    //Old JSON library cache : only read, to migrate to snapshot
     private static final String LIBRARY_FILE = "/library.json";
     private static final int LIBRARY_CACHE_VERSION = 1;
+    //Maximum search results for each object type
+    private static final int SEARCH_LIMIT = 100;
+    //Estimates used to pre-size albums and artists maps from expected song count
+    private static final int EXPECTED_SONGS_PER_ALBUM = 8;
+    private static final int EXPECTED_SONGS_PER_ARTIST = 16;
 
     /*
      * In order to update the library, we need to add 'objects' from every source
      * For that, we have to find when the names are the same -> same object
      * HashMaps allows that in constant time, much better than O(n) on a list
-     * However, in the end we will need a list ; see below the sorted lists, generated
+     * However, in the end we will need a list ; see the sorted lists of LibraryContent, generated
      * at the end of library modification
+     * Keys are interned case-folded names (see NameTable, LibraryKey), so that we don't
+     * have to build lowercase Strings on every lookup
+     */
+    private static NameTable names = new NameTable();
+    //Published library content : readers (UI, search, media browser) only read it, without locking
+    private static volatile LibraryContent live = new LibraryContent();
+
+    /*
+     * A synchronization does not modify live content : each source ingests into its own staging
+     * content, and when a source is done, a new content is merged from the staging contents of done
+     * sources and the live content of the others, then published with a single swap (see beginSync, publish)
      */
-    private static HashMap<String, Artist> library_artists = new HashMap<>();
-    private static HashMap<String, Album> library_albums = new HashMap<>();
-    private static HashMap<String, Song> library_songs = new HashMap<>();
-    private static ArrayList<Playlist> library_playlists = new ArrayList<>();
+    private static HashMap<Source, LibraryContent> staging = null;
+    private static HashSet<Source> published = null;
+
+    //Search indexes of contents are accessed holding searchLock
+    private static final Object searchLock = new Object();
 
     /*
-     * 'Handled' : handles are 'objects' that are not in the library, but that we need in RAM
-     * For example, songs inside of playlists that are not in the library, or when
-     * doing a web search
+     * Ingest (addSong, addSongHandle) is done concurrently by sources, holding the read lock :
+     * maps are concurrent, and shared objects (artists, albums, songs) lock themselves when modified
+     * Other library modifications hold the write lock
      */
-    private static HashMap<String, Artist> handled_artists = new HashMap<>();
-    private static HashMap<String, Album> handled_albums = new HashMap<>();
-    private static HashMap<String, Song> handled_songs = new HashMap<>();
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Lookup key, re-used for every lookup of current thread
+    private static final ThreadLocal<LibraryKey> probe = new ThreadLocal<LibraryKey>()
+    {
+        @Override
+        protected LibraryKey initialValue()
+        {
+            return new LibraryKey();
+        }
+    };
 
-    /* Those are *sorted* lists, generated by sorting the content of HashMaps */
-    private static ArrayList<Artist> artists_list = new ArrayList<>();
-    private static ArrayList<Album> albums_list = new ArrayList<>();
-    private static ArrayList<Song> songs_list = new ArrayList<>();
+    /*
+     * User edits are appended to journal instead of re-writing the snapshot ; null until
+     * the library is loaded, so that replayed edits are not recorded again
+     */
+    private static LibraryJournal journal;
+    private static boolean compactionScheduled = false;
+    //Saves are written one at a time (compaction, end of synchronization)
+    private static final Object saveLock = new Object();
+    //Counted down once library is loaded from cache, for what needs library songs (e.g. play queue restore)
+    private static final CountDownLatch cacheLoaded = new CountDownLatch(1);
 
     public static List<Artist> getArtists()
     {
-        return artists_list;
+        return live.artists_list;
     }
 
     public static List<Album> getAlbums()
     {
-        return albums_list;
+        return live.albums_list;
     }
 
     public static List<Song> getSongs()
     {
-        return songs_list;
+        return live.songs_list;
     }
 
     public static List<Playlist> getPlaylists()
     {
-        return library_playlists;
+        return live.library_playlists;
+    }
+
+    private static LibraryKey albumKey(String albumArtist, String album)
+    {
+        return probe.get().set(names.get(albumArtist == null ? "null" : albumArtist), names.get(album), null);
+    }
+
+    private static LibraryKey songKey(String artist, String album, String title)
+    {
+        return probe.get().set(names.get(artist), names.get(album), names.get(title));
+    }
+
+    private static LibraryKey songKey(Song song)
+    {
+        return songKey(song.getArtists()[0].getName(), song.getAlbum().getName(), song.getName());
+    }
+
+    /*
+     * Inserts value if key is absent ; returns the value in map (ours, or the one
+     * inserted concurrently by another thread)
+     */
+    private static <K, V> V putIfAbsent(ConcurrentHashMap<K, V> map, K key, V value)
+    {
+        V previous = map.putIfAbsent(key, value);
+        return previous == null ? value : previous;
+    }
+
+    /*
+     * Staging contents are indexed when they are published : only live content is indexed on edits
+     */
+    private static void index(LibraryContent c, LibraryObject object)
+    {
+        if(c != live) return;
+        synchronized(searchLock)
+        {
+            c.searchIndex.add(object);
+        }
+    }
+
+    private static void unindex(LibraryContent c, LibraryObject object)
+    {
+        if(c != live) return;
+        synchronized(searchLock)
+        {
+            c.searchIndex.remove(object);
+        }
+    }
+
+    /*
+     * Content a source ingests into : its staging content while it is synchronizing, live content otherwise
+     * Caller holds the lock
+     */
+    private static LibraryContent target(Source source)
+    {
+        if(staging == null || published.contains(source)) return live;
+        LibraryContent c = staging.get(source);
+        return c == null ? live : c;
+    }
+
+    /**
+     * Adds song to library (or to what source is synchronizing) ; duration is in milliseconds, 0 if unknown
+     */
+    public static Song addSong(String title, String album, String[] artists, Source source, Object sourceId,
+                               String[] albumArtists, String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
+                               String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel, int duration)
+    {
+        boolean showAlbumArtistOnly = showAlbumArtistOnly();
+        lock.readLock().lock();
+        try
+        {
+            Song s = ingest(target(source), title, album, artists, albumArtists, albumMiniatureURL, track_number,
+                    artistMiniaturesUrl, albumArtistsMiniatureUrl, albumImageURL, albumImageLevel, showAlbumArtistOnly);
+            s.setDuration(duration);
+            s.addSource(source, sourceId, false);
+            return s;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens a batched ingest session, for the synchronization of source library
+     */
+    public static IngestSession openIngestSession(Source source)
+    {
+        return new IngestSession(source, showAlbumArtistOnly());
+    }
+
+    private static boolean showAlbumArtistOnly()
+    {
+        return PreferenceManager.getDefaultSharedPreferences(BladeApplication.appContext).getBoolean("show_album_artist_only", true);
+    }
+
+    /*
+     * Adds a page of tracks of an ingest session, holding the read lock once for the whole page ;
+     * removed songs of the session are removed first, and updated songs take the state of their tracks
+     * @return true if session changed live content, which sorted lists and search index are then out of date
+     */
+    static boolean ingest(IngestSession session, List<Song> removed, Map<Object, Song> updated,
+                          List<IngestSession.Track> tracks)
+    {
+        if(!removed.isEmpty()) removeSourceSongs(session.source, removed);
+        if(!updated.isEmpty()) tracks = updateSourceSongs(session, updated, tracks);
+
+        lock.readLock().lock();
+        try
+        {
+            LibraryContent c = target(session.source);
+            for(IngestSession.Track t : tracks)
+            {
+                Song s = ingest(c, t.title, t.album, t.artists, t.albumArtists, t.albumMiniatureURL, t.trackNumber,
+                        t.artistsImages, t.albumArtistsImages, t.albumImageURL, t.imageLevel, session.showAlbumArtistOnly);
+                s.setDuration(t.duration);
+                s.addSource(session.source, t.sourceId, false);
+            }
+            return c == live;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Removes songs from what source has in library : a song leaves library, unless another source has it
+     * This is not a user edit : it is not journaled, and sorted lists and search index are left to the
+     * rebuild at the end of the ingest session
+     */
+    private static void removeSourceSongs(Source source, List<Song> songs)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            for(Song song : songs)
+            {
+                boolean inLibrary = false;
+                for(SourceInformation si : song.getSources())
+                {
+                    if(si.source == source) si.handled = true;
+                    else if(!si.handled) inLibrary = true;
+                }
+                if(!inLibrary && c.library_songs.get(songKey(song)) == song) removeSong(c, song, false);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Gives songs modified at source the state of their track (same source id), keeping song objects :
+     * song leaves album and artists it had, and goes where its track is
+     * A song that other sources also have keeps its state : source leaves it, and its track is added
+     * as another song. Like removeSourceSongs, this is not a user edit
+     * @return tracks that are not updates, to be added
+     */
+    private static List<IngestSession.Track> updateSourceSongs(IngestSession session, Map<Object, Song> updated,
+                                                               List<IngestSession.Track> tracks)
+    {
+        ArrayList<IngestSession.Track> added = new ArrayList<>(tracks.size());
+        ArrayList<Song> left = new ArrayList<>();
+        lock.writeLock().lock();
+        try
+        {
+            LibraryContent c = target(session.source);
+            for(IngestSession.Track t : tracks)
+            {
+                Song song = updated.remove(t.sourceId);
+                if(song == null || c.library_songs.get(songKey(song)) != song)
+                {
+                    added.add(t);
+                    continue;
+                }
+                if(song.getSources().size() > 1)
+                {
+                    left.add(song);
+                    added.add(t);
+                    continue;
+                }
+
+                removeSong(c, song, false);
+                Song s = ingest(c, t.title, t.album, t.artists, t.albumArtists, t.albumMiniatureURL, t.trackNumber,
+                        t.artistsImages, t.albumArtistsImages, t.albumImageURL, t.imageLevel, session.showAlbumArtistOnly,
+                        song, t.duration);
+                //Library already had a song where the track goes
+                if(s != song)
+                {
+                    s.setDuration(t.duration);
+                    s.addSource(session.source, t.sourceId, false);
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        if(!left.isEmpty()) removeSourceSongs(session.source, left);
+        return added;
+    }
+
+    /*
+     * Ingest sessions announce the number of tracks they expect : maps are re-created with the
+     * needed capacity once, instead of growing by successive rehashes during ingest
+     */
+    static void expectSongs(Source source, int count)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            c.expectedSongs += count;
+            c.library_songs = presized(c.library_songs, c.expectedSongs);
+            c.library_albums = presized(c.library_albums, c.expectedSongs / EXPECTED_SONGS_PER_ALBUM);
+            c.library_artists = presized(c.library_artists, c.expectedSongs / EXPECTED_SONGS_PER_ARTIST);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static <K, V> ConcurrentHashMap<K, V> presized(ConcurrentHashMap<K, V> map, int capacity)
+    {
+        if(map.size() >= capacity) return map;
+        ConcurrentHashMap<K, V> presized = new ConcurrentHashMap<>(capacity);
+        presized.putAll(map);
+        return presized;
+    }
+
+    /*
+     * Adds song to library content (without source, added by caller) ; artist images can be null (no images)
+     * Caller holds the lock
+     */
+    private static Song ingest(LibraryContent c, String title, String album, String[] artists, String[] albumArtists,
+                               String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
+                               String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel,
+                               boolean showAlbumArtistOnly)
+    {
+        return ingest(c, title, album, artists, albumArtists, albumMiniatureURL, track_number, artistMiniaturesUrl,
+                albumArtistsMiniatureUrl, albumImageURL, albumImageLevel, showAlbumArtistOnly, null, 0);
     }
 
-    public static synchronized Song addSong(String title, String album, String[] artists, Source source, Object sourceId,
-                                            String[] albumArtists, String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
-                                            String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel)
+    /*
+     * Same, with the song object to use if library does not have the song yet (a song that left
+     * library content, see updateSourceSongs), else null
+     */
+    private static Song ingest(LibraryContent c, String title, String album, String[] artists, String[] albumArtists,
+                               String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
+                               String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel,
+                               boolean showAlbumArtistOnly, Song existing, int duration)
     {
         /* obtain song artists and album artists */
         Artist[] sartists = new Artist[artists.length];
         for(int i = 0; i < sartists.length; i++)
         {
-            Artist current = library_artists.get(artists[i].toLowerCase());
+            NameTable.Name artistName = names.get(artists[i]);
+            Artist current = c.library_artists.get(artistName);
 
             if(current == null)
             {
-                current = handled_artists.get(artists[i].toLowerCase());
+                current = c.handled_artists.get(artistName);
 
                 if(current == null)
                 {
-                    current = new Artist(artists[i], artistMiniaturesUrl[i]);
+                    current = new Artist(artists[i], artistMiniaturesUrl == null ? null : artistMiniaturesUrl[i]);
 
-                    if(PreferenceManager.getDefaultSharedPreferences(BladeApplication.appContext).getBoolean("show_album_artist_only", true))
-                        handled_artists.put(current.name.toLowerCase(), current);
+                    if(showAlbumArtistOnly)
+                        current = putIfAbsent(c.handled_artists, artistName, current);
                     else
-                        library_artists.put(current.name.toLowerCase(), current);
+                        current = putIfAbsent(c.library_artists, artistName, current);
                 }
-                else if(PreferenceManager.getDefaultSharedPreferences(BladeApplication.appContext).getBoolean("show_album_artist_only", true))
-                    library_artists.put(current.name.toLowerCase(), current);
+                else if(showAlbumArtistOnly)
+                    current = putIfAbsent(c.library_artists, artistName, current);
             }
 
             sartists[i] = current;
@@ -111,26 +409,26 @@ public class Library
         Artist[] saartists = new Artist[albumArtists.length];
         for(int i = 0; i < saartists.length; i++)
         {
-            Artist current = library_artists.get(albumArtists[i].toLowerCase());
+            NameTable.Name artistName = names.get(albumArtists[i]);
+            Artist current = c.library_artists.get(artistName);
 
             if(current == null)
-            {
-                current = new Artist(albumArtists[i], albumArtistsMiniatureUrl[i]);
-                library_artists.put(current.name.toLowerCase(), current);
-            }
+                current = putIfAbsent(c.library_artists, artistName, new Artist(albumArtists[i], albumArtistsMiniatureUrl == null ? null : albumArtistsMiniatureUrl[i]));
 
             saartists[i] = current;
         }
 
         /* obtain song album */
-        //noinspection ConstantConditions
-        Album salbum = library_albums.get(((albumArtists == null || albumArtists[0] == null) ? "null" : albumArtists[0].toLowerCase()) + ":" + album.toLowerCase());
+        LibraryKey key = albumKey((albumArtists == null || albumArtists.length == 0) ? null : albumArtists[0], album);
+        Album salbum = c.library_albums.get(key);
         if(salbum == null)
         {
-            salbum = new Album(album, saartists, albumMiniatureURL, albumImageURL, albumImageLevel);
-            //noinspection ConstantConditions
-            library_albums.put(((albumArtists == null || albumArtists[0] == null) ? "null" : albumArtists[0].toLowerCase()) + ":" + album.toLowerCase(), salbum);
-            for(Artist a : saartists) a.addAlbum(salbum);
+            Album created = new Album(album, saartists, albumMiniatureURL, albumImageURL, albumImageLevel);
+            salbum = putIfAbsent(c.library_albums, key.copy(), created);
+            if(salbum == created)
+                for(Artist a : saartists) a.addAlbumIfAbsent(salbum);
+            else
+                salbum.setImage(albumMiniatureURL, albumImageURL, albumImageLevel);
         }
         else
         {
@@ -138,64 +436,84 @@ public class Library
             salbum.setImage(albumMiniatureURL, albumImageURL, albumImageLevel);
         }
         for(Artist a : sartists)
-            if(!a.albums.contains(salbum))
-                a.addAlbum(salbum); //NOTE: this adds albums to artists even if only a featuring
+            a.addAlbumIfAbsent(salbum); //NOTE: this adds albums to artists even if only a featuring
 
         /* obtain song */
-        Song s = library_songs.get(artists[0].toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase());
+        key = songKey(artists[0], album, title);
+        Song s = c.library_songs.get(key);
         if(s == null)
         {
-            s = new Song(title, salbum, sartists, track_number);
-            library_songs.put(artists[0].toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase(), s);
-            for(Artist a : sartists) a.track_count++;
-            for(Artist a : saartists)
+            Song created;
+            if(existing == null) created = new Song(title, salbum, sartists, track_number);
+            else
             {
-                boolean found = false;
-                for(Artist already : sartists)
+                existing.update(title, salbum, sartists, track_number, duration);
+                created = existing;
+            }
+            s = putIfAbsent(c.library_songs, key.copy(), created);
+            if(s == created)
+            {
+                for(Artist a : sartists) a.addTrack();
+                for(Artist a : saartists)
                 {
-                    if(already == a)
+                    boolean found = false;
+                    for(Artist already : sartists)
                     {
-                        found = true;
-                        break;
+                        if(already == a)
+                        {
+                            found = true;
+                            break;
+                        }
                     }
+                    if(!found) a.addTrack();
                 }
-                if(!found) a.track_count++;
+                salbum.addSong(s);
             }
-            salbum.addSong(s);
         }
 
-        /* update song source information */
-        boolean alreadyContainsSource = false;
-        for(SourceInformation si : s.getSources())
+        return s;
+    }
+
+    public static Song addSongHandle(String title, String album, String[] artists, Source source, Object sourceId,
+                                     String[] albumArtists, String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
+                                     String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel, int duration)
+    {
+        lock.readLock().lock();
+        try
         {
-            if(si.source == source)
-            {
-                alreadyContainsSource = true;
-                break;
-            }
-        }
-        if(!alreadyContainsSource)
-            s.addSource(source, sourceId, false);
+            Song s = ingestHandle(target(source), title, album, artists, albumArtists, albumMiniatureURL, track_number,
+                    artistMiniaturesUrl, albumArtistsMiniatureUrl, albumImageURL, albumImageLevel);
+            s.setDuration(duration);
 
-        return s;
+            /* update song source information */
+            s.addSource(source, sourceId, true);
+
+            return s;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
-    public static synchronized Song addSongHandle(String title, String album, String[] artists, Source source, Object sourceId,
-                                                  String[] albumArtists, String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
-                                                  String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel)
+    /*
+     * Obtains song from library content, or adds it as a handle (without source, added by caller)
+     * Caller holds the lock
+     */
+    private static Song ingestHandle(LibraryContent c, String title, String album, String[] artists, String[] albumArtists,
+                                     String albumMiniatureURL, int track_number, String[] artistMiniaturesUrl,
+                                     String[] albumArtistsMiniatureUrl, String albumImageURL, int albumImageLevel)
     {
         /* obtain song artists and album artists */
         Artist[] sartists = new Artist[artists.length];
         for(int i = 0; i < sartists.length; i++)
         {
-            Artist current = library_artists.get(artists[i].toLowerCase());
-            if(current == null) current = handled_artists.get(artists[i].toLowerCase());
+            NameTable.Name artistName = names.get(artists[i]);
+            Artist current = c.library_artists.get(artistName);
+            if(current == null) current = c.handled_artists.get(artistName);
 
             if(current == null)
-            {
-                current = new Artist(artists[i], artistMiniaturesUrl[i]);
-                handled_artists.put(current.name.toLowerCase(), current);
-            }
+                current = putIfAbsent(c.handled_artists, artistName, new Artist(artists[i], artistMiniaturesUrl == null ? null : artistMiniaturesUrl[i]));
 
             sartists[i] = current;
         }
@@ -203,75 +521,83 @@ public class Library
         Artist[] saartists = new Artist[albumArtists.length];
         for(int i = 0; i < saartists.length; i++)
         {
-            Artist current = library_artists.get(albumArtists[i].toLowerCase());
+            NameTable.Name artistName = names.get(albumArtists[i]);
+            Artist current = c.library_artists.get(artistName);
 
-            if(current == null) current = handled_artists.get(albumArtists[i].toLowerCase());
+            if(current == null) current = c.handled_artists.get(artistName);
 
             if(current == null)
-            {
-                current = new Artist(albumArtists[i], albumArtistsMiniatureUrl[i]);
-                handled_artists.put(current.name.toLowerCase(), current);
-            }
+                current = putIfAbsent(c.handled_artists, artistName, new Artist(albumArtists[i], albumArtistsMiniatureUrl == null ? null : albumArtistsMiniatureUrl[i]));
 
             saartists[i] = current;
         }
 
         /* obtain song album */
-        //noinspection ConstantConditions
-        Album salbum = library_albums.get(((albumArtists == null || albumArtists[0] == null) ? "null" : albumArtists[0].toLowerCase()) + ":" + album.toLowerCase());
+        LibraryKey key = albumKey((albumArtists == null || albumArtists.length == 0) ? null : albumArtists[0], album);
+        Album salbum = c.library_albums.get(key);
         if(salbum == null)
-            //noinspection ConstantConditions
-            salbum = handled_albums.get(((albumArtists == null || albumArtists[0] == null) ? "null" : albumArtists[0].toLowerCase()) + ":" + album.toLowerCase());
+            salbum = c.handled_albums.get(key);
         else
         {
             //Add image if image level inferior
             salbum.setImage(albumMiniatureURL, albumImageURL, albumImageLevel);
         }
         if(salbum == null)
-        {
-            salbum = new Album(album, saartists, albumMiniatureURL, albumImageURL, albumImageLevel);
-            //noinspection ConstantConditions
-            handled_albums.put(((albumArtists == null || albumArtists[0] == null) ? "null" : albumArtists[0].toLowerCase()) + ":" + album.toLowerCase(), salbum);
-        }
+            salbum = putIfAbsent(c.handled_albums, key.copy(), new Album(album, saartists, albumMiniatureURL, albumImageURL, albumImageLevel));
 
         /* obtain song */
-        Song s = library_songs.get(artists[0].toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase());
+        key = songKey(artists[0], album, title);
+        Song s = c.library_songs.get(key);
         if(s == null)
-            s = handled_songs.get(artists[0].toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase());
+            s = c.handled_songs.get(key);
         if(s == null)
         {
-            s = new Song(title, salbum, sartists, track_number);
-            handled_songs.put(artists[0].toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase(), s);
+            Song created = new Song(title, salbum, sartists, track_number);
+            s = putIfAbsent(c.handled_songs, key.copy(), created);
+            if(s == created) index(c, s);
         }
 
-        /* update song source information */
-        boolean alreadyContainsSource = false;
-        for(SourceInformation si : s.getSources())
+        return s;
+    }
+
+    public static void addSongFromHandle(Song song)
+    {
+        lock.writeLock().lock();
+        try
         {
-            if(si.source == source)
+            addSongFromHandle(live, song);
+
+            //Keep the edit when synchronization publishes its contents
+            for(SourceInformation si : song.getSources())
             {
-                alreadyContainsSource = true;
-                break;
+                LibraryContent c = staging(si.source);
+                if(c != null) addSongFromHandle(c, song);
             }
-        }
-        if(!alreadyContainsSource)
-            s.addSource(source, sourceId, true);
 
-        return s;
+            if(journal != null) journal.addSong(song);
+            onEdit();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
-    public static void addSongFromHandle(Song song)
+    private static void addSongFromHandle(LibraryContent c, Song song)
     {
         /* obtain song artists and album artists */
         Artist[] sartists = new Artist[song.artists.length];
         for(int i = 0; i < sartists.length; i++)
         {
-            Artist current = library_artists.get(song.artists[i].name.toLowerCase());
+            NameTable.Name artistName = names.get(song.artists[i].name);
+            Artist current = c.library_artists.get(artistName);
 
             if(current == null)
             {
                 current = new Artist(song.artists[i].name, song.artists[i].imageStr);
-                library_artists.put(current.name.toLowerCase(), current);
+                c.library_artists.put(artistName, current);
+                c.artists_list = SortedLists.insert(c.artists_list, current);
+                index(c, current);
             }
 
             sartists[i] = current;
@@ -280,47 +606,91 @@ public class Library
         Artist[] saartists = new Artist[song.album.artists.length];
         for(int i = 0; i < saartists.length; i++)
         {
-            Artist current = library_artists.get(song.album.artists[i].name.toLowerCase());
+            NameTable.Name artistName = names.get(song.album.artists[i].name);
+            Artist current = c.library_artists.get(artistName);
 
             if(current == null)
             {
                 current = new Artist(song.album.artists[i].name, song.album.artists[i].imageStr);
-                library_artists.put(current.name.toLowerCase(), current);
+                c.library_artists.put(artistName, current);
+                c.artists_list = SortedLists.insert(c.artists_list, current);
+                index(c, current);
             }
 
             saartists[i] = current;
         }
 
         /* obtain song album */
-        Album salbum = library_albums.get(((song.album.artists == null || song.album.artists[0] == null) ? "null" : song.album.artists[0].name.toLowerCase()) + ":" + song.album.getName().toLowerCase());
+        LibraryKey key = albumKey((song.album.artists == null || song.album.artists.length == 0 || song.album.artists[0] == null) ?
+                null : song.album.artists[0].name, song.album.getName());
+        Album salbum = c.library_albums.get(key);
         if(salbum == null)
         {
             salbum = new Album(song.album.name, saartists, song.album.imageStr, song.album.imageBigStr, song.album.imageLevel);
-            library_albums.put(((song.album.artists == null || song.album.artists[0] == null) ? "null" : song.album.artists[0].name.toLowerCase()) + ":" + song.album.getName().toLowerCase(), salbum);
+            c.library_albums.put(key.copy(), salbum);
+            c.albums_list = SortedLists.insert(c.albums_list, salbum);
+            index(c, salbum);
             for(Artist a : saartists) a.addAlbum(salbum);
         }
         for(Artist a : sartists)
-            if(!a.albums.contains(salbum))
-                a.addAlbum(salbum); //NOTE: this adds albums to artists even if only a featuring
+            a.addAlbumIfAbsent(salbum); //NOTE: this adds albums to artists even if only a featuring
 
         /* obtain song */
-        Song s = library_songs.get(song.artists[0].name.toLowerCase() + ":" + song.album.getName().toLowerCase() + ":" + song.getName().toLowerCase());
+        key = songKey(song);
+        Song s = c.library_songs.get(key);
         if(s == null)
         {
-            library_songs.put(song.artists[0].name.toLowerCase() + ":" + song.album.getName().toLowerCase() + ":" + song.getName().toLowerCase(), song);
-            for(Artist a : sartists) a.track_count++;
+            c.library_songs.put(key.copy(), song);
+            c.songs_list = SortedLists.insert(c.songs_list, song);
+            index(c, song);
+            for(Artist a : sartists) a.addTrack();
             salbum.addSong(song);
         }
     }
 
-    public static synchronized void removeSong(Song song)
+    public static void removeSong(Song song)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            removeSong(live, song);
+
+            //Keep the edit when synchronization publishes its contents
+            if(staging != null)
+            {
+                for(LibraryContent c : staging.values())
+                {
+                    Song staged = c.library_songs.get(songKey(song));
+                    if(staged != null) removeSong(c, staged);
+                }
+            }
+
+            if(journal != null) journal.removeSong(song);
+            onEdit();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void removeSong(LibraryContent c, Song song)
+    {
+        removeSong(c, song, true);
+    }
+
+    /*
+     * Removes song from content maps ; sorted lists and search index are updated if lists is true,
+     * else caller rebuilds them
+     */
+    private static void removeSong(LibraryContent c, Song song, boolean lists)
     {
         //Handle artist
         for(Artist a : song.getArtists())
         {
             a.track_count--;
             if(a.track_count == 0)
-                library_artists.remove(a.getName().toLowerCase());
+                removeArtist(c, a, lists);
         }
 
         //Handle album
@@ -329,338 +699,1097 @@ public class Library
         {
             for(Artist a : song.getAlbum().getArtists())
             {
-                a.getAlbums().remove(song.getAlbum());
+                a.removeAlbum(song.getAlbum());
                 if(a.getAlbums().isEmpty())
-                    library_artists.remove(a.getName().toLowerCase());
+                    removeArtist(c, a, lists);
+            }
+            Album removed = c.library_albums.remove(albumKey(song.getAlbum().getArtists()[0].getName(), song.getAlbum().getName()));
+            if(removed != null && lists)
+            {
+                c.albums_list = SortedLists.remove(c.albums_list, removed);
+                unindex(c, removed);
             }
-            library_albums.remove(song.getAlbum().getArtists()[0].getName().toLowerCase() + ":" + song.getAlbum().getName().toLowerCase());
         }
 
         //Handle song
-        library_songs.remove(song.getArtists()[0].getName().toLowerCase() + ":" + song.getAlbum().getName().toLowerCase() + ":" + song.getName().toLowerCase());
+        LibraryKey key = songKey(song);
+        Song removed = c.library_songs.remove(key);
+        if(removed != null && lists)
+        {
+            c.songs_list = SortedLists.remove(c.songs_list, removed);
+            //Song stays searchable if we still have a handle on it
+            if(c.handled_songs.get(key) != removed) unindex(c, removed);
+        }
     }
 
-    public static synchronized Playlist addPlaylist(String title, List<Song> songList, String imageMiniatureUrl, String subtitle, Source source, Object id)
+    private static void removeArtist(LibraryContent c, Artist artist, boolean lists)
     {
-        Playlist playlist = new Playlist(title, songList, imageMiniatureUrl, subtitle, new SourceInformation(source, id, false));
-        library_playlists.add(playlist);
-        return playlist;
+        Artist removed = c.library_artists.remove(names.get(artist.getName()));
+        if(removed != null && lists)
+        {
+            c.artists_list = SortedLists.remove(c.artists_list, removed);
+            unindex(c, removed);
+        }
     }
 
-    public static synchronized void removePlaylist(Playlist list)
+    /**
+     * @return true if song is in library (not only a handle)
+     */
+    public static boolean contains(Song song)
     {
-        library_playlists.remove(list);
+        lock.readLock().lock();
+        try
+        {
+            return live.library_songs.get(songKey(song)) == song;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Reset the playlist, to be used before a library synchronization
+     * @return library song (or song handle) with that first artist, album and title ; null if there is none
      */
-    public static void reset()
+    public static Song findSong(String artist, String album, String title)
     {
-        library_artists = new HashMap<>();
-        library_albums = new HashMap<>();
-        library_songs = new HashMap<>();
-        library_playlists = new ArrayList<>();
-
-        handled_artists = new HashMap<>();
-        handled_albums = new HashMap<>();
-        handled_songs = new HashMap<>();
+        lock.readLock().lock();
+        try
+        {
+            LibraryKey key = songKey(artist, album, title);
+            Song song = live.library_songs.get(key);
+            return song == null ? live.handled_songs.get(key) : song;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Generate artists, albums, and songs lists from library HashMaps
+     * Waits for library to be loaded from cache (see loadFromCache)
+     * @return false if it was not loaded after timeout
      */
-    @SuppressWarnings("ComparatorCombinators")
-    //NOTE : can be replaced with Comparator.comparing, but needs Android N
-    public static void generateLists()
+    public static boolean awaitLoaded(long timeoutMs) throws InterruptedException
     {
-        //re-gen lists from hashmaps
-        artists_list = new ArrayList<>(library_artists.values());
-        Collections.sort(artists_list, (artist, t1) -> artist.getName().toLowerCase().compareTo(t1.getName().toLowerCase()));
-        albums_list = new ArrayList<>(library_albums.values());
-        Collections.sort(albums_list, (album, t1) -> album.getName().toLowerCase().compareTo(t1.getName().toLowerCase()));
-        songs_list = new ArrayList<>(library_songs.values());
-        Collections.sort(songs_list, (song, t1) -> song.getName().toLowerCase().compareTo(t1.getName().toLowerCase()));
-
-        //sort playlists alphabetically
-        Collections.sort(library_playlists, (playlist, t1) -> playlist.getName().toLowerCase().compareTo(t1.getName().toLowerCase()));
-
-        //NotifyDatasetChanged for mainListView actualization
-        if(LibraryFragment.instance != null && LibraryFragment.instance.getActivity() != null)
-            LibraryFragment.instance.requireActivity().runOnUiThread(() ->
-                    LibraryFragment.instance.updateContent(LibraryFragment.instance.getTitle(), null, LibraryFragment.CURRENT_TYPE.LIBRARY, null));
+        return cacheLoaded.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
 
-        for(Album album : albums_list)
-            Collections.sort(album.songList, (o1, o2) -> o1.track_number - o2.track_number);
+    public static Playlist addPlaylist(String title, List<Song> songList, String imageMiniatureUrl, String subtitle, Source source, Object id)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            Playlist playlist = new Playlist(title, songList, imageMiniatureUrl, subtitle, new SourceInformation(source, id, false));
+            c.library_playlists.add(playlist);
+            index(c, playlist);
+            return playlist;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Saves the whole library to library json file
+     * Adds a playlist created by the user (not obtained on synchronization)
      */
-    public static void save()
+    public static Playlist createPlaylist(String title, Source source, Object id)
     {
-        //Generate JSON Object from library
-        Gson gson = new Gson();
-
-        JsonObject libraryObject = new JsonObject();
-        libraryObject.addProperty("version", LIBRARY_CACHE_VERSION);
-
-        //Save library songs
-        JsonArray library = new JsonArray();
-        for(Song s : songs_list)
+        lock.writeLock().lock();
+        try
         {
-            JsonObject songJson = songJson(s, gson);
-            library.add(songJson);
+            Playlist playlist = new Playlist(title, new ArrayList<>(), null, "", new SourceInformation(source, id, false));
+            live.library_playlists = SortedLists.insert(live.library_playlists, playlist);
+            index(live, playlist);
+
+            //Keep the edit when synchronization publishes its contents
+            LibraryContent c = staging(source);
+            if(c != null && c.findPlaylist(source, id) == null)
+                c.library_playlists.add(new Playlist(title, new ArrayList<>(), null, "", new SourceInformation(source, id, false)));
+
+            if(journal != null) journal.createPlaylist(playlist);
+            onEdit();
+            return playlist;
         }
-        libraryObject.add("library", library);
-
-        //Save library playlists
-        JsonArray playlists = new JsonArray();
-        for(Playlist playlist : library_playlists)
+        finally
         {
-            JsonObject playlistJson = new JsonObject();
-
-            playlistJson.addProperty("name", playlist.getName());
-            playlistJson.addProperty("art", playlist.imageStr);
-            playlistJson.addProperty("subtitle", playlist.getSubtitle());
-
-            JsonArray playlistSongs = new JsonArray();
-            for(Song s : playlist.getSongs()) playlistSongs.add(songJson(s, gson));
-            playlistJson.add("songs", playlistSongs);
-
-            playlistJson.addProperty("source", playlist.getSource().source.getIndex());
-            playlistJson.add("id", gson.toJsonTree(playlist.getSource().id));
-
-            playlists.add(playlistJson);
+            lock.writeLock().unlock();
         }
-        libraryObject.add("playlists", playlists);
+    }
 
-        //Write JSON Object to file
-        File libraryFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + LIBRARY_FILE);
+    public static void removePlaylist(Playlist list)
+    {
+        lock.writeLock().lock();
         try
         {
-            //noinspection ResultOfMethodCallIgnored
-            libraryFile.delete();
-            if(!libraryFile.createNewFile())
-            {
-                System.err.println("Could not save library : could not create file");
-                return;
-            }
+            live.library_playlists = SortedLists.remove(live.library_playlists, list);
+            unindex(live, list);
 
-            BufferedWriter writer = new BufferedWriter(new FileWriter(libraryFile));
-            writer.write(gson.toJson(libraryObject));
-            writer.close();
+            LibraryContent c = staging(list.getSource().source);
+            if(c != null) c.library_playlists.remove(c.findPlaylist(list.getSource().source, list.getSource().id));
+
+            if(journal != null) journal.removePlaylist(list);
+            onEdit();
         }
-        catch(IOException ignored)
+        finally
         {
+            lock.writeLock().unlock();
         }
     }
 
-    public static JsonObject songJson(Song s, Gson gson)
+    public static void addSongToPlaylist(Song song, Playlist playlist)
     {
-        JsonObject songJson = new JsonObject();
-        songJson.addProperty("name", s.getName());
-        songJson.addProperty("track_number", s.getTrackNumber());
-        songJson.addProperty("album", s.getAlbum().getName());
-
-        songJson.addProperty("album_art", s.getAlbum().imageStr);
-        songJson.addProperty("album_art_big", s.getAlbum().imageBigStr);
-        JsonArray aartists = new JsonArray();
-        for(Artist a : s.getAlbum().getArtists()) aartists.add(a.getName());
-        songJson.add("album_artists", aartists);
-        //TODO : save album_art, album_art_big, album artists only on first album encounter
+        lock.writeLock().lock();
+        try
+        {
+            ArrayList<Song> songs = new ArrayList<>(playlist.songs);
+            songs.add(song);
+            playlist.songs = songs;
 
-        //TODO : handle artists imgs
-        JsonArray artists = new JsonArray();
-        for(Artist a : s.getArtists()) artists.add(a.getName());
-        songJson.add("artists", artists);
+            Playlist staged = stagedPlaylist(playlist);
+            if(staged != null) staged.songs.add(song);
 
-        JsonArray sources = new JsonArray();
-        for(SourceInformation si : s.getSources())
+            if(journal != null) journal.addToPlaylist(playlist, song);
+            onEdit();
+        }
+        finally
         {
-            JsonObject sourceJson = new JsonObject();
-            sourceJson.addProperty("source", si.source.getIndex());
-            sourceJson.add("id", gson.toJsonTree(si.id));
-            sources.add(sourceJson);
+            lock.writeLock().unlock();
         }
-        songJson.add("sources", sources);
-
-        return songJson;
     }
 
-    /**
-     * Loads the whole library from cache json file
-     */
-    public static void loadFromCache()
+    public static void removeSongFromPlaylist(Song song, Playlist playlist)
     {
-        File libraryFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + LIBRARY_FILE);
+        lock.writeLock().lock();
         try
         {
-            //read file
-            BufferedReader reader = new BufferedReader(new FileReader(libraryFile));
-            StringBuilder js = new StringBuilder();
-            while(reader.ready()) js.append(reader.readLine()).append("\n");
-            reader.close();
+            ArrayList<Song> songs = new ArrayList<>(playlist.songs);
+            songs.remove(song);
+            playlist.songs = songs;
 
-            //obtain from JSON
-            JSONObject root = new JSONObject(js.toString());
-            int cache_version = root.getInt("version");
-            if(cache_version > LIBRARY_CACHE_VERSION)
+            Playlist staged = stagedPlaylist(playlist);
+            if(staged != null)
             {
-                System.err.println("Library cache more recent than current version; ignoring");
-                return;
+                LibraryKey key = songKey(song).copy();
+                for(int i = 0; i < staged.songs.size(); i++)
+                {
+                    if(songKey(staged.songs.get(i)).equals(key))
+                    {
+                        staged.songs.remove(i);
+                        break;
+                    }
+                }
+            }
+
+            if(journal != null) journal.removeFromPlaylist(playlist, song);
+            onEdit();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static Playlist findPlaylist(Source source, Object id)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return live.findPlaylist(source, id);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Staging content of source, if it is synchronizing or done in current synchronization
+     * User edits are also done on it, so that they are kept by next publications
+     * Caller holds write lock
+     */
+    private static LibraryContent staging(Source source)
+    {
+        return staging == null ? null : staging.get(source);
+    }
+
+    private static Playlist stagedPlaylist(Playlist playlist)
+    {
+        LibraryContent c = staging(playlist.getSource().source);
+        return c == null ? null : c.findPlaylist(playlist.getSource().source, playlist.getSource().id);
+    }
+
+    /*
+     * Called after every user edit : merges journal into a new snapshot when it gets too big
+     */
+    private static void onEdit()
+    {
+        if(journal == null || journal.size() < JOURNAL_COMPACTION_THRESHOLD) return;
+        if(compactionScheduled || Source.isSyncing) return;
+
+        compactionScheduled = true;
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_SAVE, Library::save);
+    }
+
+    /**
+     * Reset the library (e.g. after a failed cache load)
+     */
+    public static void reset()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            //Staging contents share names with live content
+            if(staging == null) names = new NameTable();
+            LibraryContent empty = new LibraryContent();
+            synchronized(searchLock)
+            {
+                live = empty;
             }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a library synchronization : sources ingest into staging contents, and live
+     * library stays as is until they publish (see publish)
+     */
+    public static void beginSync(List<Source> sources)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(sources.isEmpty()) return;
+
+            staging = new HashMap<>();
+            published = new HashSet<>();
+            for(Source s : sources) staging.put(s, new LibraryContent());
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
 
-            //Restore library songs
-            JSONArray library = root.getJSONArray("library");
-            for(int i = 0; i < library.length(); i++)
+    /**
+     * Publishes the synchronization results of source, when it is done : library now contains
+     * what this source (and the sources done before) obtained, and what other sources had before
+     * synchronization. Once every source published, synchronization is over
+     */
+    public static void publish(Source source)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(staging == null || !staging.containsKey(source) || !published.add(source)) return;
+
+            LibraryContent merged = merge();
+            buildLists(merged);
+            merged.adoptIdentities(live);
+            //Readers see either old content or the new one, never a mix : old objects are not modified
+            synchronized(searchLock)
             {
-                JSONObject s = library.getJSONObject(i);
-                jsonSong(s, false);
+                live = merged;
             }
 
-            //Restore playlists
-            JSONArray playlists = root.getJSONArray("playlists");
-            for(int i = 0; i < playlists.length(); i++)
+            if(published.size() == staging.size())
             {
-                JSONObject p = playlists.getJSONObject(i);
+                staging = null;
+                published = null;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 
-                ArrayList<Song> songList = new ArrayList<>();
-                JSONArray songArray = p.getJSONArray("songs");
-                for(int j = 0; j < songArray.length(); j++)
-                    songList.add(jsonSong(songArray.getJSONObject(j), true));
+        notifyLibraryChanged();
+    }
 
-                String art;
-                try
-                {
-                    art = p.getString("art");
-                }
-                catch(JSONException noArt)
-                {
-                    art = null;
-                }
-                String subtitle;
-                try
+    /**
+     * Ends the synchronization of source without publishing it (e.g. cancelled) : library keeps
+     * what it had from source before synchronization
+     * Source must not ingest anymore
+     */
+    public static void abandon(Source source)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(staging == null || !staging.containsKey(source) || published.contains(source)) return;
+
+            staging.remove(source);
+            if(published.size() == staging.size())
+            {
+                staging = null;
+                published = null;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of songs source added to library during its synchronization, so far
+     */
+    public static int stagedSongCount(Source source)
+    {
+        lock.readLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            return c == live ? 0 : c.library_songs.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * New content, from staging contents of published sources and live content of other sources
+     * Caller holds write lock
+     */
+    private static LibraryContent merge()
+    {
+        LibraryContent merged = new LibraryContent();
+        boolean showAlbumArtistOnly = showAlbumArtistOnly();
+
+        for(Source s : published)
+        {
+            LibraryContent c = staging.get(s);
+            for(Song song : c.library_songs.values()) carry(merged, song, song.getSources(), false, showAlbumArtistOnly);
+            for(Song song : c.handled_songs.values()) carry(merged, song, song.getSources(), true, showAlbumArtistOnly);
+        }
+        for(Song song : live.library_songs.values())
+            carry(merged, song, unpublishedSources(song), false, showAlbumArtistOnly);
+        for(Song song : live.handled_songs.values())
+            carry(merged, song, unpublishedSources(song), true, showAlbumArtistOnly);
+
+        for(Source s : published)
+            for(Playlist p : staging.get(s).library_playlists) carry(merged, p, showAlbumArtistOnly);
+        for(Playlist p : live.library_playlists)
+            if(!published.contains(p.getSource().source)) carry(merged, p, showAlbumArtistOnly);
+
+        return merged;
+    }
+
+    private static List<SourceInformation> unpublishedSources(Song song)
+    {
+        ArrayList<SourceInformation> sources = new ArrayList<>(song.getSources().size());
+        for(SourceInformation si : song.getSources())
+            if(!published.contains(si.source)) sources.add(si);
+        return sources;
+    }
+
+    /*
+     * Adds song of another content to content c, with given sources
+     */
+    private static Song carry(LibraryContent c, Song song, List<SourceInformation> sources, boolean handled,
+                              boolean showAlbumArtistOnly)
+    {
+        if(sources.isEmpty()) return null;
+
+        String[] artists = new String[song.artists.length];
+        String[] artistsImages = new String[song.artists.length];
+        for(int i = 0; i < artists.length; i++)
+        {
+            artists[i] = song.artists[i].name;
+            artistsImages[i] = song.artists[i].imageStr;
+        }
+        String[] aartists = new String[song.album.artists.length];
+        String[] aartistsImages = new String[song.album.artists.length];
+        for(int i = 0; i < aartists.length; i++)
+        {
+            aartists[i] = song.album.artists[i].name;
+            aartistsImages[i] = song.album.artists[i].imageStr;
+        }
+
+        Song s = handled ?
+                ingestHandle(c, song.name, song.album.name, artists, aartists, song.album.imageStr, song.track_number,
+                        artistsImages, aartistsImages, song.album.imageBigStr, song.album.imageLevel) :
+                ingest(c, song.name, song.album.name, artists, aartists, song.album.imageStr, song.track_number,
+                        artistsImages, aartistsImages, song.album.imageBigStr, song.album.imageLevel, showAlbumArtistOnly);
+        s.setDuration(song.duration);
+        for(SourceInformation si : sources) s.addSource(si.source, si.id, si.handled);
+        return s;
+    }
+
+    /*
+     * Adds playlist of another content to content c, with its songs
+     */
+    private static void carry(LibraryContent c, Playlist playlist, boolean showAlbumArtistOnly)
+    {
+        ArrayList<Song> songs = new ArrayList<>(playlist.songs.size());
+        for(Song song : playlist.songs)
+        {
+            LibraryKey key = songKey(song);
+            Song s = c.library_songs.get(key);
+            if(s == null) s = c.handled_songs.get(key);
+            //Song could have been removed from library content, playlist still references it
+            if(s == null) s = carry(c, song, song.getSources(), true, showAlbumArtistOnly);
+            if(s != null) songs.add(s);
+        }
+
+        c.library_playlists.add(new Playlist(playlist.name, songs, playlist.imageStr, playlist.getSubtitle(), playlist.getSource()));
+    }
+
+    /**
+     * Keeps library songs of source whose source id is in ids, without source adding them again :
+     * for incremental synchronization, songs known unchanged are carried to what source is building
+     * @return number of songs kept
+     */
+    public static int keepSongs(Source source, Collection<?> ids)
+    {
+        HashSet<Object> idSet = new HashSet<>(ids);
+        boolean showAlbumArtistOnly = showAlbumArtistOnly();
+        lock.readLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            int kept = 0;
+            for(Song song : live.library_songs.values())
+            {
+                for(SourceInformation si : song.getSources())
                 {
-                    subtitle = p.getString("subtitle");
+                    if(si.source != source || si.handled || !idSet.contains(si.id)) continue;
+
+                    if(c != live) carry(c, song, Collections.singletonList(si), false, showAlbumArtistOnly);
+                    kept++;
+                    break;
                 }
-                catch(JSONException noSubtitle)
+            }
+            return kept;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps every library song of source : when a synchronization step failed, we keep what we knew
+     * instead of losing what we could not obtain
+     * @return number of songs kept
+     */
+    public static int keepSongs(Source source)
+    {
+        boolean showAlbumArtistOnly = showAlbumArtistOnly();
+        lock.readLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            int kept = 0;
+            for(Song song : live.library_songs.values())
+            {
+                ArrayList<SourceInformation> sources = new ArrayList<>();
+                for(SourceInformation si : song.getSources())
+                    if(si.source == source && !si.handled) sources.add(si);
+                if(sources.isEmpty()) continue;
+
+                if(c != live) carry(c, song, sources, false, showAlbumArtistOnly);
+                kept++;
+            }
+            return kept;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps library playlists of source whose source id is in ids (every playlist of source if ids is null),
+     * unless source already added them again : for playlists that could not be obtained
+     */
+    public static void keepPlaylists(Source source, Collection<?> ids)
+    {
+        HashSet<Object> idSet = ids == null ? null : new HashSet<>(ids);
+        boolean showAlbumArtistOnly = showAlbumArtistOnly();
+        lock.writeLock().lock();
+        try
+        {
+            LibraryContent c = target(source);
+            if(c == live) return;
+
+            for(Playlist playlist : live.library_playlists)
+            {
+                SourceInformation si = playlist.getSource();
+                if(si.source != source || (idSet != null && !idSet.contains(si.id))) continue;
+                if(c.findPlaylist(source, si.id) != null) continue;
+
+                carry(c, playlist, showAlbumArtistOnly);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of library songs that source added (or kept) with a source id in ids
+     */
+    public static int countSongs(Source source, Collection<?> ids)
+    {
+        HashSet<Object> idSet = new HashSet<>(ids);
+        lock.readLock().lock();
+        try
+        {
+            int count = 0;
+            for(Song song : target(source).library_songs.values())
+            {
+                for(SourceInformation si : song.getSources())
                 {
-                    subtitle = "";
+                    if(si.source == source && !si.handled && idSet.contains(si.id))
+                    {
+                        count++;
+                        break;
+                    }
                 }
-
-                addPlaylist(p.getString("name"), songList, art, subtitle,
-                        Source.SOURCES.get(p.getInt("source")),
-                        p.get("id"));
             }
+            return count;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
 
-            Library.generateLists();
+    /**
+     * Generate artists, albums, and songs lists from library HashMaps ; this is a full rebuild,
+     * to be used after loading the library or ingesting into it (single edits keep the lists sorted)
+     */
+    public static void generateLists()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            buildLists(live);
         }
-        catch(IOException | JSONException e)
+        finally
         {
-            e.printStackTrace();
+            lock.writeLock().unlock();
         }
+
+        notifyLibraryChanged();
     }
 
-    public static Song jsonSong(JSONObject s, boolean handled) throws JSONException
+    /*
+     * Builds sorted lists and search index of content c ; artists and albums are sorted, and
+     * search index is built in background while we sort songs
+     * Caller holds write lock
+     */
+    private static void buildLists(LibraryContent c)
     {
-        JSONArray artistsJson = s.getJSONArray("artists");
-        String[] artists = new String[artistsJson.length()];
-        String[] artistsImages = new String[artistsJson.length()];
-        for(int j = 0; j < artistsJson.length(); j++) artists[j] = artistsJson.getString(j);
+        //sort playlists alphabetically
+        c.library_playlists = SortedLists.sorted(c.library_playlists);
+
+        Callable<ArrayList<Artist>> sortArtists = () -> SortedLists.sorted(c.library_artists.values());
+        Callable<ArrayList<Album>> sortAlbums = () -> SortedLists.sorted(c.library_albums.values());
+        Callable<LibrarySearchIndex> buildIndex = () -> buildSearchIndex(c);
+        ExecutorService background = BladeApplication.obtainExecutorService(BladeApplication.Lane.BACKGROUND);
+        Future<ArrayList<Artist>> artists = background.submit(sortArtists);
+        Future<ArrayList<Album>> albums = background.submit(sortAlbums);
+        Future<LibrarySearchIndex> index = background.submit(buildIndex);
+
+        ArrayList<Song> songs = SortedLists.sorted(c.library_songs.values());
+
+        c.artists_list = await(artists, sortArtists);
+        c.albums_list = await(albums, sortAlbums);
+        c.songs_list = songs;
+        LibrarySearchIndex built = await(index, buildIndex);
+        synchronized(searchLock)
+        {
+            c.searchIndex = built;
+        }
+    }
 
-        JSONArray aartistsJson = s.getJSONArray("album_artists");
-        String[] aartists = new String[aartistsJson.length()];
-        String[] aartistsImages = new String[aartistsJson.length()];
-        for(int j = 0; j < aartistsJson.length(); j++)
-            aartists[j] = aartistsJson.getString(j);
+    /*
+     * Ingest does not index library objects one by one ; the index is built after ingest
+     */
+    private static LibrarySearchIndex buildSearchIndex(LibraryContent c)
+    {
+        LibrarySearchIndex index = new LibrarySearchIndex();
+        for(Artist a : c.library_artists.values()) index.add(a);
+        for(Album a : c.library_albums.values()) index.add(a);
+        for(Song s : c.library_songs.values()) index.add(s);
+        for(Playlist p : c.library_playlists) index.add(p);
+        for(Song s : c.handled_songs.values()) index.add(s);
+        return index;
+    }
 
-        JSONArray sourcesJson = s.getJSONArray("sources");
-        JSONObject source0Json = sourcesJson.getJSONObject(0);
-        Source source0 = null;
+    /*
+     * Obtains the result of task ; if it did not start yet (e.g. executor busy with our caller),
+     * it is cancelled and run on current thread
+     */
+    private static <T> T await(Future<T> future, Callable<T> task)
+    {
         try
         {
-            source0 = Source.SOURCES.get(source0Json.getInt("source"));
+            if(future.cancel(false)) return task.call();
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            try
+            {
+                return task.call();
+            }
+            catch(Exception inline)
+            {
+                throw new RuntimeException(inline);
+            }
+        }
+        catch(Exception e)
+        {
+            throw new RuntimeException(e);
         }
-        catch(IndexOutOfBoundsException exception)
+    }
+
+    /**
+     * Notifies the library view that lists changed
+     */
+    public static void notifyLibraryChanged()
+    {
+        //NotifyDatasetChanged for mainListView actualization
+        if(LibraryFragment.instance != null && LibraryFragment.instance.getActivity() != null)
+            LibraryFragment.instance.requireActivity().runOnUiThread(() ->
+                    LibraryFragment.instance.updateContent(LibraryFragment.instance.getTitle(), null, LibraryFragment.CURRENT_TYPE.LIBRARY, null));
+    }
+
+    /**
+     * Saves the whole library to library snapshot file ; journal records are then
+     * contained in snapshot, so journal is emptied
+     * Library is only locked to capture its state : edits made while the file is written stay in journal
+     */
+    public static void save()
+    {
+        synchronized(saveLock)
         {
-            System.out.println("BLADE: Song saved with a source that does not exist, skipping this source");
+            LibrarySnapshot.Capture capture;
+            long journalSize;
+            lock.writeLock().lock();
+            try
+            {
+                compactionScheduled = false;
+
+                capture = new LibrarySnapshot.Capture(new ArrayList<>(live.library_songs.values()), live.library_playlists);
+                journalSize = journal == null ? 0 : journal.size();
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+
+            File snapshotFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + LIBRARY_SNAPSHOT_FILE);
+            try
+            {
+                LibrarySnapshot.write(snapshotFile, capture);
+            }
+            catch(IOException e)
+            {
+                System.err.println("Could not save library : " + e.getMessage());
+                return;
+            }
+            //Journal records are only removed once the snapshot replacing them is durable
+            if(!syncDirectory(snapshotFile.getParentFile())) return;
+
+            lock.writeLock().lock();
+            try
+            {
+                //Records appended while writing are not in snapshot
+                if(journal != null) journal.truncateBefore(journalSize);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
         }
+    }
 
-        String art;
-        String bigArt;
+    /*
+     * Makes renames in directory durable
+     */
+    private static boolean syncDirectory(File directory)
+    {
         try
         {
-            art = s.getString("album_art");
-            bigArt = s.getString("album_art_big");
+            FileDescriptor fd = Os.open(directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try
+            {
+                Os.fsync(fd);
+            }
+            finally
+            {
+                Os.close(fd);
+            }
+            return true;
         }
-        catch(JSONException noArt)
+        catch(ErrnoException e)
         {
-            art = null;
-            bigArt = null;
+            System.err.println("BLADE: Could not sync " + directory.getName() + " : " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes song to a JSON stream, as one object
+     */
+    public static void writeSongJson(JsonWriter out, Song s) throws IOException
+    {
+        out.beginObject();
+        out.name("name").value(s.getName());
+        out.name("track_number").value(s.getTrackNumber());
+        if(s.duration > 0) out.name("duration").value(s.duration);
+        out.name("album").value(s.getAlbum().getName());
+
+        out.name("album_art").value(s.getAlbum().imageStr);
+        out.name("album_art_big").value(s.getAlbum().imageBigStr);
+        out.name("album_artists").beginArray();
+        for(Artist a : s.getAlbum().getArtists()) out.value(a.getName());
+        out.endArray();
+        //TODO : save album_art, album_art_big, album artists only on first album encounter
+
+        //TODO : handle artists imgs
+        out.name("artists").beginArray();
+        for(Artist a : s.getArtists()) out.value(a.getName());
+        out.endArray();
+
+        out.name("sources").beginArray();
+        for(SourceInformation si : s.getSources())
+        {
+            out.beginObject();
+            out.name("source").value(si.source.getIndex());
+            out.name("id");
+            if(si.id == null) out.nullValue();
+            else if(si.id instanceof Number) out.value((Number) si.id);
+            else out.value(si.id.toString());
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    /**
+     * Song fields, as read from a JSON stream, before being added to library
+     */
+    static final class SongRecord
+    {
+        String name;
+        String album;
+        int trackNumber;
+        int duration;
+        String albumArt;
+        String albumArtBig;
+        final ArrayList<String> artists = new ArrayList<>();
+        final ArrayList<String> albumArtists = new ArrayList<>();
+        final ArrayList<Integer> sources = new ArrayList<>();
+        final ArrayList<Object> ids = new ArrayList<>();
+    }
+
+    static SongRecord readSongRecord(JsonReader in) throws IOException
+    {
+        SongRecord record = new SongRecord();
+        in.beginObject();
+        while(in.hasNext())
+        {
+            String field = in.nextName();
+            if(in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+
+            switch(field)
+            {
+                case "name":
+                    record.name = in.nextString();
+                    break;
+                case "album":
+                    record.album = in.nextString();
+                    break;
+                case "track_number":
+                    record.trackNumber = in.nextInt();
+                    break;
+                case "duration":
+                    record.duration = in.nextInt();
+                    break;
+                case "album_art":
+                    record.albumArt = in.nextString();
+                    break;
+                case "album_art_big":
+                    record.albumArtBig = in.nextString();
+                    break;
+                case "artists":
+                    readStrings(in, record.artists);
+                    break;
+                case "album_artists":
+                    readStrings(in, record.albumArtists);
+                    break;
+                case "sources":
+                    in.beginArray();
+                    while(in.hasNext())
+                    {
+                        int source = -1;
+                        Object id = null;
+                        in.beginObject();
+                        while(in.hasNext())
+                        {
+                            String sourceField = in.nextName();
+                            if(sourceField.equals("source")) source = in.nextInt();
+                            else if(sourceField.equals("id") && in.peek() == JsonToken.NUMBER) id = in.nextLong();
+                            else if(sourceField.equals("id") && in.peek() == JsonToken.STRING) id = in.nextString();
+                            else in.skipValue();
+                        }
+                        in.endObject();
+                        record.sources.add(source);
+                        record.ids.add(id);
+                    }
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return record;
+    }
+
+    private static void readStrings(JsonReader in, List<String> into) throws IOException
+    {
+        in.beginArray();
+        while(in.hasNext()) into.add(in.nextString());
+        in.endArray();
+    }
+
+    /**
+     * Reads one song from a JSON stream, and adds it to library (or as a handle)
+     */
+    public static Song readSongJson(JsonReader in, boolean handled) throws IOException
+    {
+        SongRecord record = readSongRecord(in);
+        if(record.name == null || record.album == null || record.artists.isEmpty())
+            throw new IOException("Invalid song record");
+
+        String[] artists = record.artists.toArray(new String[0]);
+        String[] artistsImages = new String[artists.length];
+        String[] aartists = record.albumArtists.toArray(new String[0]);
+        String[] aartistsImages = new String[aartists.length];
+
+        Source source0 = null;
+        Object id0 = null;
+        if(!record.sources.isEmpty())
+        {
+            source0 = sourceAt(record.sources.get(0));
+            id0 = record.ids.get(0);
         }
 
         Song song;
         if(handled)
-            song = addSongHandle(s.getString("name"), s.getString("album"), artists, source0,
-                    source0Json.get("id"), aartists, art, s.getInt("track_number"),
-                    artistsImages, aartistsImages, bigArt, 1);
+            song = addSongHandle(record.name, record.album, artists, source0, id0, aartists,
+                    record.albumArt, record.trackNumber, artistsImages, aartistsImages, record.albumArtBig, 1, record.duration);
         else
-            song = addSong(s.getString("name"), s.getString("album"), artists, source0,
-                    source0Json.get("id"), aartists, art, s.getInt("track_number"),
-                    artistsImages, aartistsImages, bigArt, 1);
+            song = addSong(record.name, record.album, artists, source0, id0, aartists,
+                    record.albumArt, record.trackNumber, artistsImages, aartistsImages, record.albumArtBig, 1, record.duration);
 
         //Add all other sources to song
-        for(int j = 1; j < sourcesJson.length(); j++)
+        for(int j = 1; j < record.sources.size(); j++)
+            song.addSource(sourceAt(record.sources.get(j)), record.ids.get(j), handled);
+
+        return song;
+    }
+
+    private static Source sourceAt(int index)
+    {
+        if(index >= 0 && index < Source.SOURCES.size()) return Source.SOURCES.get(index);
+
+        System.out.println("BLADE: Cache references a source that does not exist, skipping this source");
+        return null;
+    }
+
+    /**
+     * Loads the whole library from cache snapshot file ; if there is no snapshot yet,
+     * loads the old json cache file and migrates it to a snapshot
+     */
+    public static void loadFromCache()
+    {
+        String filesDir = BladeApplication.appContext.getFilesDir().getAbsolutePath();
+        LibraryJournal loadedJournal = new LibraryJournal(new File(filesDir + LIBRARY_JOURNAL_FILE));
+
+        File snapshotFile = new File(filesDir + LIBRARY_SNAPSHOT_FILE);
+        boolean loaded = false;
+        if(snapshotFile.exists())
         {
-            JSONObject sourceJson = sourcesJson.getJSONObject(j);
-            Source source = Source.SOURCES.get(sourceJson.getInt("source"));
-            song.addSource(source, sourceJson.get("id"), handled);
+            try
+            {
+                loaded = LibrarySnapshot.read(snapshotFile);
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                //Snapshot could have been partially read
+                reset();
+            }
         }
 
-        return song;
+        File libraryFile = new File(filesDir + LIBRARY_FILE);
+        if(!loaded && libraryFile.exists() && loadFromJsonCache(libraryFile))
+        {
+            save();
+            //noinspection ResultOfMethodCallIgnored
+            libraryFile.delete();
+        }
+
+        //Replay user edits done since last snapshot, then record new ones
+        loadedJournal.replay();
+        lock.writeLock().lock();
+        journal = loadedJournal;
+        lock.writeLock().unlock();
+        Library.generateLists();
+        cacheLoaded.countDown();
+    }
+
+    private static boolean loadFromJsonCache(File libraryFile)
+    {
+        try(JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(libraryFile), StandardCharsets.UTF_8))))
+        {
+            in.beginObject();
+            while(in.hasNext())
+            {
+                switch(in.nextName())
+                {
+                    case "version":
+                        if(in.nextInt() > LIBRARY_CACHE_VERSION)
+                        {
+                            System.err.println("Library cache more recent than current version; ignoring");
+                            reset();
+                            return false;
+                        }
+                        break;
+
+                    case "library":
+                        //Restore library songs
+                        in.beginArray();
+                        while(in.hasNext()) readSongJson(in, false);
+                        in.endArray();
+                        break;
+
+                    case "playlists":
+                        //Restore playlists
+                        in.beginArray();
+                        while(in.hasNext()) readPlaylistJson(in);
+                        in.endArray();
+                        break;
+
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            Library.generateLists();
+            return true;
+        }
+        catch(IOException | IllegalStateException | NumberFormatException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void readPlaylistJson(JsonReader in) throws IOException
+    {
+        String name = null;
+        String art = null;
+        String subtitle = "";
+        int source = -1;
+        Object id = null;
+        ArrayList<Song> songList = new ArrayList<>();
+
+        in.beginObject();
+        while(in.hasNext())
+        {
+            String field = in.nextName();
+            if(in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+
+            switch(field)
+            {
+                case "name":
+                    name = in.nextString();
+                    break;
+                case "art":
+                    art = in.nextString();
+                    break;
+                case "subtitle":
+                    subtitle = in.nextString();
+                    break;
+                case "source":
+                    source = in.nextInt();
+                    break;
+                case "id":
+                    id = in.peek() == JsonToken.NUMBER ? (Object) in.nextLong() : in.nextString();
+                    break;
+                case "songs":
+                    in.beginArray();
+                    while(in.hasNext()) songList.add(readSongJson(in, true));
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+
+        Source playlistSource = sourceAt(source);
+        if(name != null && playlistSource != null)
+            addPlaylist(name, songList, art, subtitle, playlistSource, id);
     }
 
     public static List<LibraryObject> search(String query)
     {
-        //TODO : improve search, for now we just do "contains", cringe
+        LibrarySearchIndex.Result found;
+        synchronized(searchLock)
+        {
+            found = live.searchIndex.search(query, SEARCH_LIMIT);
+        }
         ArrayList<LibraryObject> result = new ArrayList<>();
 
         //Add separator
         result.add(new Separator(BladeApplication.appContext.getString(R.string.songs)));
 
         //Add songs from library and handles
-        for(Song s : songs_list)
-            if(s.getName().toLowerCase().contains(query.toLowerCase()))
-                result.add(s);
-
-        for(Song s : handled_songs.values())
-            if(s.getName().toLowerCase().contains(query.toLowerCase()) && !result.contains(s))
-                result.add(s);
+        result.addAll(found.songs);
 
         //Add separator
         result.add(new Separator(BladeApplication.appContext.getString(R.string.albums)));
 
         //Add albums
-        for(Album a : albums_list)
-            if(a.getName().toLowerCase().contains(query.toLowerCase()))
-                result.add(a);
+        result.addAll(found.albums);
 
         //Add separator
         result.add(new Separator(BladeApplication.appContext.getString(R.string.artists)));
 
         //Add artists
-        for(Artist a : artists_list)
-            if(a.getName().toLowerCase().contains(query.toLowerCase()))
-                result.add(a);
+        result.addAll(found.artists);
 
         //Add separator
         result.add(new Separator(BladeApplication.appContext.getString(R.string.playlists)));
 
         //Add playlists
-        for(Playlist p : library_playlists)
-            if(p.getName().toLowerCase().contains(query.toLowerCase()))
-                result.add(p);
+        result.addAll(found.playlists);
 
         return result;
     }
@@ -0,0 +1,322 @@
+package v.blade.library;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import v.blade.sources.Source;
+import v.blade.sources.SourceInformation;
+
+/**
+ * Library objects : maps used to merge objects from every source, and what is generated from them
+ * (sorted lists, search index)
+ * Library publishes one content at a time ; synchronization builds new contents aside (see Library.publish)
+ */
+final class LibraryContent
+{
+    /* Library objects, by key (see Library) ; maps can be re-created pre-sized (see Library.expectSongs) */
+    ConcurrentHashMap<NameTable.Name, Artist> library_artists = new ConcurrentHashMap<>();
+    ConcurrentHashMap<LibraryKey, Album> library_albums = new ConcurrentHashMap<>();
+    ConcurrentHashMap<LibraryKey, Song> library_songs = new ConcurrentHashMap<>();
+    ArrayList<Playlist> library_playlists = new ArrayList<>();
+
+    /*
+     * 'Handled' : handles are 'objects' that are not in the library, but that we need in RAM
+     * For example, songs inside of playlists that are not in the library, or when
+     * doing a web search
+     */
+    final ConcurrentHashMap<NameTable.Name, Artist> handled_artists = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<LibraryKey, Album> handled_albums = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<LibraryKey, Song> handled_songs = new ConcurrentHashMap<>();
+
+    //Songs announced by ingest sessions (see Library.expectSongs)
+    int expectedSongs = 0;
+
+    /*
+     * Those are *sorted* lists, generated by sorting the content of HashMaps ; read by UI without
+     * locking, so they are never modified in place (see SortedLists)
+     */
+    volatile ArrayList<Artist> artists_list = new ArrayList<>();
+    volatile ArrayList<Album> albums_list = new ArrayList<>();
+    volatile ArrayList<Song> songs_list = new ArrayList<>();
+
+    //Index of library objects and handled songs, for search ; accessed holding Library searchLock
+    LibrarySearchIndex searchIndex = new LibrarySearchIndex();
+
+    Playlist findPlaylist(Source source, Object id)
+    {
+        for(Playlist p : library_playlists)
+        {
+            SourceInformation si = p.getSource();
+            if(si.source != source) continue;
+            if(si.id == null ? id == null : (si.id instanceof Number && id instanceof Number ?
+                    ((Number) si.id).longValue() == ((Number) id).longValue() : si.id.equals(id)))
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * Makes objects of this content that are unchanged since old content (same key, or same source
+     * playlist, and same state) be the old objects, in every reference of this content
+     * This way objects referenced outside of library (e.g. songs in play queue) stay valid
+     * Old objects are never modified (readers can still be reading old content) : an object is only
+     * unchanged if the objects it references are unchanged too, so a change (e.g. a song added to
+     * an album) also gives new objects to what references it (album songs, album artists)
+     * Only this content is modified, before it is published
+     */
+    void adoptIdentities(LibraryContent old)
+    {
+        IdentityHashMap<LibraryObject, LibraryObject> identities = new IdentityHashMap<>();
+        IdentityHashMap<LibraryObject, Boolean> claimed = new IdentityHashMap<>();
+
+        //Library objects first : when a library object and a handle have the same key, library object gets old identity
+        match(library_artists, old.library_artists, old.handled_artists, identities, claimed);
+        match(handled_artists, old.library_artists, old.handled_artists, identities, claimed);
+        match(library_albums, old.library_albums, old.handled_albums, identities, claimed);
+        match(handled_albums, old.library_albums, old.handled_albums, identities, claimed);
+        match(library_songs, old.library_songs, old.handled_songs, identities, claimed);
+        match(handled_songs, old.library_songs, old.handled_songs, identities, claimed);
+        for(Playlist p : library_playlists)
+        {
+            Playlist o = old.findPlaylist(p.getSource().source, p.getSource().id);
+            if(o != null && o != p && !claimed.containsKey(o))
+            {
+                identities.put(p, o);
+                claimed.put(o, Boolean.TRUE);
+            }
+        }
+
+        //Objects referencing each object, to check them again when it turns out to be changed
+        IdentityHashMap<LibraryObject, ArrayList<LibraryObject>> referrers = new IdentityHashMap<>();
+        for(LibraryObject object : identities.keySet())
+            for(LibraryObject reference : references(object)) referrers(referrers, reference).add(object);
+
+        ArrayDeque<LibraryObject> changed = new ArrayDeque<>();
+        for(Map.Entry<LibraryObject, LibraryObject> e : identities.entrySet())
+            if(!sameState(e.getKey(), e.getValue(), identities)) changed.add(e.getKey());
+        while(!changed.isEmpty())
+        {
+            LibraryObject object = changed.poll();
+            if(identities.remove(object) == null) continue;
+            ArrayList<LibraryObject> dependents = referrers.get(object);
+            if(dependents == null) continue;
+            for(LibraryObject d : dependents)
+            {
+                LibraryObject o = identities.get(d);
+                if(o != null && !sameState(d, o, identities)) changed.add(d);
+            }
+        }
+        if(identities.isEmpty()) return;
+
+        //References of new objects to unchanged objects now go to old objects
+        for(Artist a : library_artists.values()) replaceReferences(a, identities);
+        for(Artist a : handled_artists.values()) replaceReferences(a, identities);
+        for(Album a : library_albums.values()) replaceReferences(a, identities);
+        for(Album a : handled_albums.values()) replaceReferences(a, identities);
+        for(Song s : library_songs.values()) replaceReferences(s, identities);
+        for(Song s : handled_songs.values()) replaceReferences(s, identities);
+        for(Playlist p : library_playlists) replaceReferences(p, identities);
+
+        replace(library_artists, identities);
+        replace(handled_artists, identities);
+        replace(library_albums, identities);
+        replace(handled_albums, identities);
+        replace(library_songs, identities);
+        replace(handled_songs, identities);
+        library_playlists = identities(library_playlists, identities);
+        artists_list = identities(artists_list, identities);
+        albums_list = identities(albums_list, identities);
+        songs_list = identities(songs_list, identities);
+        searchIndex.replaceObjects(identities);
+    }
+
+    private static ArrayList<LibraryObject> referrers(IdentityHashMap<LibraryObject, ArrayList<LibraryObject>> referrers,
+                                                      LibraryObject object)
+    {
+        ArrayList<LibraryObject> list = referrers.get(object);
+        if(list == null)
+        {
+            list = new ArrayList<>();
+            referrers.put(object, list);
+        }
+        return list;
+    }
+
+    private static List<LibraryObject> references(LibraryObject object)
+    {
+        ArrayList<LibraryObject> references = new ArrayList<>();
+        if(object instanceof Artist)
+        {
+            references.addAll(((Artist) object).albums);
+        }
+        else if(object instanceof Album)
+        {
+            Collections.addAll(references, ((Album) object).artists);
+            references.addAll(((Album) object).songList);
+        }
+        else if(object instanceof Song)
+        {
+            Collections.addAll(references, ((Song) object).artists);
+            references.add(((Song) object).album);
+        }
+        else if(object instanceof Playlist)
+        {
+            references.addAll(((Playlist) object).songs);
+        }
+        return references;
+    }
+
+    /*
+     * Whether new object has the state of old object : same values, and references to the objects
+     * old object references (through identities)
+     */
+    private static boolean sameState(LibraryObject object, LibraryObject old,
+                                     IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        if(!equal(object.name, old.name) || !equal(object.imageStr, old.imageStr)) return false;
+
+        if(object instanceof Artist)
+        {
+            Artist a = (Artist) object;
+            Artist o = (Artist) old;
+            return a.track_count == o.track_count && sameObjects(a.albums, o.albums, identities);
+        }
+        if(object instanceof Album)
+        {
+            Album a = (Album) object;
+            Album o = (Album) old;
+            return equal(a.imageBigStr, o.imageBigStr) && a.imageLevel == o.imageLevel
+                    && sameObjects(Arrays.asList(a.artists), Arrays.asList(o.artists), identities)
+                    && sameObjects(a.songList, o.songList, identities);
+        }
+        if(object instanceof Song)
+        {
+            Song s = (Song) object;
+            Song o = (Song) old;
+            return s.track_number == o.track_number && s.duration == o.duration
+                    && identities.get(s.album) == o.album && sameSources(s.sources, o.sources)
+                    && sameObjects(Arrays.asList(s.artists), Arrays.asList(o.artists), identities);
+        }
+        if(object instanceof Playlist)
+        {
+            Playlist p = (Playlist) object;
+            Playlist o = (Playlist) old;
+            return equal(p.getSubtitle(), o.getSubtitle()) && sameObjects(p.songs, o.songs, identities);
+        }
+        return false;
+    }
+
+    private static boolean sameObjects(List<? extends LibraryObject> objects, List<? extends LibraryObject> old,
+                                       IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        if(objects.size() != old.size()) return false;
+        for(int i = 0; i < objects.size(); i++)
+            if(identities.get(objects.get(i)) != old.get(i)) return false;
+        return true;
+    }
+
+    private static boolean sameSources(List<SourceInformation> sources, List<SourceInformation> old)
+    {
+        if(sources.size() != old.size()) return false;
+        for(int i = 0; i < sources.size(); i++)
+        {
+            SourceInformation si = sources.get(i);
+            SourceInformation o = old.get(i);
+            if(si.source != o.source || si.handled != o.handled || !sameId(si.id, o.id)) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameId(Object id, Object old)
+    {
+        if(id == null || old == null) return id == old;
+        if(id instanceof Number && old instanceof Number) return ((Number) id).longValue() == ((Number) old).longValue();
+        return id.equals(old);
+    }
+
+    private static boolean equal(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /*
+     * Object is new (not yet published) : its references can be modified
+     */
+    private static void replaceReferences(LibraryObject object, IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        if(identities.containsKey(object)) return;
+
+        if(object instanceof Artist)
+        {
+            ((Artist) object).setAlbums(identities(((Artist) object).albums, identities));
+        }
+        else if(object instanceof Album)
+        {
+            ((Album) object).artists = identities(((Album) object).artists, identities);
+            ((Album) object).songList = identities(((Album) object).songList, identities);
+        }
+        else if(object instanceof Song)
+        {
+            ((Song) object).artists = identities(((Song) object).artists, identities);
+            ((Song) object).album = identity(((Song) object).album, identities);
+        }
+        else if(object instanceof Playlist)
+        {
+            ((Playlist) object).songs = identities(((Playlist) object).songs, identities);
+        }
+    }
+
+    private static <K, V extends LibraryObject> void match(Map<K, V> objects, Map<K, V> old, Map<K, V> oldHandles,
+                                                          IdentityHashMap<LibraryObject, LibraryObject> identities,
+                                                          IdentityHashMap<LibraryObject, Boolean> claimed)
+    {
+        for(Map.Entry<K, V> e : objects.entrySet())
+        {
+            V o = old.get(e.getKey());
+            if(o == null) o = oldHandles.get(e.getKey());
+            if(o == null || o == e.getValue() || claimed.containsKey(o) || identities.containsKey(e.getValue()))
+                continue;
+
+            identities.put(e.getValue(), o);
+            claimed.put(o, Boolean.TRUE);
+        }
+    }
+
+    private static <K, V extends LibraryObject> void replace(ConcurrentHashMap<K, V> objects,
+                                                            IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        for(Map.Entry<K, V> e : objects.entrySet())
+        {
+            V target = identity(e.getValue(), identities);
+            if(target != e.getValue()) objects.put(e.getKey(), target);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends LibraryObject> T identity(T object, IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        LibraryObject target = identities.get(object);
+        return target == null ? object : (T) target;
+    }
+
+    private static <T extends LibraryObject> ArrayList<T> identities(List<T> objects,
+                                                                    IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        ArrayList<T> result = new ArrayList<>(objects.size());
+        for(T object : objects) result.add(identity(object, identities));
+        return result;
+    }
+
+    private static Artist[] identities(Artist[] artists, IdentityHashMap<LibraryObject, LibraryObject> identities)
+    {
+        Artist[] result = new Artist[artists.length];
+        for(int i = 0; i < artists.length; i++) result[i] = identity(artists[i], identities);
+        return result;
+    }
+}
@@ -0,0 +1,467 @@
+package v.blade.library;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import v.blade.sources.Source;
+import v.blade.sources.SourceInformation;
+
+/**
+ * Append-only journal of user library edits (add/remove from library, playlist edits)
+ * Each edit is appended as a small record, instead of re-writing the whole library snapshot ;
+ * on load, the journal is replayed on top of the last snapshot
+ * <p>
+ * Record : length (int), payload (op + content), CRC32 of payload (int)
+ * A truncated or corrupted record (e.g. process killed while writing) ends the replay, and is
+ * removed from file, so that records appended after it are replayed
+ */
+final class LibraryJournal
+{
+    private static final byte OP_ADD_SONG = 1;
+    private static final byte OP_REMOVE_SONG = 2;
+    private static final byte OP_CREATE_PLAYLIST = 3;
+    private static final byte OP_REMOVE_PLAYLIST = 4;
+    private static final byte OP_ADD_TO_PLAYLIST = 5;
+    private static final byte OP_REMOVE_FROM_PLAYLIST = 6;
+
+    private static final int ID_NULL = 0;
+    private static final int ID_STRING = 1;
+    private static final int ID_LONG = 2;
+
+    private final File file;
+    private DataOutputStream out;
+    private long size;
+
+    LibraryJournal(File file)
+    {
+        this.file = file;
+        this.size = file.length();
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    void addSong(Song song)
+    {
+        append(OP_ADD_SONG, null, null, song);
+    }
+
+    void removeSong(Song song)
+    {
+        append(OP_REMOVE_SONG, null, null, song);
+    }
+
+    void createPlaylist(Playlist playlist)
+    {
+        append(OP_CREATE_PLAYLIST, playlist, playlist.getName(), null);
+    }
+
+    void removePlaylist(Playlist playlist)
+    {
+        append(OP_REMOVE_PLAYLIST, playlist, null, null);
+    }
+
+    void addToPlaylist(Playlist playlist, Song song)
+    {
+        append(OP_ADD_TO_PLAYLIST, playlist, null, song);
+    }
+
+    void removeFromPlaylist(Playlist playlist, Song song)
+    {
+        append(OP_REMOVE_FROM_PLAYLIST, playlist, null, song);
+    }
+
+    /**
+     * Removes every record ; to be called once the library snapshot contains all of them
+     */
+    void truncate()
+    {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        size = 0;
+    }
+
+    /**
+     * Removes the records before offset (e.g. the records a library snapshot contains) ; records
+     * appended after them are kept
+     */
+    void truncateBefore(long offset)
+    {
+        if(offset >= size)
+        {
+            truncate();
+            return;
+        }
+        if(offset <= 0) return;
+
+        close();
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try(FileInputStream in = new FileInputStream(file); FileOutputStream kept = new FileOutputStream(tmp))
+        {
+            long end = file.length();
+            long position = offset;
+            while(position < end)
+            {
+                long transferred = in.getChannel().transferTo(position, end - position, kept.getChannel());
+                if(transferred <= 0) break;
+                position += transferred;
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Could not truncate library journal : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+
+        if(!tmp.renameTo(file))
+        {
+            System.err.println("BLADE: Could not truncate library journal : could not replace file");
+            return;
+        }
+        size = file.length();
+    }
+
+    void close()
+    {
+        if(out == null) return;
+        try
+        {
+            out.close();
+        }
+        catch(IOException ignored)
+        {
+        }
+        out = null;
+    }
+
+    private void append(byte op, Playlist playlist, String playlistName, Song song)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(op);
+            if(playlist != null) writePlaylistRef(record, playlist);
+            if(playlistName != null) writeString(record, playlistName);
+            if(song != null) writeSong(record, song);
+            record.flush();
+
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            if(out == null)
+            {
+                FileOutputStream stream = new FileOutputStream(file, true);
+                out = new DataOutputStream(stream);
+                //A failed append can leave a torn record : records appended after it would not be replayed
+                if(stream.getChannel().size() > size) stream.getChannel().truncate(size);
+            }
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            size += payload.length + 8;
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Could not write library journal : " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Replays all records on Library ; must be called while the journal is not attached to
+     * Library, so that replayed edits are not recorded again
+     * @return number of replayed records
+     */
+    int replay()
+    {
+        if(!file.exists()) return 0;
+
+        int count = 0;
+        //End of last valid record : what follows is a torn or corrupted record
+        long valid = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while(true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch(EOFException end)
+                {
+                    break;
+                }
+                if(length <= 0 || length > (1 << 20)) break;
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int expectedCrc = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payload.length);
+                if((int) crc.getValue() != expectedCrc) break;
+
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                count++;
+                valid += length + 8;
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Library journal truncated after " + count + " records");
+        }
+
+        if(valid < file.length())
+        {
+            //New records are appended after the last valid one
+            try(FileOutputStream truncated = new FileOutputStream(file, true))
+            {
+                truncated.getChannel().truncate(valid);
+            }
+            catch(IOException e)
+            {
+                System.err.println("BLADE: Could not truncate library journal : " + e.getMessage());
+            }
+        }
+        size = file.length();
+
+        System.out.println("BLADE: Replayed " + count + " library journal records");
+        return count;
+    }
+
+    private static void apply(DataInputStream in) throws IOException
+    {
+        byte op = in.readByte();
+        switch(op)
+        {
+            case OP_ADD_SONG:
+            {
+                Song song = readSong(in);
+                if(song != null) Library.addSongFromHandle(song);
+                break;
+            }
+            case OP_REMOVE_SONG:
+            {
+                Song song = readSong(in);
+                if(song != null && Library.contains(song)) Library.removeSong(song);
+                break;
+            }
+            case OP_CREATE_PLAYLIST:
+            {
+                Source source = readSource(in.readInt());
+                Object id = readId(in);
+                String name = readString(in);
+                if(source != null && Library.findPlaylist(source, id) == null)
+                    Library.addPlaylist(name, new ArrayList<>(), null, "", source, id);
+                break;
+            }
+            case OP_REMOVE_PLAYLIST:
+            {
+                Playlist playlist = readPlaylistRef(in);
+                if(playlist != null) Library.removePlaylist(playlist);
+                break;
+            }
+            case OP_ADD_TO_PLAYLIST:
+            {
+                Playlist playlist = readPlaylistRef(in);
+                Song song = readSong(in);
+                if(playlist != null && song != null) Library.addSongToPlaylist(song, playlist);
+                break;
+            }
+            case OP_REMOVE_FROM_PLAYLIST:
+            {
+                Playlist playlist = readPlaylistRef(in);
+                Song song = readSong(in);
+                if(playlist != null && song != null) Library.removeSongFromPlaylist(song, playlist);
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    private static void writePlaylistRef(DataOutputStream out, Playlist playlist) throws IOException
+    {
+        out.writeInt(playlist.getSource().source.getIndex());
+        writeId(out, playlist.getSource().id);
+    }
+
+    private static Playlist readPlaylistRef(DataInputStream in) throws IOException
+    {
+        Source source = readSource(in.readInt());
+        Object id = readId(in);
+        return source == null ? null : Library.findPlaylist(source, id);
+    }
+
+    private static void writeSong(DataOutputStream out, Song song) throws IOException
+    {
+        writeString(out, song.name);
+        writeString(out, song.album.name);
+        out.writeInt(song.track_number);
+        writeString(out, song.album.imageStr);
+        writeString(out, song.album.imageBigStr);
+        out.writeInt(song.album.imageLevel);
+
+        out.writeInt(song.artists.length);
+        for(Artist a : song.artists)
+        {
+            writeString(out, a.name);
+            writeString(out, a.imageStr);
+        }
+        out.writeInt(song.album.artists.length);
+        for(Artist a : song.album.artists)
+        {
+            writeString(out, a.name);
+            writeString(out, a.imageStr);
+        }
+
+        out.writeInt(song.sources.size());
+        for(SourceInformation si : song.sources)
+        {
+            out.writeInt(si.source.getIndex());
+            out.writeBoolean(si.handled);
+            writeId(out, si.id);
+        }
+        out.writeInt(song.duration);
+    }
+
+    /*
+     * Obtains the song described by the record ; the song is added as a handle if needed,
+     * then its sources 'handled' state is restored as recorded
+     */
+    private static Song readSong(DataInputStream in) throws IOException
+    {
+        String name = readString(in);
+        String album = readString(in);
+        int trackNumber = in.readInt();
+        String albumArt = readString(in);
+        String albumArtBig = readString(in);
+        int albumImageLevel = in.readInt();
+
+        String[] artists = new String[in.readInt()];
+        String[] artistsImages = new String[artists.length];
+        for(int i = 0; i < artists.length; i++)
+        {
+            artists[i] = readString(in);
+            artistsImages[i] = readString(in);
+        }
+        String[] aartists = new String[in.readInt()];
+        String[] aartistsImages = new String[aartists.length];
+        for(int i = 0; i < aartists.length; i++)
+        {
+            aartists[i] = readString(in);
+            aartistsImages[i] = readString(in);
+        }
+
+        int sourceCount = in.readInt();
+        Source[] sources = new Source[sourceCount];
+        boolean[] handled = new boolean[sourceCount];
+        Object[] ids = new Object[sourceCount];
+        for(int i = 0; i < sourceCount; i++)
+        {
+            sources[i] = readSource(in.readInt());
+            handled[i] = in.readBoolean();
+            ids[i] = readId(in);
+        }
+        //Song is last in records ; records written before durations end here
+        int duration = in.available() >= 4 ? in.readInt() : 0;
+        if(artists.length == 0) return null;
+
+        Song song = Library.addSongHandle(name, album, artists, sourceCount == 0 ? null : sources[0],
+                sourceCount == 0 ? null : ids[0], aartists, albumArt, trackNumber, artistsImages,
+                aartistsImages, albumArtBig, albumImageLevel, duration);
+        for(int i = 0; i < sourceCount; i++)
+        {
+            if(sources[i] == null) continue;
+
+            SourceInformation current = null;
+            for(SourceInformation si : song.getSources())
+            {
+                if(si.source == sources[i])
+                {
+                    current = si;
+                    break;
+                }
+            }
+
+            if(current == null) song.addSource(sources[i], ids[i], handled[i]);
+            else current.handled = handled[i];
+        }
+
+        return song;
+    }
+
+    private static Source readSource(int index)
+    {
+        if(index < 0 || index >= Source.SOURCES.size()) return null;
+        return Source.SOURCES.get(index);
+    }
+
+    private static void writeId(DataOutputStream out, Object id) throws IOException
+    {
+        if(id == null) out.writeByte(ID_NULL);
+        else if(id instanceof Number)
+        {
+            out.writeByte(ID_LONG);
+            out.writeLong(((Number) id).longValue());
+        }
+        else
+        {
+            out.writeByte(ID_STRING);
+            writeString(out, id.toString());
+        }
+    }
+
+    private static Object readId(DataInputStream in) throws IOException
+    {
+        switch(in.readByte())
+        {
+            case ID_LONG:
+                return in.readLong();
+            case ID_STRING:
+                return readString(in);
+            default:
+                return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if(s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if(length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,57 @@
+package v.blade.library;
+
+/**
+ * Composite key for library HashMaps : (album artist, album) for albums,
+ * (artist, album, title) for songs
+ * Its parts are interned Names, so hash is computed from cached hashes and equality only
+ * compares references ; a key can be re-used as a 'probe' for lookups, and is only
+ * copied when it is inserted in a map
+ */
+final class LibraryKey
+{
+    private NameTable.Name first;
+    private NameTable.Name second;
+    private NameTable.Name third;
+    private int hash;
+
+    LibraryKey set(NameTable.Name first, NameTable.Name second, NameTable.Name third)
+    {
+        this.first = first;
+        this.second = second;
+        this.third = third;
+        this.hash = (31 * (31 * hashOf(first) + hashOf(second))) + hashOf(third);
+        return this;
+    }
+
+    LibraryKey copy()
+    {
+        return new LibraryKey().set(first, second, third);
+    }
+
+    private static int hashOf(NameTable.Name name)
+    {
+        return name == null ? 0 : name.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o) return true;
+        if(!(o instanceof LibraryKey)) return false;
+
+        LibraryKey other = (LibraryKey) o;
+        return hash == other.hash && first == other.first && second == other.second && third == other.third;
+    }
+
+    @Override
+    public String toString()
+    {
+        return first + ":" + second + (third == null ? "" : ":" + third);
+    }
+}
@@ -12,12 +12,29 @@ public abstract class LibraryObject
     protected ArrayList<SourceInformation> sources;
     protected RequestCreator imageRequest = null;
     protected String imageStr = null;
+    //Case-folded name, computed once : used as key for sorted library lists
+    private String sortKey = null;
 
     public String getName()
     {
         return name;
     }
 
+    String getSortKey()
+    {
+        if(sortKey == null) sortKey = name == null ? "" : name.toLowerCase();
+        return sortKey;
+    }
+
+    /*
+     * Object was renamed at source (see Song.update)
+     */
+    void setName(String name)
+    {
+        this.name = name;
+        this.sortKey = null;
+    }
+
     public RequestCreator getImageRequest()
     {
         return imageRequest;
@@ -0,0 +1,408 @@
+package v.blade.library;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory full-text index over library objects names (and song artists/album)
+ * Names are folded (lowercase, without diacritics) and split in terms ; a query term matches
+ * the terms it is a prefix of (sorted term dictionary), or that contain it (trigram index
+ * over the dictionary). Every query term has to match, in any field ; results are ranked
+ * by field and match quality
+ * <p>
+ * Objects are numbered, and postings/scores are int arrays, so that a query does not
+ * allocate for every matched object (search is done on every keystroke)
+ * Not thread-safe : used while holding Library lock
+ */
+final class LibrarySearchIndex
+{
+    /* Field weights : a match on a name is better than a match on artist or album */
+    private static final int FIELD_NAME = 4;
+    private static final int FIELD_ARTIST = 2;
+    private static final int FIELD_ALBUM = 1;
+
+    /* Match quality multipliers */
+    private static final int MATCH_EXACT = 3;
+    private static final int MATCH_PREFIX = 2;
+    private static final int MATCH_INFIX = 1;
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{Mn}+");
+    private static final String[] NO_TERMS = new String[0];
+
+    /*
+     * Objects containing a term, with the weight of the best field containing it
+     */
+    private static final class Postings
+    {
+        int[] ids = new int[2];
+        int[] weights = new int[2];
+        int size;
+
+        void add(int id, int weight)
+        {
+            if(size == ids.length)
+            {
+                ids = Arrays.copyOf(ids, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            ids[size] = id;
+            weights[size] = weight;
+            size++;
+        }
+
+        void remove(int id)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                if(ids[i] == id)
+                {
+                    size--;
+                    ids[i] = ids[size];
+                    weights[i] = weights[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    //trigram -> terms containing that trigram
+    private final HashMap<String, HashSet<String>> trigrams = new HashMap<>();
+
+    //Objects by id, with their terms ; ids of removed objects are re-used
+    private final ArrayList<LibraryObject> objects = new ArrayList<>();
+    private final ArrayList<String[]> objectTerms = new ArrayList<>();
+    private final HashMap<LibraryObject, Integer> ids = new HashMap<>();
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    //Artists and albums names are repeated on lots of songs : cache their folded terms
+    private final HashMap<String, String[]> termsCache = new HashMap<>();
+
+    /* Query state, re-used between queries ; termScores are valid where termStamps == stamp */
+    private int[] termScores = new int[0];
+    private int[] termStamps = new int[0];
+    private int[] totalScores = new int[0];
+    private int stamp = 0;
+    private int[] matched = new int[16];
+    private int matchedCount = 0;
+
+    /**
+     * Result of a query, grouped by object type and ranked
+     */
+    static final class Result
+    {
+        final ArrayList<Song> songs = new ArrayList<>();
+        final ArrayList<Album> albums = new ArrayList<>();
+        final ArrayList<Artist> artists = new ArrayList<>();
+        final ArrayList<Playlist> playlists = new ArrayList<>();
+    }
+
+    void add(LibraryObject object)
+    {
+        if(ids.containsKey(object)) return;
+
+        HashMap<String, Integer> fields = new HashMap<>();
+        addField(fields, object.getName(), FIELD_NAME);
+        if(object instanceof Song)
+        {
+            Song song = (Song) object;
+            for(Artist a : song.artists) addField(fields, a.name, FIELD_ARTIST);
+            if(song.album != null) addField(fields, song.album.name, FIELD_ALBUM);
+        }
+        else if(object instanceof Album)
+        {
+            for(Artist a : ((Album) object).artists) addField(fields, a.name, FIELD_ARTIST);
+        }
+
+        int id;
+        String[] terms = fields.keySet().toArray(NO_TERMS);
+        if(freeCount > 0)
+        {
+            id = freeIds[--freeCount];
+            objects.set(id, object);
+            objectTerms.set(id, terms);
+        }
+        else
+        {
+            id = objects.size();
+            objects.add(object);
+            objectTerms.add(terms);
+        }
+        ids.put(object, id);
+
+        for(Map.Entry<String, Integer> field : fields.entrySet())
+        {
+            Postings termPostings = postings.get(field.getKey());
+            if(termPostings == null)
+            {
+                termPostings = new Postings();
+                postings.put(field.getKey(), termPostings);
+                addTrigrams(field.getKey());
+            }
+            termPostings.add(id, field.getValue());
+        }
+    }
+
+    void remove(LibraryObject object)
+    {
+        Integer id = ids.remove(object);
+        if(id == null) return;
+
+        for(String term : objectTerms.get(id))
+        {
+            Postings termPostings = postings.get(term);
+            if(termPostings == null) continue;
+            termPostings.remove(id);
+            if(termPostings.size == 0)
+            {
+                postings.remove(term);
+                removeTrigrams(term);
+            }
+        }
+
+        objects.set(id, null);
+        objectTerms.set(id, null);
+        if(freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Replaces indexed objects by the objects they are mapped to, with the same terms
+     * (see LibraryContent.adoptIdentities)
+     */
+    void replaceObjects(Map<LibraryObject, LibraryObject> replacements)
+    {
+        for(int id = 0; id < objects.size(); id++)
+        {
+            LibraryObject object = objects.get(id);
+            LibraryObject replacement = object == null ? null : replacements.get(object);
+            if(replacement == null) continue;
+
+            objects.set(id, replacement);
+            ids.remove(object);
+            ids.put(replacement, id);
+        }
+    }
+
+    /**
+     * @param limit maximum number of results for each object type
+     */
+    Result search(String query, int limit)
+    {
+        Result result = new Result();
+        String[] queryTerms = split(fold(query));
+        if(queryTerms.length == 0 || limit <= 0) return result;
+
+        if(termScores.length < objects.size())
+        {
+            int capacity = Math.max(objects.size(), termScores.length * 2);
+            termScores = new int[capacity];
+            termStamps = new int[capacity];
+            totalScores = new int[capacity];
+        }
+
+        //Candidates are the objects matching first term ; then keep the ones matching every other term
+        match(queryTerms[0]);
+        int[] candidates = Arrays.copyOf(matched, matchedCount);
+        int count = candidates.length;
+        for(int i = 0; i < count; i++) totalScores[candidates[i]] = termScores[candidates[i]];
+        for(int t = 1; t < queryTerms.length && count > 0; t++)
+        {
+            match(queryTerms[t]);
+            int kept = 0;
+            for(int i = 0; i < count; i++)
+            {
+                int id = candidates[i];
+                if(termStamps[id] != stamp) continue;
+                totalScores[id] += termScores[id];
+                candidates[kept++] = id;
+            }
+            count = kept;
+        }
+
+        rank(candidates, count, limit, Song.class, result.songs);
+        rank(candidates, count, limit, Album.class, result.albums);
+        rank(candidates, count, limit, Artist.class, result.artists);
+        rank(candidates, count, limit, Playlist.class, result.playlists);
+        return result;
+    }
+
+    /*
+     * Scores objects for query term (prefix matches from dictionary, infix matches from trigrams) ;
+     * matched ids are put in 'matched'
+     */
+    private void match(String queryTerm)
+    {
+        stamp++;
+        matchedCount = 0;
+
+        for(Map.Entry<String, Postings> e : postings.subMap(queryTerm, queryTerm + Character.MAX_VALUE).entrySet())
+            score(e.getValue(), e.getKey().length() == queryTerm.length() ? MATCH_EXACT : MATCH_PREFIX);
+
+        for(String term : infixTerms(queryTerm))
+            score(postings.get(term), MATCH_INFIX);
+    }
+
+    private void score(Postings termPostings, int quality)
+    {
+        if(termPostings == null) return;
+        for(int i = 0; i < termPostings.size; i++)
+        {
+            int id = termPostings.ids[i];
+            int score = termPostings.weights[i] * quality;
+            if(termStamps[id] != stamp)
+            {
+                termStamps[id] = stamp;
+                termScores[id] = score;
+                if(matchedCount == matched.length) matched = Arrays.copyOf(matched, matchedCount * 2);
+                matched[matchedCount++] = id;
+            }
+            else if(termScores[id] < score) termScores[id] = score;
+        }
+    }
+
+    /*
+     * Keeps the 'limit' best candidates of type, in order (bounded insertion, with binary search)
+     */
+    private <T extends LibraryObject> void rank(int[] candidates, int count, int limit, Class<T> type, List<T> into)
+    {
+        int[] best = new int[limit];
+        int size = 0;
+        for(int i = 0; i < count; i++)
+        {
+            int id = candidates[i];
+            if(!type.isInstance(objects.get(id))) continue;
+            if(size == limit && !ranksBefore(id, best[size - 1])) continue;
+
+            //Binary search of position, then shift worse ones (dropping the last one if full)
+            int low = 0;
+            int high = size == limit ? size - 1 : size;
+            while(low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if(ranksBefore(id, best[mid])) high = mid;
+                else low = mid + 1;
+            }
+            int moved = (size == limit ? size - 1 : size) - low;
+            System.arraycopy(best, low, best, low + 1, moved);
+            best[low] = id;
+            if(size < limit) size++;
+        }
+
+        for(int i = 0; i < size; i++) into.add(type.cast(objects.get(best[i])));
+    }
+
+    //Best score first, then by name
+    private boolean ranksBefore(int id, int other)
+    {
+        if(totalScores[id] != totalScores[other]) return totalScores[id] > totalScores[other];
+        return objects.get(id).getSortKey().compareTo(objects.get(other).getSortKey()) < 0;
+    }
+
+    /*
+     * Terms containing queryTerm, but not starting with it (those are prefix matches)
+     */
+    private List<String> infixTerms(String queryTerm)
+    {
+        if(queryTerm.length() < 3) return Collections.emptyList();
+
+        //Intersect terms of every query trigram, starting from the smallest set
+        HashSet<String> smallest = null;
+        for(int i = 0; i + 3 <= queryTerm.length(); i++)
+        {
+            HashSet<String> terms = trigrams.get(queryTerm.substring(i, i + 3));
+            if(terms == null) return Collections.emptyList();
+            if(smallest == null || terms.size() < smallest.size()) smallest = terms;
+        }
+
+        ArrayList<String> result = new ArrayList<>();
+        //noinspection ConstantConditions
+        for(String term : smallest)
+            if(!term.startsWith(queryTerm) && term.contains(queryTerm))
+                result.add(term);
+        return result;
+    }
+
+    private void addField(HashMap<String, Integer> fields, String value, int weight)
+    {
+        if(value == null) return;
+
+        String[] valueTerms = termsCache.get(value);
+        if(valueTerms == null)
+        {
+            valueTerms = split(fold(value));
+            termsCache.put(value, valueTerms);
+        }
+
+        for(String term : valueTerms)
+        {
+            Integer current = fields.get(term);
+            if(current == null || current < weight) fields.put(term, weight);
+        }
+    }
+
+    private void addTrigrams(String term)
+    {
+        for(int i = 0; i + 3 <= term.length(); i++)
+        {
+            String trigram = term.substring(i, i + 3);
+            HashSet<String> terms = trigrams.get(trigram);
+            if(terms == null)
+            {
+                terms = new HashSet<>();
+                trigrams.put(trigram, terms);
+            }
+            terms.add(term);
+        }
+    }
+
+    private void removeTrigrams(String term)
+    {
+        for(int i = 0; i + 3 <= term.length(); i++)
+        {
+            String trigram = term.substring(i, i + 3);
+            HashSet<String> terms = trigrams.get(trigram);
+            if(terms == null) continue;
+            terms.remove(term);
+            if(terms.isEmpty()) trigrams.remove(trigram);
+        }
+    }
+
+    /**
+     * Lowercase, without diacritics (e.g. accented "e" becomes "e")
+     */
+    static String fold(String s)
+    {
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase();
+    }
+
+    /**
+     * Splits folded string in terms (letters and digits sequences)
+     */
+    static String[] split(String folded)
+    {
+        ArrayList<String> terms = new ArrayList<>();
+        int start = -1;
+        for(int i = 0; i <= folded.length(); i++)
+        {
+            boolean inTerm = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if(inTerm && start == -1) start = i;
+            else if(!inTerm && start != -1)
+            {
+                terms.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms.toArray(NO_TERMS);
+    }
+}
@@ -0,0 +1,499 @@
+package v.blade.library;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import v.blade.sources.Source;
+import v.blade.sources.SourceInformation;
+
+/**
+ * Binary library snapshot, replacing the old library.json cache
+ * It is read through a memory-mapped FileChannel, so that cold start does not need to read
+ * and parse a (huge) JSON String
+ * <p>
+ * Layout (big endian) :
+ * - header : magic, version
+ * - string table : every String (names, image urls, string ids), deduplicated
+ * - artists : fixed-width records (name, image)
+ * - albums : fixed-width records (name, images, image level, artists in artist refs)
+ * - artist refs : indexes of artists, referenced by albums and songs
+ * - songs : fixed-width records (title, album, track number, artists in artist refs, flags, duration)
+ * - ids : one section per source, with (song, id) records
+ * - playlists : variable-width records (name, art, subtitle, source, id, songs)
+ * Strings, artists, albums and songs are referenced by their index in their table ; -1 is null
+ */
+final class LibrarySnapshot
+{
+    private static final int MAGIC = 0x424C4442; //'BLDB'
+    private static final int VERSION = 2;
+    //Song records of version 1 have no duration
+    private static final int SONG_RECORD_INTS_V1 = 6;
+    private static final int SONG_RECORD_INTS = 7;
+
+    private static final int SONG_FLAG_LIBRARY = 1;
+
+    private static final int ID_NULL = 0;
+    private static final int ID_STRING = 1;
+    private static final int ID_LONG = 2;
+
+    private LibrarySnapshot()
+    {
+    }
+
+    /**
+     * Library state captured for writing : every object is read once, and its record captured with
+     * the indexes of what it references ; capture needs library lock, writing it to file does not
+     * Objects are indexed by identity, strings by value
+     */
+    static class Capture
+    {
+        private final HashMap<String, Integer> strings = new HashMap<>();
+        private final ArrayList<String> stringList = new ArrayList<>();
+        private final IdentityHashMap<Artist, Integer> artists = new IdentityHashMap<>();
+        //name, image
+        private final ArrayList<int[]> artistRecords = new ArrayList<>();
+        private final IdentityHashMap<Album, Integer> albums = new IdentityHashMap<>();
+        //name, image, big image, image level, then artists
+        private final ArrayList<int[]> albumRecords = new ArrayList<>();
+        private final IdentityHashMap<Song, Integer> songs = new IdentityHashMap<>();
+        //name, album, track number, duration, then artists
+        private final ArrayList<int[]> songRecords = new ArrayList<>();
+        //Song ids, by source : song, id type, id value
+        private final HashMap<Source, ArrayList<long[]>> idSections = new HashMap<>();
+        //name, art, subtitle, source, id type, then songs ; id value
+        private final ArrayList<int[]> playlistRecords = new ArrayList<>();
+        private final ArrayList<Long> playlistIds = new ArrayList<>();
+        private int artistRefCount = 0;
+        private final int libraryCount;
+
+        /**
+         * Captures library songs and playlists (with their songs, handled or not)
+         */
+        Capture(List<Song> librarySongs, List<Playlist> playlists)
+        {
+            //Library songs come first : on read, they have to be added before handles
+            for(Song s : librarySongs) song(s);
+            libraryCount = songRecords.size();
+            for(Playlist p : playlists) playlist(p);
+        }
+
+        private int string(String s)
+        {
+            if(s == null) return -1;
+            Integer index = strings.get(s);
+            if(index == null)
+            {
+                index = stringList.size();
+                strings.put(s, index);
+                stringList.add(s);
+            }
+            return index;
+        }
+
+        private long idValue(Object id)
+        {
+            if(id == null) return 0;
+            if(id instanceof Number) return ((Number) id).longValue();
+            return string(id.toString());
+        }
+
+        private int artist(Artist a)
+        {
+            Integer index = artists.get(a);
+            if(index != null) return index;
+
+            index = artistRecords.size();
+            artists.put(a, index);
+            artistRecords.add(new int[]{string(a.name), string(a.imageStr)});
+            return index;
+        }
+
+        private int album(Album a)
+        {
+            Integer index = albums.get(a);
+            if(index != null) return index;
+
+            index = albumRecords.size();
+            albums.put(a, index);
+            Artist[] albumArtists = a.artists;
+            int[] record = new int[4 + albumArtists.length];
+            albumRecords.add(record);
+            record[0] = string(a.name);
+            record[1] = string(a.imageStr);
+            record[2] = string(a.imageBigStr);
+            record[3] = a.imageLevel;
+            for(int i = 0; i < albumArtists.length; i++) record[4 + i] = artist(albumArtists[i]);
+            artistRefCount += albumArtists.length;
+            return index;
+        }
+
+        private int song(Song s)
+        {
+            Integer index = songs.get(s);
+            if(index != null) return index;
+
+            index = songRecords.size();
+            songs.put(s, index);
+            Artist[] songArtists = s.artists;
+            int[] record = new int[4 + songArtists.length];
+            songRecords.add(record);
+            record[0] = string(s.name);
+            record[1] = album(s.album);
+            record[2] = s.track_number;
+            record[3] = s.duration;
+            for(int i = 0; i < songArtists.length; i++) record[4 + i] = artist(songArtists[i]);
+            artistRefCount += songArtists.length;
+
+            //Sources are added holding song monitor (see Song.addSource)
+            ArrayList<SourceInformation> sources;
+            synchronized(s)
+            {
+                sources = new ArrayList<>(s.sources);
+            }
+            for(SourceInformation si : sources)
+            {
+                ArrayList<long[]> section = idSections.get(si.source);
+                if(section == null)
+                {
+                    section = new ArrayList<>();
+                    idSections.put(si.source, section);
+                }
+                Object id = si.id;
+                section.add(new long[]{index, idType(id), idValue(id)});
+            }
+            return index;
+        }
+
+        private void playlist(Playlist p)
+        {
+            List<Song> songs = p.getSongs();
+            Object id = p.getSource().id;
+            int[] record = new int[5 + songs.size()];
+            playlistRecords.add(record);
+            record[0] = string(p.name);
+            record[1] = string(p.imageStr);
+            record[2] = string(p.getSubtitle());
+            record[3] = p.getSource().source.getIndex();
+            record[4] = idType(id);
+            playlistIds.add(idValue(id));
+            for(int i = 0; i < songs.size(); i++) record[5 + i] = song(songs.get(i));
+        }
+    }
+
+    private static int idType(Object id)
+    {
+        if(id == null) return ID_NULL;
+        if(id instanceof Number) return ID_LONG;
+        return ID_STRING;
+    }
+
+    private static Object readId(int type, long value, String[] strings)
+    {
+        switch(type)
+        {
+            case ID_STRING:
+                return strings[(int) value];
+            case ID_LONG:
+                return value;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writes captured library to file
+     * The snapshot is written to a temporary file first, synced, then renamed ; the rename is durable
+     * once the directory is synced (see Library.save)
+     */
+    static void write(File file, Capture w) throws IOException
+    {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try(FileOutputStream stream = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            //String table
+            out.writeInt(w.stringList.size());
+            for(String s : w.stringList)
+            {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            //Artists
+            out.writeInt(w.artistRecords.size());
+            for(int[] a : w.artistRecords)
+            {
+                out.writeInt(a[0]);
+                out.writeInt(a[1]);
+            }
+
+            //Albums, and their artists in artist refs
+            int artistRef = 0;
+            out.writeInt(w.albumRecords.size());
+            for(int[] a : w.albumRecords)
+            {
+                out.writeInt(a[0]);
+                out.writeInt(a[1]);
+                out.writeInt(a[2]);
+                out.writeInt(a[3]);
+                out.writeInt(artistRef);
+                out.writeInt(a.length - 4);
+                artistRef += a.length - 4;
+            }
+
+            //Songs, and their artists in artist refs
+            out.writeInt(w.songRecords.size());
+            for(int i = 0; i < w.songRecords.size(); i++)
+            {
+                int[] s = w.songRecords.get(i);
+                out.writeInt(s[0]);
+                out.writeInt(s[1]);
+                out.writeInt(s[2]);
+                out.writeInt(artistRef);
+                out.writeInt(s.length - 4);
+                out.writeInt(i < w.libraryCount ? SONG_FLAG_LIBRARY : 0);
+                out.writeInt(s[3]);
+                artistRef += s.length - 4;
+            }
+
+            //Artist refs : albums then songs, in the order used above
+            out.writeInt(w.artistRefCount);
+            for(int[] a : w.albumRecords)
+                for(int i = 4; i < a.length; i++) out.writeInt(a[i]);
+            for(int[] s : w.songRecords)
+                for(int i = 4; i < s.length; i++) out.writeInt(s[i]);
+
+            //Per-source id sections
+            out.writeInt(w.idSections.size());
+            for(Source source : w.idSections.keySet())
+            {
+                ArrayList<long[]> section = w.idSections.get(source);
+
+                out.writeInt(source.getIndex());
+                //noinspection ConstantConditions
+                out.writeInt(section.size());
+                for(long[] id : section)
+                {
+                    out.writeInt((int) id[0]);
+                    out.writeInt((int) id[1]);
+                    out.writeLong(id[2]);
+                }
+            }
+
+            //Playlists
+            out.writeInt(w.playlistRecords.size());
+            for(int i = 0; i < w.playlistRecords.size(); i++)
+            {
+                int[] p = w.playlistRecords.get(i);
+                out.writeInt(p[0]);
+                out.writeInt(p[1]);
+                out.writeInt(p[2]);
+                out.writeInt(p[3]);
+                out.writeInt(p[4]);
+                out.writeLong(w.playlistIds.get(i));
+                out.writeInt(p.length - 5);
+                for(int j = 5; j < p.length; j++) out.writeInt(p[j]);
+            }
+
+            //Snapshot has to be on disk before it replaces the previous one
+            out.flush();
+            stream.getFD().sync();
+        }
+
+        if(!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp.getName() + " to " + file.getName());
+    }
+
+    /**
+     * Reads a snapshot file into Library
+     *
+     * @return false if file is not a snapshot, or is more recent than what we can read
+     */
+    static boolean read(File file) throws IOException
+    {
+        try(FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel())
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(buffer.remaining() < 8 || buffer.getInt() != MAGIC) return false;
+            int version = buffer.getInt();
+            if(version > VERSION)
+            {
+                System.err.println("Library snapshot more recent than current version; ignoring");
+                return false;
+            }
+
+            //String table
+            String[] strings = new String[buffer.getInt()];
+            byte[] scratch = new byte[256];
+            for(int i = 0; i < strings.length; i++)
+            {
+                int length = buffer.getInt();
+                if(length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                buffer.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            //Artists
+            int artistCount = buffer.getInt();
+            String[] artistNames = new String[artistCount];
+            String[] artistImages = new String[artistCount];
+            for(int i = 0; i < artistCount; i++)
+            {
+                artistNames[i] = string(strings, buffer.getInt());
+                artistImages[i] = string(strings, buffer.getInt());
+            }
+
+            //Albums : fixed-width records, read in place later
+            int albumCount = buffer.getInt();
+            int albumsPosition = buffer.position();
+            buffer.position(albumsPosition + albumCount * 6 * 4);
+
+            //Songs : fixed-width records, read in place later
+            int songCount = buffer.getInt();
+            int songsPosition = buffer.position();
+            int songRecordInts = version < 2 ? SONG_RECORD_INTS_V1 : SONG_RECORD_INTS;
+            buffer.position(songsPosition + songCount * songRecordInts * 4);
+
+            //Artist refs
+            int[] artistRefs = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(artistRefs);
+            buffer.position(buffer.position() + artistRefs.length * 4);
+
+            //Ids : we need them before creating songs
+            Source[] primarySource = new Source[songCount];
+            Object[] primaryId = new Object[songCount];
+            ArrayList<Source> otherSources = new ArrayList<>();
+            ArrayList<Object> otherIds = new ArrayList<>();
+            ArrayList<Integer> otherSongs = new ArrayList<>();
+            int sectionCount = buffer.getInt();
+            for(int i = 0; i < sectionCount; i++)
+            {
+                int sourceIndex = buffer.getInt();
+                int entries = buffer.getInt();
+                Source source = sourceIndex < Source.SOURCES.size() ? Source.SOURCES.get(sourceIndex) : null;
+                if(source == null)
+                    System.out.println("BLADE: Songs saved with a source that does not exist, skipping this source");
+
+                for(int j = 0; j < entries; j++)
+                {
+                    int song = buffer.getInt();
+                    Object id = readId(buffer.getInt(), buffer.getLong(), strings);
+                    if(source == null) continue;
+
+                    if(primarySource[song] == null)
+                    {
+                        primarySource[song] = source;
+                        primaryId[song] = id;
+                    }
+                    else
+                    {
+                        otherSongs.add(song);
+                        otherSources.add(source);
+                        otherIds.add(id);
+                    }
+                }
+            }
+
+            //Create songs : library songs are written first, so handles will find them
+            Song[] songs = new Song[songCount];
+            boolean[] handledSongs = new boolean[songCount];
+            for(int i = 0; i < songCount; i++)
+            {
+                int record = songsPosition + i * songRecordInts * 4;
+                String title = strings[buffer.getInt(record)];
+                int album = buffer.getInt(record + 4);
+                int trackNumber = buffer.getInt(record + 8);
+                int artistsStart = buffer.getInt(record + 12);
+                int artistsLength = buffer.getInt(record + 16);
+                boolean handled = (buffer.getInt(record + 20) & SONG_FLAG_LIBRARY) == 0;
+                int duration = songRecordInts > SONG_RECORD_INTS_V1 ? buffer.getInt(record + 24) : 0;
+                handledSongs[i] = handled;
+
+                String[] artists = new String[artistsLength];
+                String[] artistsImages = new String[artistsLength];
+                for(int j = 0; j < artistsLength; j++)
+                {
+                    artists[j] = artistNames[artistRefs[artistsStart + j]];
+                    artistsImages[j] = artistImages[artistRefs[artistsStart + j]];
+                }
+
+                int albumRecord = albumsPosition + album * 6 * 4;
+                String albumName = strings[buffer.getInt(albumRecord)];
+                String albumArt = string(strings, buffer.getInt(albumRecord + 4));
+                String albumArtBig = string(strings, buffer.getInt(albumRecord + 8));
+                int albumImageLevel = buffer.getInt(albumRecord + 12);
+                int aartistsStart = buffer.getInt(albumRecord + 16);
+                int aartistsLength = buffer.getInt(albumRecord + 20);
+                String[] aartists = new String[aartistsLength];
+                String[] aartistsImages = new String[aartistsLength];
+                for(int j = 0; j < aartistsLength; j++)
+                {
+                    aartists[j] = artistNames[artistRefs[aartistsStart + j]];
+                    aartistsImages[j] = artistImages[artistRefs[aartistsStart + j]];
+                }
+
+                if(handled)
+                    songs[i] = Library.addSongHandle(title, albumName, artists, primarySource[i], primaryId[i], aartists,
+                            albumArt, trackNumber, artistsImages, aartistsImages, albumArtBig, albumImageLevel, duration);
+                else
+                    songs[i] = Library.addSong(title, albumName, artists, primarySource[i], primaryId[i], aartists,
+                            albumArt, trackNumber, artistsImages, aartistsImages, albumArtBig, albumImageLevel, duration);
+            }
+
+            //Add all other sources to songs
+            for(int i = 0; i < otherSongs.size(); i++)
+            {
+                int song = otherSongs.get(i);
+                songs[song].addSource(otherSources.get(i), otherIds.get(i), handledSongs[song]);
+            }
+
+            //Playlists
+            int playlistCount = buffer.getInt();
+            for(int i = 0; i < playlistCount; i++)
+            {
+                String name = strings[buffer.getInt()];
+                String art = string(strings, buffer.getInt());
+                String subtitle = string(strings, buffer.getInt());
+                int sourceIndex = buffer.getInt();
+                Object id = readId(buffer.getInt(), buffer.getLong(), strings);
+
+                int size = buffer.getInt();
+                ArrayList<Song> songList = new ArrayList<>(size);
+                for(int j = 0; j < size; j++) songList.add(songs[buffer.getInt()]);
+
+                if(sourceIndex >= Source.SOURCES.size()) continue;
+                Library.addPlaylist(name, songList, art, subtitle == null ? "" : subtitle,
+                        Source.SOURCES.get(sourceIndex), id);
+            }
+        }
+        catch(RuntimeException e)
+        {
+            //Truncated or corrupted file (BufferUnderflowException, IndexOutOfBounds, ...)
+            throw new IOException("Corrupted library snapshot", e);
+        }
+
+        return true;
+    }
+
+    private static String string(String[] strings, int index)
+    {
+        return index < 0 ? null : strings[index];
+    }
+
+}
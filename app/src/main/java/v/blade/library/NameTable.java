@@ -0,0 +1,62 @@
+package v.blade.library;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interning table for library names (artists, albums, titles)
+ * Each distinct raw String is case-folded only once ; after that, obtaining its Name is a
+ * single map lookup, and does not allocate anything
+ * Safe for concurrent use : a name folded concurrently by two threads is interned once
+ */
+final class NameTable
+{
+    /*
+     * A case-folded name ; Names are interned, so that two Names are equal if and only if
+     * they are the same object : keys built on them can compare references only
+     */
+    static final class Name
+    {
+        final String folded;
+        private final int hash;
+
+        private Name(String folded)
+        {
+            this.folded = folded;
+            this.hash = folded.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public String toString()
+        {
+            return folded;
+        }
+    }
+
+    //Raw name (as given by sources) -> Name ; this is the lookup done on every ingested song
+    private final ConcurrentHashMap<String, Name> byRaw = new ConcurrentHashMap<>();
+    //Folded name -> Name ; used only the first time a raw name is seen, to intern it
+    private final ConcurrentHashMap<String, Name> byFolded = new ConcurrentHashMap<>();
+
+    Name get(String raw)
+    {
+        Name name = byRaw.get(raw);
+        if(name != null) return name;
+
+        String folded = raw.toLowerCase();
+        name = byFolded.get(folded);
+        if(name == null)
+        {
+            Name created = new Name(folded);
+            name = byFolded.putIfAbsent(folded, created);
+            if(name == null) name = created;
+        }
+        byRaw.putIfAbsent(raw, name);
+        return name;
+    }
+}
@@ -8,9 +8,9 @@ import v.blade.sources.SourceInformation;
 
 public class Playlist extends LibraryObject
 {
-    final List<Song> songs;
+    List<Song> songs;
     private final SourceInformation sourceInformation;
-    private final String playlistSubtitle;
+    private String playlistSubtitle;
 
     public Playlist(String name, List<Song> songList, String image, String subtitle, SourceInformation sourceInformation)
     {
@@ -32,8 +32,23 @@ public class Playlist extends LibraryObject
         return songs;
     }
 
+    /**
+     * @return total duration of playlist songs, in milliseconds (songs of unknown duration count for 0)
+     */
+    public long getDuration()
+    {
+        long duration = 0;
+        for(Song s : songs) duration += s.duration;
+        return duration;
+    }
+
     public String getSubtitle()
     {
         return playlistSubtitle;
     }
+
+    void setSubtitle(String subtitle)
+    {
+        this.playlistSubtitle = subtitle;
+    }
 }
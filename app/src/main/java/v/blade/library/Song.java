@@ -14,6 +14,8 @@ public class Song extends LibraryObject
     Artist[] artists;
     Album album;
     int track_number;
+    //Milliseconds, 0 if unknown
+    int duration;
 
     protected Song(String name, Album album, Artist[] artists, int track_number)
     {
@@ -24,7 +26,19 @@ public class Song extends LibraryObject
         this.sources = new ArrayList<>();
     }
 
-    protected void addSource(Source source, Object id, boolean handled)
+    /*
+     * Gives song the state it now has at source, keeping the song object (see Library.updateSourceSongs)
+     */
+    void update(String name, Album album, Artist[] artists, int track_number, int duration)
+    {
+        setName(name);
+        this.album = album;
+        this.artists = artists;
+        this.track_number = track_number;
+        this.duration = duration;
+    }
+
+    protected synchronized void addSource(Source source, Object id, boolean handled)
     {
         if(source == null || id == null) return;
 
@@ -73,6 +87,22 @@ public class Song extends LibraryObject
         return track_number;
     }
 
+    /**
+     * @return duration in milliseconds, as source gave it, or 0 if unknown
+     */
+    public int getDuration()
+    {
+        return duration;
+    }
+
+    /*
+     * Sets duration, if we did not know it yet
+     */
+    void setDuration(int duration)
+    {
+        if(this.duration == 0 && duration > 0) this.duration = duration;
+    }
+
     public Album getAlbum()
     {
         return album;
@@ -0,0 +1,102 @@
+package v.blade.library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Helpers for library lists sorted by name (see LibraryObject.getSortKey)
+ * Single insertions/removals are done with a binary search, instead of re-sorting the whole list ;
+ * lists shown by the UI are never modified in place : a modified copy is returned
+ * Each edit thus copies the whole list (O(n)) : this is meant for single user edits ; batches of
+ * changes (synchronization, ingest sessions) rebuild lists once instead (see Library.buildLists)
+ */
+final class SortedLists
+{
+    static final Comparator<LibraryObject> BY_NAME = (o1, o2) -> o1.getSortKey().compareTo(o2.getSortKey());
+    static final Comparator<Song> BY_TRACK_NUMBER = (o1, o2) -> o1.track_number - o2.track_number;
+
+    private SortedLists()
+    {
+    }
+
+    static <T extends LibraryObject> ArrayList<T> sorted(Collection<T> objects)
+    {
+        ArrayList<T> list = new ArrayList<>(objects);
+        Collections.sort(list, BY_NAME);
+        return list;
+    }
+
+    /**
+     * @return a copy of list with object inserted at its place, or list itself if it already contains object
+     */
+    static <T extends LibraryObject> ArrayList<T> insert(ArrayList<T> list, T object)
+    {
+        if(indexOf(list, object) >= 0) return list;
+
+        int position = insertionPoint(list, object, BY_NAME);
+        ArrayList<T> copy = new ArrayList<>(list.size() + 1);
+        copy.addAll(list.subList(0, position));
+        copy.add(object);
+        copy.addAll(list.subList(position, list.size()));
+        return copy;
+    }
+
+    /**
+     * @return a copy of list without object, or list itself if it does not contain object
+     */
+    static <T extends LibraryObject> ArrayList<T> remove(ArrayList<T> list, T object)
+    {
+        int position = indexOf(list, object);
+        if(position < 0) return list;
+
+        ArrayList<T> copy = new ArrayList<>(list.size());
+        copy.addAll(list.subList(0, position));
+        copy.addAll(list.subList(position + 1, list.size()));
+        return copy;
+    }
+
+    /**
+     * Inserts object in place in list, after the elements that compare equal to it
+     */
+    static <T> void insertInPlace(List<T> list, T object, Comparator<? super T> comparator)
+    {
+        list.add(insertionPoint(list, object, comparator), object);
+    }
+
+    /*
+     * Index of object in sorted list, found by binary search on its sort key, then by
+     * identity among the elements with the same key
+     */
+    private static <T extends LibraryObject> int indexOf(List<T> list, T object)
+    {
+        String key = object.getSortKey();
+        int low = 0;
+        int high = list.size();
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if(list.get(mid).getSortKey().compareTo(key) < 0) low = mid + 1;
+            else high = mid;
+        }
+
+        for(int i = low; i < list.size() && list.get(i).getSortKey().equals(key); i++)
+            if(list.get(i) == object) return i;
+        return -1;
+    }
+
+    private static <T> int insertionPoint(List<T> list, T object, Comparator<? super T> comparator)
+    {
+        int low = 0;
+        int high = list.size();
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if(comparator.compare(list.get(mid), object) <= 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
@@ -12,24 +12,12 @@ import android.support.v4.media.session.PlaybackStateCompat;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
 import androidx.media.MediaBrowserServiceCompat;
 import androidx.media.session.MediaButtonReceiver;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import v.blade.BladeApplication;
@@ -40,7 +28,8 @@ import v.blade.ui.PlayActivity;
 
 public class MediaBrowserService extends MediaBrowserServiceCompat
 {
-    private static final String CURRENT_PLAYLIST_FILE = "/current_playlist.json";
+    //Restoring play queue waits that long for library to be loaded
+    private static final long LIBRARY_LOAD_TIMEOUT_MS = 30_000;
     private static final String MEDIA_ROOT_ID = "MEDIA_ROOT";
 
     private static MediaBrowserService instance;
@@ -50,6 +39,9 @@ public class MediaBrowserService extends MediaBrowserServiceCompat
 
     protected List<Song> playlist;
     protected int index;
+    //Songs of the last saved play queue ; main thread only
+    private List<Song> savedPlaylist;
+    private PlayQueueStore queueStore;
 
     protected List<Song> shuffleBackupList;
 
@@ -78,6 +70,7 @@ public class MediaBrowserService extends MediaBrowserServiceCompat
     {
         super.onCreate();
         instance = this;
+        queueStore = new PlayQueueStore(getFilesDir());
 
         mediaSession = new MediaSessionCompat(this, "BLADE-MEDIA");
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
@@ -169,91 +162,69 @@ public class MediaBrowserService extends MediaBrowserServiceCompat
         this.playlist = list;
     }
 
+    /**
+     * Saves play queue, in background : songs are written only if they changed since last save,
+     * else only index and position (see PlayQueueStore)
+     * Called on main thread, where queue is modified
+     */
     public void savePlaylist()
     {
-        if(playlist == null || playlist.isEmpty())
-        {
-            File currentPlaylistFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + CURRENT_PLAYLIST_FILE);
-            currentPlaylistFile.delete();
-            return;
-        }
-
-        Gson gson = new Gson();
-
-        JsonObject currentPlaylistObject = new JsonObject();
-
-        JsonArray songs = new JsonArray();
-        for(Song s : playlist)
+        List<Song> songs = playlist == null ? Collections.emptyList() : playlist;
+        List<Song> changed = null;
+        if(!PlayQueueStore.sameSongs(savedPlaylist, songs))
         {
-            JsonObject songJson = Library.songJson(s, gson);
-            songs.add(songJson);
+            savedPlaylist = new ArrayList<>(songs);
+            changed = savedPlaylist;
         }
-        currentPlaylistObject.add("songs", songs);
-
-        currentPlaylistObject.addProperty("index", index);
-
-        if(current != null)
-            currentPlaylistObject.addProperty("position", current.getCurrentPosition());
-
-        File currentPlaylistFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + CURRENT_PLAYLIST_FILE);
-        try
-        {
-            //noinspection ResultOfMethodCallIgnored
-            currentPlaylistFile.delete();
-            if(!currentPlaylistFile.createNewFile())
-            {
-                System.err.println("Could not save current playlist : could not create file");
-                return;
-            }
+        int index = this.index;
+        long position = current == null ? -1 : current.getCurrentPosition();
 
-            BufferedWriter writer = new BufferedWriter(new FileWriter(currentPlaylistFile));
-            writer.write(gson.toJson(currentPlaylistObject));
-            writer.close();
-        }
-        catch(IOException ignored)
+        List<Song> toWrite = changed;
+        BladeApplication.execute(BladeApplication.Category.QUEUE_SAVE, () ->
         {
-        }
+            if(toWrite != null) queueStore.saveQueue(toWrite, index, position);
+            else queueStore.saveCheckpoint(index, position);
+        });
     }
 
+    /**
+     * Restores saved play queue, once library is loaded ; reading is done in background
+     */
     public void restorePlaylist()
     {
-        File currentPlaylistFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + CURRENT_PLAYLIST_FILE);
-        if(!currentPlaylistFile.exists()) return;
-
-        try
+        List<Song> before = playlist;
+        BladeApplication.execute(BladeApplication.Category.STARTUP, () ->
         {
-            //read file
-            BufferedReader reader = new BufferedReader(new FileReader(currentPlaylistFile));
-            StringBuilder js = new StringBuilder();
-            while(reader.ready()) js.append(reader.readLine()).append("\n");
-            reader.close();
-
-            //obtain from JSON
-            JSONObject root = new JSONObject(js.toString());
-            int index = root.getInt("index");
-
-            ArrayList<Song> playlist = new ArrayList<>();
-            JSONArray library = root.getJSONArray("songs");
-            for(int i = 0; i < library.length(); i++)
+            try
             {
-                JSONObject s = library.getJSONObject(i);
-                playlist.add(Library.jsonSong(s, true));
+                //Queue references library songs
+                if(!Library.awaitLoaded(LIBRARY_LOAD_TIMEOUT_MS))
+                    System.err.println("BLADE: Library not loaded, restoring playlist anyway");
+            }
+            catch(InterruptedException e)
+            {
+                return;
             }
 
-            if(playlist.isEmpty()) return;
-
-            // Restore media player
-            this.startIfNotStarted();
-            this.setPlaylist(playlist);
-            this.setIndex(index);
-            mediaSession.getController().getTransportControls().pause();
+            PlayQueueStore.Queue queue = queueStore.restore();
+            if(queue == null || queue.songs.isEmpty()) return;
 
-            if(root.has("position"))
-                mediaSession.getController().getTransportControls().seekTo(root.getLong("position"));
-        }
-        catch(IOException | JSONException ignored)
-        {
-        }
+            ContextCompat.getMainExecutor(this).execute(() ->
+            {
+                //User started playing something meanwhile
+                if(playlist != before) return;
+
+                // Restore media player
+                this.startIfNotStarted();
+                this.setPlaylist(queue.songs);
+                this.setIndex(queue.index);
+                if(queue.saved) savedPlaylist = new ArrayList<>(queue.songs);
+                mediaSession.getController().getTransportControls().pause();
+
+                if(queue.position != -1)
+                    mediaSession.getController().getTransportControls().seekTo(queue.position);
+            });
+        });
     }
 
     public void setIndex(int index)
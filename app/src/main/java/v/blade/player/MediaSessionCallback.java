@@ -2,7 +2,6 @@ package v.blade.player;
 
 import android.content.Context;
 import android.media.AudioManager;
-import android.os.Process;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.widget.Toast;
@@ -17,6 +16,7 @@ import java.util.Collections;
 import v.blade.BladeApplication;
 import v.blade.R;
 import v.blade.library.Song;
+import v.blade.sources.Source;
 import v.blade.sources.SourceInformation;
 
 public class MediaSessionCallback extends MediaSessionCompat.Callback
@@ -95,11 +95,8 @@ public class MediaSessionCallback extends MediaSessionCompat.Callback
             updatePlaybackState(true);
             service.notification.update();
 
-            BladeApplication.obtainExecutorService().execute(() ->
+            BladeApplication.execute(BladeApplication.Category.PLAYER_COMMAND, () ->
             {
-                //Give thread audio priority
-                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
-
                 service.current.play();
             });
         }
@@ -128,12 +125,13 @@ public class MediaSessionCallback extends MediaSessionCompat.Callback
 
             System.out.println("BLADE: onPlay(" + service.playlist.get(service.index).getName() + ") from " + bestSource.source.getName());
             service.current = bestSource.source.getPlayer();
-            BladeApplication.obtainExecutorService().execute(() ->
+            long request = Source.Player.requestSong();
+            BladeApplication.execute(BladeApplication.Category.PLAY_SONG, () ->
             {
-                //Give thread Audio Priority
-                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                //User skipped again meanwhile : loading this song would only delay the next one
+                if(Source.Player.isObsolete(request)) return;
 
-                service.current.playSong(song);
+                service.current.playSong(song, request);
                 ContextCompat.getMainExecutor(service).execute(() ->
                         service.notification.update());
 
@@ -0,0 +1,307 @@
+package v.blade.player;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import v.blade.library.Library;
+import v.blade.library.Song;
+
+/**
+ * Saved play queue : songs of the queue, rewritten only when they change, and checkpoints of index
+ * and position, appended as the user plays
+ * <p>
+ * Queue file is JSON : library songs are saved as references (title, album, first artist), other
+ * songs (e.g. explore songs) as full song JSON (see Library.writeSongJson)
+ * Checkpoint file is a list of fixed-size records : queue version (long), index (int), position (long) ;
+ * the last complete record of the queue version wins, else the index and position saved with the queue
+ */
+final class PlayQueueStore
+{
+    private static final String QUEUE_FILE = "/play_queue.json";
+    private static final String CHECKPOINT_FILE = "/play_queue.checkpoint";
+    //Play queue file of older versions, full song JSON
+    private static final String LEGACY_QUEUE_FILE = "/current_playlist.json";
+
+    private static final int RECORD_LENGTH = 8 + 4 + 8;
+    //Checkpoint file is rewritten with one record past that size
+    private static final int MAX_CHECKPOINT_LENGTH = RECORD_LENGTH * 256;
+
+    static final class Queue
+    {
+        final ArrayList<Song> songs = new ArrayList<>();
+        int index = 0;
+        long position = -1;
+        //Queue was read from saved queue file as is : it does not need to be saved again
+        boolean saved = false;
+        //Saved positions of songs that are not in library anymore
+        private final ArrayList<Integer> dropped = new ArrayList<>();
+    }
+
+    private final File queueFile;
+    private final File checkpointFile;
+    private final File legacyFile;
+    //Version of saved queue, for its checkpoints
+    private long version = 0;
+
+    PlayQueueStore(File directory)
+    {
+        this.queueFile = new File(directory.getAbsolutePath() + QUEUE_FILE);
+        this.checkpointFile = new File(directory.getAbsolutePath() + CHECKPOINT_FILE);
+        this.legacyFile = new File(directory.getAbsolutePath() + LEGACY_QUEUE_FILE);
+    }
+
+    /**
+     * @return true if both lists have the same songs in the same order ; saved songs are compared
+     * to the queue to know if the queue should be rewritten
+     */
+    static boolean sameSongs(List<Song> saved, List<Song> songs)
+    {
+        if(saved == null || saved.size() != songs.size()) return false;
+        for(int i = 0; i < songs.size(); i++)
+            if(saved.get(i) != songs.get(i)) return false;
+        return true;
+    }
+
+    /**
+     * Rewrites queue songs, with index and position ; an empty queue deletes saved queue
+     */
+    synchronized void saveQueue(List<Song> songs, int index, long position)
+    {
+        //noinspection ResultOfMethodCallIgnored
+        legacyFile.delete();
+        if(songs.isEmpty())
+        {
+            //noinspection ResultOfMethodCallIgnored
+            queueFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            checkpointFile.delete();
+            return;
+        }
+
+        //Checkpoints of an older queue should not apply to this one, even if an older checkpoint file is left
+        version = Math.max(version + 1, System.currentTimeMillis());
+        File tmpFile = new File(queueFile.getAbsolutePath() + ".tmp");
+        try(JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))))
+        {
+            out.beginObject();
+            out.name("version").value(version);
+            out.name("index").value(index);
+            out.name("position").value(position);
+
+            out.name("songs").beginArray();
+            for(Song s : songs)
+            {
+                if(Library.contains(s))
+                {
+                    out.beginArray();
+                    out.value(s.getName()).value(s.getAlbum().getName()).value(s.getArtists()[0].getName());
+                    out.endArray();
+                }
+                else Library.writeSongJson(out, s);
+            }
+            out.endArray();
+
+            out.endObject();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not save current playlist : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if(!tmpFile.renameTo(queueFile))
+        {
+            System.err.println("Could not save current playlist : could not replace file");
+            return;
+        }
+        writeCheckpoint(index, position, false);
+    }
+
+    /**
+     * Saves index and position in saved queue
+     */
+    synchronized void saveCheckpoint(int index, long position)
+    {
+        if(version == 0 || !queueFile.exists()) return;
+        writeCheckpoint(index, position, checkpointFile.length() < MAX_CHECKPOINT_LENGTH);
+    }
+
+    private void writeCheckpoint(int index, long position, boolean append)
+    {
+        try(FileOutputStream file = new FileOutputStream(checkpointFile, append);
+            DataOutputStream out = new DataOutputStream(file))
+        {
+            //A torn record (process killed while writing) would shift every record appended after it
+            if(append)
+            {
+                long length = file.getChannel().size();
+                if(length % RECORD_LENGTH != 0) file.getChannel().truncate(length - length % RECORD_LENGTH);
+            }
+
+            out.writeLong(version);
+            out.writeInt(index);
+            out.writeLong(position);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not save current playlist position : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads saved queue ; library should be loaded, so that song references are found
+     * @return saved queue (songs that are not in library anymore are dropped), or null
+     */
+    synchronized Queue restore()
+    {
+        if(!queueFile.exists()) return restoreLegacy();
+
+        Queue queue = new Queue();
+        try(JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(queueFile), StandardCharsets.UTF_8))))
+        {
+            long savedVersion = 0;
+            in.beginObject();
+            while(in.hasNext())
+            {
+                switch(in.nextName())
+                {
+                    case "version":
+                        savedVersion = in.nextLong();
+                        break;
+                    case "index":
+                        queue.index = in.nextInt();
+                        break;
+                    case "position":
+                        queue.position = in.nextLong();
+                        break;
+                    case "songs":
+                        in.beginArray();
+                        while(in.hasNext()) readSong(in, queue);
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            version = savedVersion;
+            readCheckpoint(queue);
+        }
+        catch(IOException | IllegalStateException | NumberFormatException e)
+        {
+            System.err.println("Could not restore current playlist : " + e.getMessage());
+            return null;
+        }
+
+        //Songs after dropped songs moved back
+        int index = queue.index;
+        for(int position : queue.dropped)
+            if(position < index) queue.index--;
+        queue.index = Math.max(0, Math.min(queue.index, queue.songs.size() - 1));
+        queue.saved = queue.dropped.isEmpty();
+        return queue;
+    }
+
+    private static void readSong(JsonReader in, Queue queue) throws IOException
+    {
+        if(in.peek() != JsonToken.BEGIN_ARRAY)
+        {
+            queue.songs.add(Library.readSongJson(in, true));
+            return;
+        }
+
+        in.beginArray();
+        String title = in.nextString();
+        String album = in.nextString();
+        String artist = in.nextString();
+        in.endArray();
+
+        Song song = Library.findSong(artist, album, title);
+        if(song != null) queue.songs.add(song);
+        else queue.dropped.add(queue.songs.size() + queue.dropped.size());
+    }
+
+    private void readCheckpoint(Queue queue)
+    {
+        if(!checkpointFile.exists()) return;
+
+        //Last complete record ; an interrupted write leaves an incomplete one
+        long records = checkpointFile.length() / RECORD_LENGTH;
+        if(records == 0) return;
+        try(DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile)))
+        {
+            long toSkip = (records - 1) * RECORD_LENGTH;
+            while(toSkip > 0) toSkip -= in.skip(toSkip);
+
+            long recordVersion = in.readLong();
+            int index = in.readInt();
+            long position = in.readLong();
+            if(recordVersion != version) return;
+
+            queue.index = index;
+            queue.position = position;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not restore current playlist position : " + e.getMessage());
+        }
+    }
+
+    /*
+     * Queue saved by an older version, as full song JSON ; it is replaced on next save
+     */
+    private Queue restoreLegacy()
+    {
+        if(!legacyFile.exists()) return null;
+
+        Queue queue = new Queue();
+        try(JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(legacyFile), StandardCharsets.UTF_8))))
+        {
+            in.beginObject();
+            while(in.hasNext())
+            {
+                switch(in.nextName())
+                {
+                    case "index":
+                        queue.index = in.nextInt();
+                        break;
+                    case "position":
+                        queue.position = in.nextLong();
+                        break;
+                    case "songs":
+                        in.beginArray();
+                        while(in.hasNext()) queue.songs.add(Library.readSongJson(in, true));
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        }
+        catch(IOException | IllegalStateException | NumberFormatException e)
+        {
+            return null;
+        }
+
+        return queue;
+    }
+}
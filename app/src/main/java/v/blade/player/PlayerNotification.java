@@ -67,6 +67,15 @@ public class PlayerNotification
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) createChannel();
     }
 
+    /*
+     * Duration source gave for song, known before its player is prepared ; player duration otherwise
+     */
+    private long duration(Song song)
+    {
+        if(song.getDuration() > 0) return song.getDuration();
+        return service.current == null ? 0 : service.current.getDuration();
+    }
+
     public void update()
     {
         if(service.playlist == null) return;
@@ -84,7 +93,7 @@ public class PlayerNotification
                     .putString(MediaMetadata.METADATA_KEY_ALBUM, song.getAlbum().getName())
                     .putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, song.getName())
                     .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, song.getTrackNumber())
-                    .putLong(MediaMetadata.METADATA_KEY_DURATION, service.current == null ? 0 : service.current.getDuration())
+                    .putLong(MediaMetadata.METADATA_KEY_DURATION, duration(song))
                     .build());
 
             //There is no notification ; we must display it quick and update it for image later
@@ -108,7 +117,7 @@ public class PlayerNotification
                             .putString(MediaMetadata.METADATA_KEY_ALBUM, song.getAlbum().getName())
                             .putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, song.getName())
                             .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, song.getTrackNumber())
-                            .putLong(MediaMetadata.METADATA_KEY_DURATION, service.current == null ? 0 : service.current.getDuration())
+                            .putLong(MediaMetadata.METADATA_KEY_DURATION, duration(song))
                             .putBitmap(MediaMetadata.METADATA_KEY_ART, bitmap)
                             .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, bitmap)
                             .build());
@@ -238,7 +247,7 @@ public class PlayerNotification
                                 .putString(MediaMetadata.METADATA_KEY_ALBUM, playing.getAlbum().getName())
                                 .putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, playing.getName())
                                 .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, playing.getTrackNumber())
-                                .putLong(MediaMetadata.METADATA_KEY_DURATION, service.current == null ? 0 : service.current.getDuration())
+                                .putLong(MediaMetadata.METADATA_KEY_DURATION, duration(playing))
                                 .putBitmap(MediaMetadata.METADATA_KEY_ART, bitmap)
                                 .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, bitmap)
                                 .build());
@@ -0,0 +1,148 @@
+package v.blade.sources;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Access token of a web API source : it is refreshed ahead of expiry, and when a request is
+ * refused (401) ; threads that need a refresh at the same time wait for a single refresh request
+ * Requests are done with the client of the token (see client), which puts the current token in
+ * every request, so that a refused request is retried alone with the new token
+ */
+public final class AccessToken
+{
+    public interface Refresher
+    {
+        /**
+         * Requests a new token, and stores it in source
+         * @return lifetime of the new token in seconds (0 if it does not expire), or -1 if refresh failed
+         */
+        int refresh();
+    }
+
+    /**
+     * Puts the current token in a request (header, query parameter) ; returns request as is if it does not use the token
+     */
+    public interface Credential
+    {
+        Request authorize(Request request);
+    }
+
+    //Token is refreshed this long before it expires
+    private static final long EXPIRY_MARGIN_MS = 60_000;
+    //A refresh done this recently answers a refusal, when we don't know which token was refused
+    private static final long RECENT_REFRESH_MS = 10_000;
+
+    private final Refresher refresher;
+    //Times are from System.nanoTime, in ms
+    private long expiresAt = Long.MAX_VALUE;
+    private long refreshedAt = Long.MIN_VALUE;
+    //Incremented each time a new token is obtained
+    private long generation = 0;
+
+    public AccessToken(Refresher refresher)
+    {
+        this.refresher = refresher;
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    public synchronized long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * A new token was obtained (refresh, or login)
+     * @param expiresIn lifetime of token in seconds, 0 if it does not expire
+     */
+    public synchronized void obtained(int expiresIn)
+    {
+        generation++;
+        refreshedAt = now();
+        expiresAt = expiresIn <= 0 ? Long.MAX_VALUE : refreshedAt + expiresIn * 1000L;
+    }
+
+    /**
+     * Refreshes token if it expires soon
+     */
+    public void ensureFresh()
+    {
+        long seen;
+        synchronized(this)
+        {
+            if(expiresAt == Long.MAX_VALUE || now() < expiresAt - EXPIRY_MARGIN_MS) return;
+            seen = generation;
+        }
+        refresh(seen);
+    }
+
+    /**
+     * Refreshes token that was refused, unless a new token was obtained since (e.g. by another thread)
+     * @param seenGeneration generation of the refused token
+     * @return true if we have a new token
+     */
+    public synchronized boolean refresh(long seenGeneration)
+    {
+        if(generation != seenGeneration) return true;
+        return doRefresh();
+    }
+
+    /**
+     * Refreshes token that was refused, unless it was refreshed very recently
+     * @return true if we have a new token
+     */
+    public synchronized boolean refresh()
+    {
+        if(refreshedAt != Long.MIN_VALUE && now() - refreshedAt < RECENT_REFRESH_MS) return true;
+        return doRefresh();
+    }
+
+    private boolean doRefresh()
+    {
+        int expiresIn = refresher.refresh();
+        if(expiresIn < 0) return false;
+        obtained(expiresIn);
+        return true;
+    }
+
+    /**
+     * @return client based on base client (sharing its connections and cache), that authorizes requests with token
+     */
+    public OkHttpClient client(OkHttpClient base, Credential credential)
+    {
+        return base.newBuilder().addInterceptor(new TokenInterceptor(credential)).build();
+    }
+
+    private final class TokenInterceptor implements Interceptor
+    {
+        private final Credential credential;
+
+        private TokenInterceptor(Credential credential)
+        {
+            this.credential = credential;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException
+        {
+            ensureFresh();
+            long seen = generation();
+            Request request = credential.authorize(chain.request());
+            Response response = chain.proceed(request);
+            if(response.code() != 401 || request == chain.request()) return response;
+
+            //Token refused : retry this request only, with a new token
+            if(!refresh(seen)) return response;
+            response.close();
+            return chain.proceed(credential.authorize(chain.request()));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package v.blade.sources;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * Fetches paged web collections with parallel requests : once the first page gives the total,
+ * every other page is requested at the same time, and independent tasks (e.g. tracks, albums and
+ * playlists of a library) run at the same time too
+ * A pager does at most maxRequests requests at once, whatever the number of collections and tasks
+ * A pager of a source synchronization reports its requests to it, and stops requesting once it is
+ * cancelled (see SourceSync) ; with a checkpoint, pages of collections with a key are saved as they
+ * arrive, and pages saved by an interrupted synchronization are not requested again (see SyncCheckpoint)
+ */
+public final class ParallelPager
+{
+    public interface Pages<P>
+    {
+        Call<P> get(int limit, int offset);
+    }
+
+    public interface Total<P>
+    {
+        int total(P page);
+    }
+
+    /**
+     * Receives pages as they arrive, from pager threads, in any order
+     */
+    public interface Consumer<P>
+    {
+        void accept(P page, int offset) throws IOException;
+    }
+
+    public interface Task<T>
+    {
+        T run() throws IOException;
+    }
+
+    public static final class Result
+    {
+        //Response code of the first failed request, or 0
+        public int errorCode = 0;
+        public int requests = 0;
+        //Pages replayed from checkpoint
+        public int resumed = 0;
+    }
+
+    //Pager threads, at most : as many as the background lane queues (see BladeApplication.Lane)
+    private static final int MAX_THREADS = 64;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /*
+     * Pager threads mostly wait : for responses, or for other tasks ; they are created as needed, so
+     * that waiting tasks never hold queued tasks back, and requests permits bound concurrency
+     * Past MAX_THREADS, a task runs on the thread submitting it, that would wait for it anyway
+     * Threads run at background priority, as the synchronization they do : Java priority 4 is
+     * Android THREAD_PRIORITY_BACKGROUND (and we don't depend on android.os.Process in unit tests)
+     */
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, MAX_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable ->
+    {
+        Thread thread = new Thread(runnable, "BLADE-PAGER");
+        thread.setDaemon(true);
+        thread.setPriority(4);
+        return thread;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final Semaphore permits;
+    private final SourceSync sync;
+    private final SyncCheckpoint checkpoint;
+
+    public ParallelPager(int maxRequests)
+    {
+        this(maxRequests, null);
+    }
+
+    /**
+     * @param sync synchronization the pager requests for, or null
+     */
+    public ParallelPager(int maxRequests, SourceSync sync)
+    {
+        this.permits = new Semaphore(maxRequests);
+        this.sync = sync;
+        this.checkpoint = sync == null ? null : sync.checkpoint();
+    }
+
+    /**
+     * Executes call, waiting for a request permit ; it is a background request (see RequestScheduler)
+     */
+    public <T> Response<T> execute(Call<T> call) throws IOException
+    {
+        if(sync != null) sync.addPages(1);
+        return executePlanned(call);
+    }
+
+    /*
+     * Executes call, that was counted in synchronization pages already
+     */
+    private <T> Response<T> executePlanned(Call<T> call) throws IOException
+    {
+        permits.acquireUninterruptibly();
+        boolean wasBackground = RequestScheduler.setBackground(true);
+        try
+        {
+            if(sync != null) sync.started(call);
+            try
+            {
+                return call.execute();
+            }
+            finally
+            {
+                if(sync != null) sync.finished(call);
+            }
+        }
+        finally
+        {
+            RequestScheduler.setBackground(wasBackground);
+            permits.release();
+        }
+    }
+
+    /**
+     * Executes call, unless its result was saved by an interrupted synchronization ; saves result
+     * with key if pager has a checkpoint
+     * @return result, or null if request failed
+     */
+    public <T> T fetch(String key, Type type, Call<T> call) throws IOException
+    {
+        if(checkpoint != null)
+        {
+            T saved = checkpoint.get(key, 0, type);
+            if(saved != null)
+            {
+                if(sync != null)
+                {
+                    sync.addPages(1);
+                    sync.pageDone();
+                }
+                return saved;
+            }
+        }
+
+        Response<T> response = execute(call);
+        if(response.code() != 200 || response.body() == null) return null;
+        if(checkpoint != null) checkpoint.put(key, 0, response.body(), type);
+        return response.body();
+    }
+
+    public <T> Future<T> submit(Task<T> task)
+    {
+        return executor.submit(task::run);
+    }
+
+    public static <T> T await(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pager task");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits for every task, even if one fails, so that no task is left running ; then throws the first failure
+     */
+    public static <T> void awaitAll(ArrayList<Future<T>> futures, ArrayList<T> results) throws IOException
+    {
+        IOException failure = null;
+        RuntimeException runtimeFailure = null;
+        for(Future<T> future : futures)
+        {
+            try
+            {
+                T result = await(future);
+                if(results != null) results.add(result);
+            }
+            catch(IOException e)
+            {
+                if(failure == null) failure = e;
+            }
+            catch(RuntimeException e)
+            {
+                if(runtimeFailure == null) runtimeFailure = e;
+            }
+        }
+        if(runtimeFailure != null) throw runtimeFailure;
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * Fetches every page of a collection : first page, then every other page in parallel
+     * Consumer receives pages from several threads at once
+     */
+    public <P> Result fetchAll(Pages<P> pages, int pageSize, Total<P> total, Consumer<P> consumer) throws IOException
+    {
+        return fetchAll(null, null, pages, pageSize, total, consumer);
+    }
+
+    /**
+     * Fetches every page of collection key, as fetchAll ; with a checkpoint, pages are saved, and
+     * pages saved by an interrupted synchronization are replayed instead of requested
+     * First page is always requested : saved pages are used only if collection total did not change
+     */
+    public <P> Result fetchAll(String key, Type pageType, Pages<P> pages, int pageSize, Total<P> total,
+                               Consumer<P> consumer) throws IOException
+    {
+        SyncCheckpoint checkpoint = key == null ? null : this.checkpoint;
+        Result result = new Result();
+        Response<P> first = execute(pages.get(pageSize, 0));
+        result.requests++;
+        if(first.code() != 200 || first.body() == null)
+        {
+            result.errorCode = first.code();
+            return result;
+        }
+
+        ArrayList<Future<Integer>> rest = new ArrayList<>();
+        int count = total.total(first.body());
+        if(checkpoint != null) checkpoint.begin(key, count);
+        if(sync != null && count > pageSize) sync.addPages((count - 1) / pageSize);
+        for(int offset = pageSize; offset < count; offset += pageSize)
+        {
+            final int pageOffset = offset;
+            rest.add(submit(() ->
+            {
+                P saved = checkpoint == null ? null : checkpoint.get(key, pageOffset, pageType);
+                if(saved != null)
+                {
+                    consumer.accept(saved, pageOffset);
+                    if(sync != null) sync.pageDone();
+                    return -1;
+                }
+
+                Response<P> response = executePlanned(pages.get(pageSize, pageOffset));
+                if(response.code() != 200 || response.body() == null) return response.code();
+                if(checkpoint != null) checkpoint.put(key, pageOffset, response.body(), pageType);
+                consumer.accept(response.body(), pageOffset);
+                return 0;
+            }));
+        }
+
+        //Consume first page while other pages are fetched
+        try
+        {
+            consumer.accept(first.body(), 0);
+        }
+        finally
+        {
+            ArrayList<Integer> codes = new ArrayList<>();
+            awaitAll(rest, codes);
+            for(int code : codes)
+            {
+                //-1 : page replayed from checkpoint
+                if(code == -1) result.resumed++;
+                else result.requests++;
+                if(code > 0 && result.errorCode == 0) result.errorCode = code;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,188 @@
+package v.blade.sources;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Schedules the requests of a web API source, so that it stays within the source rate limit :
+ * requests take a token from a bucket refilled at a fixed rate, and a throttled request (429, 503)
+ * is retried after the delay the source asks for ('Retry-After'), or a jittered backoff ; meanwhile
+ * every request of the source waits
+ * Background requests (synchronization pages, see ParallelPager) leave a few tokens to interactive
+ * ones (explore, search, playback), and let them go first
+ */
+public final class RequestScheduler
+{
+    //Attempts of a throttled request before its response is returned as is
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BACKOFF_BASE_MS = 500;
+    //A source asking to wait longer than that gets its response back instead
+    private static final long MAX_RETRY_AFTER_MS = 120_000;
+    //Tokens background requests leave to interactive requests
+    private static final double INTERACTIVE_RESERVE = 2;
+    //Background requests waiting for interactive requests check again after this delay
+    private static final long YIELD_MS = 10;
+
+    //Requests done by the thread are background requests (see setBackground)
+    private static final ThreadLocal<Boolean> background = new ThreadLocal<Boolean>()
+    {
+        @Override
+        protected Boolean initialValue()
+        {
+            return false;
+        }
+    };
+
+    private final double tokensPerMs;
+    private final double burst;
+    private double tokens;
+    //Times are from System.nanoTime, in ms
+    private long refilledAt;
+    private long pausedUntil = Long.MIN_VALUE;
+    private int interactiveWaiting = 0;
+
+    /**
+     * @param requestsPerSecond sustained request rate of source
+     * @param burst requests that can be done at once, after a pause
+     */
+    public RequestScheduler(double requestsPerSecond, int burst)
+    {
+        this.tokensPerMs = requestsPerSecond / 1000;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = now();
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Marks requests done by current thread as background requests, or interactive requests again
+     * @return previous value, to restore it
+     */
+    public static boolean setBackground(boolean isBackground)
+    {
+        boolean previous = background.get();
+        background.set(isBackground);
+        return previous;
+    }
+
+    /**
+     * @return client based on base client (sharing its connections and cache), whose requests are scheduled
+     */
+    public OkHttpClient client(OkHttpClient base)
+    {
+        return base.newBuilder().addInterceptor(new SchedulerInterceptor()).build();
+    }
+
+    private void refill(long now)
+    {
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerMs);
+        refilledAt = now;
+    }
+
+    /*
+     * Waits for a token
+     */
+    synchronized void acquire(boolean isBackground) throws InterruptedIOException
+    {
+        //Background requests never take the last tokens, but always end up with one
+        double needed = isBackground ? Math.min(1 + INTERACTIVE_RESERVE, burst) : 1;
+        if(!isBackground) interactiveWaiting++;
+        try
+        {
+            while(true)
+            {
+                long now = now();
+                refill(now);
+
+                long delay;
+                if(now < pausedUntil) delay = pausedUntil - now;
+                else if(tokens < needed) delay = (long) Math.ceil((needed - tokens) / tokensPerMs);
+                else if(isBackground && interactiveWaiting > 0) delay = YIELD_MS;
+                else
+                {
+                    tokens -= 1;
+                    return;
+                }
+                wait(Math.max(1, delay));
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for request token");
+        }
+        finally
+        {
+            if(!isBackground)
+            {
+                interactiveWaiting--;
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Source is throttling us : every request waits
+     */
+    synchronized void pause(long delay)
+    {
+        pausedUntil = Math.max(pausedUntil, now() + delay);
+        //Tokens gathered before the pause are not a burst the source would accept
+        tokens = Math.min(tokens, 1);
+        notifyAll();
+    }
+
+    /*
+     * @return delay source asks for before next attempt, or a jittered exponential backoff
+     */
+    static long retryDelay(Response response, int attempt)
+    {
+        String retryAfter = response.header("Retry-After");
+        if(retryAfter != null)
+        {
+            try
+            {
+                //Requests waiting for the same delay should not all be retried at the same time
+                return Long.parseLong(retryAfter.trim()) * 1000 + ThreadLocalRandom.current().nextLong(250);
+            }
+            catch(NumberFormatException ignored)
+            {
+                //HTTP-date : we use backoff instead
+            }
+        }
+
+        long backoff = BACKOFF_BASE_MS << Math.min(attempt - 1, 10);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff);
+    }
+
+    private final class SchedulerInterceptor implements Interceptor
+    {
+        @Override
+        public Response intercept(Chain chain) throws IOException
+        {
+            boolean isBackground = background.get();
+            for(int attempt = 1; ; attempt++)
+            {
+                acquire(isBackground);
+                Response response = chain.proceed(chain.request());
+                if((response.code() != 429 && response.code() != 503) || attempt == MAX_ATTEMPTS) return response;
+
+                long delay = retryDelay(response, attempt);
+                if(delay > MAX_RETRY_AFTER_MS || chain.call().isCanceled()) return response;
+
+                System.err.println("BLADE: Request throttled (" + response.code() + "), retrying in " + delay + "ms");
+                response.close();
+                pause(delay);
+            }
+        }
+    }
+}
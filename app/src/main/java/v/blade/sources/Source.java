@@ -1,31 +1,30 @@
 package v.blade.sources;
 
-import android.os.Process;
-
 import androidx.fragment.app.Fragment;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-
-import org.json.JSONArray;
-import org.json.JSONException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import v.blade.BladeApplication;
 import v.blade.BuildConfig;
@@ -41,6 +40,11 @@ public abstract class Source
 
     public static volatile boolean isSyncing = false;
 
+    //Sources are saved on every library edit and token refresh : bursts of saves are written once
+    private static final long SAVE_DELAY_MS = 500;
+    private static final WriteBehind sourcesWriter = new WriteBehind(task ->
+            BladeApplication.execute(BladeApplication.Category.SOURCES_SAVE, task), SAVE_DELAY_MS, Source::writeSources);
+
     public enum SourceStatus
     {
         STATUS_DOWN, //Down : not usable
@@ -51,13 +55,38 @@ public abstract class Source
 
     public abstract static class Player
     {
+        //Song requests of every player : only the last one is wanted (see requestSong)
+        private static final AtomicLong songRequests = new AtomicLong();
+
+        /**
+         * Registers a song request, to be played later by playSong (e.g. on playback lane)
+         * Skipping quickly queues many requests : a request that is obsolete when it runs should not be played
+         * @return request ticket, for playSong and isObsolete
+         */
+        public static long requestSong()
+        {
+            return songRequests.incrementAndGet();
+        }
+
+        /**
+         * @return true if another song was requested after request, on any player
+         */
+        public static boolean isObsolete(long request)
+        {
+            return songRequests.get() != request;
+        }
+
         public abstract void init();
 
         public abstract void play();
 
         public abstract void pause();
 
-        public abstract void playSong(Song song);
+        /**
+         * @param request ticket of the song request (see requestSong) ; a player that defers the song
+         *                (e.g. while loading another one) should not play it once the request is obsolete
+         */
+        public abstract void playSong(Song song, long request);
 
         public abstract void seekTo(long millis);
 
@@ -72,6 +101,8 @@ public abstract class Source
     protected SourceStatus status;
     protected int index;
     protected Player player;
+    //Running synchronization of source, set while synchronizeLibrary runs (see SyncOrchestrator)
+    protected volatile SourceSync sync;
 
     public Source()
     {
@@ -126,8 +157,19 @@ public abstract class Source
     /**
      * Action done on 'synchronize' button ; as the Blade model is 'offline',
      * this is basically 'online register library' ; we do cache the library after
+     * @return false if source library could not be obtained (e.g. network error) : library should keep
+     * what it had from source, instead of what was obtained before the failure
+     */
+    public abstract boolean synchronizeLibrary();
+
+    /**
+     * @return file where synchronization progress is saved, so that an interrupted synchronization
+     * resumes where it stopped (see SyncCheckpoint) ; null if source does not save it
      */
-    public abstract void synchronizeLibrary();
+    protected File getCheckpointFile()
+    {
+        return null;
+    }
 
     public abstract Fragment getSettingsFragment();
 
@@ -145,11 +187,7 @@ public abstract class Source
     public void addSongToPlaylist(Song song, Playlist playlist, Runnable callback, Runnable failureCallback)
     {
         //Add track to playlist locally
-        playlist.getSongs().add(song);
-
-        //Save library
-        Library.save();
-        saveSources();
+        Library.addSongToPlaylist(song, playlist);
 
         //Run callback
         callback.run();
@@ -164,10 +202,6 @@ public abstract class Source
     {
         Library.removePlaylist(playlist);
 
-        //Save library
-        Library.save();
-        saveSources();
-
         //Run callback
         callback.run();
     }
@@ -177,9 +211,6 @@ public abstract class Source
      */
     public void addToLibrary(Song song, Runnable callback, Runnable failureCallback)
     {
-        //We have to modify song in place
-        Library.addSongFromHandle(song);
-
         //Mark song as 'not handled' for us
         SourceInformation current = null;
         for(SourceInformation si : song.getSources())
@@ -197,12 +228,11 @@ public abstract class Source
         }
         current.handled = false;
 
-        //Re-generate lists
-        Library.generateLists();
+        //We have to modify song in place
+        Library.addSongFromHandle(song);
 
-        //Save library
-        Library.save();
-        saveSources();
+        //Lists are kept sorted by Library, only refresh view
+        Library.notifyLibraryChanged();
 
         //Run callback
         callback.run();
@@ -213,8 +243,6 @@ public abstract class Source
      */
     public void removeFromLibrary(Song song, Runnable callback, Runnable failureCallback)
     {
-        Library.removeSong(song);
-
         //Mark song as 'handled' for us
         SourceInformation current = null;
         for(SourceInformation si : song.getSources())
@@ -232,12 +260,10 @@ public abstract class Source
         }
         current.handled = true;
 
-        //Re-generate lists
-        Library.generateLists();
+        Library.removeSong(song);
 
-        //Save library
-        Library.save();
-        saveSources();
+        //Lists are kept sorted by Library, only refresh view
+        Library.notifyLibraryChanged();
 
         //Run callback
         callback.run();
@@ -248,11 +274,7 @@ public abstract class Source
      */
     public void removeFromPlaylist(Song song, Playlist playlist, Runnable callback, Runnable failureCallback)
     {
-        playlist.getSongs().remove(song);
-
-        //Save library
-        Library.save();
-        saveSources();
+        Library.removeSongFromPlaylist(song, playlist);
 
         //Run callback
         callback.run();
@@ -260,129 +282,109 @@ public abstract class Source
 
     /**
      * Blade saves all sources informations/configurations in a cache sources json file
+     * Saves requested within SAVE_DELAY_MS are written once, in background
      */
-    public static synchronized void saveSources()
+    public static void saveSources()
     {
-        BladeApplication.obtainExecutorService().execute(() ->
-        {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        sourcesWriter.request();
+    }
 
-            //Generate JSON Array of sources
-            JsonArray sourceArray = new JsonArray();
-            for(Source s : SOURCES)
-            {
-                sourceArray.add(s.saveToJSON());
-            }
+    /**
+     * Writes requested saves now (e.g. app going to background, where process can be killed)
+     */
+    public static void flushSources()
+    {
+        sourcesWriter.flush();
+    }
 
-            //Write JSON Array to file
-            File sourcesFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + SOURCES_FILE);
-            try
-            {
-                //noinspection ResultOfMethodCallIgnored
-                sourcesFile.delete();
-                if(!sourcesFile.createNewFile())
-                {
-                    System.err.println("Could not save sources : could not create file");
-                    return;
-                }
+    /**
+     * Appends sources saves statistics to report (see BladeApplication.obtainExecutorReport)
+     */
+    public static void reportSaves(StringBuilder report)
+    {
+        report.append("sources.json : ").append(sourcesWriter.getRequests()).append(" saves, ")
+                .append(sourcesWriter.getWrites()).append(" writes, ")
+                .append(sourcesWriter.getAvoided()).append(" avoided\n");
+    }
 
-                BufferedWriter writer = new BufferedWriter(new FileWriter(sourcesFile));
-                Gson gson = new Gson();
-                writer.write(gson.toJson(sourceArray));
-                writer.close();
-            }
-            catch(IOException ignored)
-            {
-            }
-        });
+    private static void writeSources()
+    {
+        //Write sources one by one to file
+        File sourcesFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + SOURCES_FILE);
+        File tmpFile = new File(sourcesFile.getAbsolutePath() + ".tmp");
+        Gson gson = new Gson();
+        try(JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))))
+        {
+            writer.beginArray();
+            for(Source s : SOURCES)
+                gson.toJson(s.saveToJSON(), writer);
+            writer.endArray();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not save sources : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if(!tmpFile.renameTo(sourcesFile))
+            System.err.println("Could not save sources : could not replace file");
     }
 
     public static void loadSourcesFromSave()
     {
         File sourcesFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + SOURCES_FILE);
-        try
+        if(!sourcesFile.exists()) return;
+
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.registerTypeAdapter(Source.class, new SourceAdapter());
+        Gson gson = gsonBuilder.create();
+
+        try(JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(sourcesFile), StandardCharsets.UTF_8))))
         {
-            //read file
-            BufferedReader reader = new BufferedReader(new FileReader(sourcesFile));
-            StringBuilder j = new StringBuilder();
-            while(reader.ready()) j.append(reader.readLine()).append("\n");
-            reader.close();
-
-            //noinspection ConstantConditions
-            if(BuildConfig.BUILD_TYPE.equals("debug"))
-                System.out.println("BLADE: Restoring sources from: " + j);
-
-            //obtain from JSON
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter(Source.class, new SourceAdapter());
-            Gson gson = gsonBuilder.create();
-            JSONArray sourceArray = new JSONArray(j.toString());
-
-            for(int i = 0; i < sourceArray.length(); i++)
+            //obtain from JSON, one source at a time
+            reader.beginArray();
+            for(int i = 0; reader.hasNext(); i++)
             {
-                Source s = gson.fromJson(sourceArray.get(i).toString(), Source.class);
+                JsonElement sourceJson = JsonParser.parseReader(reader);
+
+                //noinspection ConstantConditions
+                if(BuildConfig.BUILD_TYPE.equals("debug"))
+                    System.out.println("BLADE: Restoring source from: " + sourceJson);
+
+                Source s = gson.fromJson(sourceJson, Source.class);
                 if(s != null)
                 {
                     s.index = i;
                     SOURCES.add(s);
                 }
                 else
-                    System.err.println("BLADE: Found null source from json: " + sourceArray.get(i).toString());
+                    System.err.println("BLADE: Found null source from json: " + sourceJson);
             }
+            reader.endArray();
         }
-        catch(IOException | JSONException e)
+        catch(IOException | JsonParseException | IllegalStateException e)
         {
             e.printStackTrace();
         }
     }
 
-    @SuppressWarnings("rawtypes")
-    public static void synchronizeSources(Runnable doneCallback)
+    /**
+     * Synchronizes every ready source (see SyncOrchestrator)
+     * @return false if a synchronization is running already
+     */
+    public static boolean synchronizeSources(SyncOrchestrator.Listener listener)
     {
-        isSyncing = true;
-
-        //Reset the library
-        Library.reset();
-
-        //Synchronize every source
-        final List<Future> futures = new ArrayList<>();
-        for(Source s : SOURCES)
-        {
-            if(s.status != SourceStatus.STATUS_READY) continue;
-
-            futures.add(BladeApplication.obtainExecutorService().submit(() ->
-            {
-                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-                s.synchronizeLibrary();
-            }));
-        }
-
-        //Save library and sources after synchronization
-        BladeApplication.obtainExecutorService().execute(() ->
-        {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-            //TODO : This is active waiting ; we could actually do passive waiting using a callback
-            // on synchronizeLibrary (using a lambda instead, synchronizeLibrary and call callback, checking
-            // if alldone...) ; the problem on that is that we need to wait for the for loop end to start all threads
-            boolean allDone = false;
-            while(!allDone)
-            {
-                allDone = true;
-                for(Future f : futures)
-                {
-                    if(!f.isDone())
-                        allDone = false;
-                }
-            }
+        return SyncOrchestrator.start(listener);
+    }
 
-            //Every source synchronization is done, we can now sort and save library
-            Library.generateLists();
-            Library.save();
-            Source.saveSources(); //scheduleSave, if a source changed, we stay ok...
-            doneCallback.run();
-            isSyncing = false;
-        });
+    /**
+     * Stops running synchronization ; library keeps what it had from sources that are not done
+     */
+    public static void cancelSynchronization()
+    {
+        SyncOrchestrator.cancel();
     }
 
     public static void initSources()
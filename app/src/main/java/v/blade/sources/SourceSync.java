@@ -0,0 +1,115 @@
+package v.blade.sources;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit2.Call;
+import v.blade.library.Library;
+
+/**
+ * Synchronization of a source library (see SyncOrchestrator) : its checkpoint, its progress, and
+ * its cancellation. Pagers of the synchronization (see ParallelPager) report requests to it, and
+ * stop requesting once it is cancelled
+ */
+public final class SourceSync
+{
+    final Source source;
+    private final SyncCheckpoint checkpoint;
+    private final SyncOrchestrator.Listener listener;
+
+    //Requests done, and requests planned (pages of collections whose total we know)
+    private final AtomicInteger pagesDone = new AtomicInteger();
+    private final AtomicInteger pagesTotal = new AtomicInteger();
+
+    private volatile boolean cancelled = false;
+    //Running requests, cancelled with synchronization
+    private final HashSet<Call<?>> calls = new HashSet<>();
+    //What source saves once its results are published
+    private final ArrayList<Runnable> onPublished = new ArrayList<>();
+
+    SourceSync(Source source, SyncCheckpoint checkpoint, SyncOrchestrator.Listener listener)
+    {
+        this.source = source;
+        this.checkpoint = checkpoint;
+        this.listener = listener;
+    }
+
+    /**
+     * @return checkpoint of synchronization, or null if source does not save it
+     */
+    public SyncCheckpoint checkpoint()
+    {
+        return checkpoint;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Runs action once synchronization results are published ; not run if synchronization is
+     * abandoned (e.g. cancelled, timed out), so that e.g. what source remembers from it is not saved
+     */
+    public synchronized void onPublished(Runnable action)
+    {
+        onPublished.add(action);
+    }
+
+    /*
+     * Synchronization results are published
+     */
+    synchronized void published()
+    {
+        for(Runnable action : onPublished) action.run();
+        onPublished.clear();
+    }
+
+    /**
+     * Stops synchronization : running requests are cancelled, and next requests fail
+     */
+    void cancel()
+    {
+        synchronized(calls)
+        {
+            cancelled = true;
+            for(Call<?> call : calls) call.cancel();
+            calls.clear();
+        }
+    }
+
+    /*
+     * Call is going to be executed
+     */
+    void started(Call<?> call) throws InterruptedIOException
+    {
+        synchronized(calls)
+        {
+            if(cancelled) throw new InterruptedIOException("Synchronization cancelled");
+            calls.add(call);
+        }
+    }
+
+    void finished(Call<?> call)
+    {
+        synchronized(calls)
+        {
+            calls.remove(call);
+        }
+        pageDone();
+    }
+
+    void addPages(int count)
+    {
+        pagesTotal.addAndGet(count);
+    }
+
+    void pageDone()
+    {
+        int done = pagesDone.incrementAndGet();
+        if(listener != null && source != null)
+            listener.onProgress(source, done, pagesTotal.get(), Library.stagedSongCount(source));
+    }
+}
@@ -0,0 +1,278 @@
+package v.blade.sources;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Progress of a source synchronization, saved as it goes : pages of the collections obtained so far,
+ * by collection key and offset. If the synchronization is interrupted (e.g. process killed), the next
+ * one replays them instead of requesting them again ; it is discarded once synchronization is published
+ * <p>
+ * Append-only, like the library journal (see LibraryJournal) : length (int), payload, CRC32 of payload (int)
+ * A truncated or corrupted record ends the replay
+ */
+public final class SyncCheckpoint
+{
+    private static final byte OP_TOTAL = 1;
+    private static final byte OP_PAGE = 2;
+
+    //Older progress is not worth resuming : collections probably changed since
+    private static final long MAX_AGE_MS = 12 * 60 * 60 * 1000;
+    private static final int MAX_RECORD_LENGTH = 16 << 20;
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+    //Total of the collection when its pages were obtained, by key
+    private final HashMap<String, Integer> totals = new HashMap<>();
+    //Obtained pages (JSON), by key then offset
+    private final HashMap<String, HashMap<Integer, byte[]>> pages = new HashMap<>();
+    private DataOutputStream out;
+    private int resumed = 0;
+
+    private SyncCheckpoint(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Opens checkpoint file, with the progress of an interrupted synchronization if any
+     */
+    public static SyncCheckpoint open(File file)
+    {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(file);
+        if(!file.exists()) return checkpoint;
+
+        if(System.currentTimeMillis() - file.lastModified() > MAX_AGE_MS)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return checkpoint;
+        }
+
+        int count = checkpoint.replay();
+        System.out.println("BLADE: Resuming interrupted synchronization, " + count + " checkpoint records");
+        return checkpoint;
+    }
+
+    /**
+     * Collection key is being obtained, with total items : pages obtained with another total are
+     * not valid anymore
+     */
+    synchronized void begin(String key, int total)
+    {
+        Integer previous = totals.get(key);
+        if(previous != null && previous == total) return;
+
+        totals.put(key, total);
+        pages.remove(key);
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(OP_TOTAL);
+            record.writeUTF(key);
+            record.writeInt(total);
+            record.flush();
+            append(bytes.toByteArray());
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Could not write sync checkpoint : " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * @return page of collection key at offset (or result with key, at offset 0), if it was obtained
+     * before interruption, or null
+     */
+    public synchronized <P> P get(String key, int offset, Type type)
+    {
+        HashMap<Integer, byte[]> keyPages = pages.get(key);
+        if(keyPages == null) return null;
+
+        //Page is written again if requested again, we don't need to keep it
+        byte[] json = keyPages.remove(offset);
+        if(json == null) return null;
+
+        try
+        {
+            P page = gson.fromJson(new String(json, StandardCharsets.UTF_8), type);
+            if(page != null) resumed++;
+            return page;
+        }
+        catch(JsonParseException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Saves page of collection key at offset, or any result with key (at offset 0)
+     */
+    public synchronized void put(String key, int offset, Object page, Type type)
+    {
+        try
+        {
+            byte[] json = gson.toJson(page, type).getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length + 64);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(OP_PAGE);
+            record.writeUTF(key);
+            record.writeInt(offset);
+            record.writeInt(json.length);
+            record.write(json);
+            record.flush();
+            append(bytes.toByteArray());
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Could not write sync checkpoint : " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * @return number of pages (or results) replayed instead of requested
+     */
+    public synchronized int resumed()
+    {
+        return resumed;
+    }
+
+    /**
+     * Deletes checkpoint : synchronization is over
+     */
+    public synchronized void discard()
+    {
+        close();
+        totals.clear();
+        pages.clear();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private void close()
+    {
+        if(out == null) return;
+        try
+        {
+            out.close();
+        }
+        catch(IOException ignored)
+        {
+        }
+        out = null;
+    }
+
+    private void append(byte[] payload) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        if(out == null) out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    /*
+     * Reads saved records ; records after a truncated one are dropped, so that we append after valid ones
+     */
+    private int replay()
+    {
+        int count = 0;
+        long valid = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while(true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch(EOFException end)
+                {
+                    break;
+                }
+                if(length <= 0 || length > MAX_RECORD_LENGTH) break;
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int expectedCrc = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payload.length);
+                if((int) crc.getValue() != expectedCrc) break;
+
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                valid += length + 8;
+                count++;
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE: Sync checkpoint truncated after " + count + " records");
+        }
+
+        if(valid < file.length()) truncate(valid);
+        return count;
+    }
+
+    private void apply(DataInputStream in) throws IOException
+    {
+        byte op = in.readByte();
+        String key = in.readUTF();
+        switch(op)
+        {
+            case OP_TOTAL:
+                totals.put(key, in.readInt());
+                pages.remove(key);
+                break;
+            case OP_PAGE:
+            {
+                int offset = in.readInt();
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                HashMap<Integer, byte[]> keyPages = pages.get(key);
+                if(keyPages == null) pages.put(key, keyPages = new HashMap<>());
+                keyPages.put(offset, json);
+                break;
+            }
+        }
+    }
+
+    private void truncate(long length)
+    {
+        try(FileOutputStream stream = new FileOutputStream(file, true))
+        {
+            stream.getChannel().truncate(length);
+        }
+        catch(IOException e)
+        {
+            //We could not append after valid records : start again
+            System.err.println("BLADE: Could not truncate sync checkpoint : " + e.getMessage());
+            totals.clear();
+            pages.clear();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
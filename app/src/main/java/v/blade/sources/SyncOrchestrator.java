@@ -0,0 +1,210 @@
+package v.blade.sources;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import v.blade.BladeApplication;
+import v.blade.library.Library;
+
+/**
+ * Library synchronization of every ready source : sources synchronize at the same time, each one is
+ * published as soon as it is done, and when the last one is done, library and sources are saved
+ * A source that takes too long, or every source if user cancels, is stopped : library keeps what it had
+ * from the source, and the source checkpoint is kept, so that next synchronization resumes it
+ */
+public final class SyncOrchestrator
+{
+    public interface Listener
+    {
+        /**
+         * Progress of a source, called from synchronization threads
+         * @param pagesTotal requests planned so far : it grows as collection totals are known
+         */
+        void onProgress(Source source, int pagesDone, int pagesTotal, int songs);
+
+        /**
+         * Every source is done (or stopped) and library is saved
+         */
+        void onDone(boolean cancelled);
+    }
+
+    //A source synchronization is stopped after that long
+    private static final long SOURCE_TIMEOUT_MS = 15 * 60 * 1000;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "BLADE-SYNC-TIMER");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static SyncOrchestrator running = null;
+    //Held by library changes made outside of synchronizations (see runOutsideSync)
+    private static final Object changes = new Object();
+
+    private final Listener listener;
+    private final ArrayList<SourceSync> syncs = new ArrayList<>();
+    private final AtomicInteger remaining;
+    private volatile boolean cancelled = false;
+
+    private SyncOrchestrator(Listener listener, int sourceCount)
+    {
+        this.listener = listener;
+        this.remaining = new AtomicInteger(sourceCount);
+    }
+
+    /**
+     * Starts synchronization of every ready source
+     * @return false if a synchronization is running already
+     */
+    public static boolean start(Listener listener)
+    {
+        //Sources synchronize into staging library contents : library stays as is until they are done
+        final List<Source> sources = new ArrayList<>();
+        SyncOrchestrator orchestrator;
+        synchronized(SyncOrchestrator.class)
+        {
+            if(running != null) return false;
+
+            for(Source s : Source.SOURCES)
+                if(s.status == Source.SourceStatus.STATUS_READY) sources.add(s);
+            orchestrator = new SyncOrchestrator(listener, sources.size());
+            running = orchestrator;
+            Source.isSyncing = true;
+        }
+
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_SYNC, () ->
+        {
+            //A library change started before synchronization is done first
+            synchronized(changes)
+            {
+                Library.beginSync(sources);
+            }
+
+            if(sources.isEmpty())
+            {
+                orchestrator.done();
+                return;
+            }
+            for(Source s : sources)
+                BladeApplication.execute(BladeApplication.Category.LIBRARY_SYNC, () -> orchestrator.synchronize(s));
+        });
+        return true;
+    }
+
+    /**
+     * Runs a library change of a source (e.g. observed MediaStore changes) if no synchronization is
+     * running ; a synchronization starting meanwhile waits for the change to be done
+     * @return false if a synchronization is running (it obtains the changes), change is not run
+     */
+    public static boolean runOutsideSync(Runnable change)
+    {
+        synchronized(changes)
+        {
+            synchronized(SyncOrchestrator.class)
+            {
+                if(running != null) return false;
+            }
+            change.run();
+            return true;
+        }
+    }
+
+    /**
+     * Stops running synchronization, if any
+     */
+    public static void cancel()
+    {
+        SyncOrchestrator orchestrator;
+        synchronized(SyncOrchestrator.class)
+        {
+            orchestrator = running;
+        }
+        if(orchestrator == null) return;
+
+        System.out.println("BLADE: Synchronization cancelled");
+        synchronized(orchestrator.syncs)
+        {
+            orchestrator.cancelled = true;
+            for(SourceSync sync : orchestrator.syncs) sync.cancel();
+        }
+    }
+
+    private void synchronize(Source s)
+    {
+        File checkpointFile = s.getCheckpointFile();
+        SourceSync sync = new SourceSync(s, checkpointFile == null ? null : SyncCheckpoint.open(checkpointFile), listener);
+        synchronized(syncs)
+        {
+            syncs.add(sync);
+            if(cancelled) sync.cancel();
+        }
+        ScheduledFuture<?> timeout = timer.schedule(() ->
+        {
+            System.err.println("BLADE: " + s.getName() + " synchronization timed out");
+            sync.cancel();
+        }, SOURCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        s.sync = sync;
+        boolean obtained = false;
+        try
+        {
+            obtained = s.synchronizeLibrary();
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("BLADE: " + s.getName() + " synchronization failed");
+            e.printStackTrace();
+        }
+        finally
+        {
+            s.sync = null;
+            timeout.cancel(false);
+
+            if(sync.isCancelled() || !obtained)
+            {
+                //Keep what we had, and the checkpoint to resume from : what was obtained is partial
+                if(!obtained) System.err.println("BLADE: " + s.getName() + " synchronization failed, library keeps previous songs");
+                Library.abandon(s);
+            }
+            else
+            {
+                //Show source library as soon as it is done
+                Library.publish(s);
+                sync.published();
+                SyncCheckpoint checkpoint = sync.checkpoint();
+                if(checkpoint != null)
+                {
+                    if(checkpoint.resumed() > 0)
+                        System.out.println("BLADE: " + s.getName() + " synchronization resumed " + checkpoint.resumed() + " saved results");
+                    checkpoint.discard();
+                }
+            }
+
+            if(remaining.decrementAndGet() == 0) done();
+        }
+    }
+
+    /*
+     * Last source is done : called once
+     */
+    private void done()
+    {
+        //Every source synchronization is done and published, we can now save library
+        Library.save();
+        Source.saveSources();
+
+        synchronized(SyncOrchestrator.class)
+        {
+            running = null;
+            Source.isSyncing = false;
+        }
+        listener.onDone(cancelled);
+    }
+}
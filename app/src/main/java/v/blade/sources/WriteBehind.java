@@ -0,0 +1,145 @@
+package v.blade.sources;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind of a file : write requests are coalesced, the write happens once, after a delay
+ * (so that a burst of changes is written once), on executor
+ * There is at most one write running : changes requested while writing are written by the next one
+ * Pending changes can be written without waiting for the delay (see flush)
+ */
+final class WriteBehind
+{
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "BLADE-WRITE-BEHIND");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Executor executor;
+    private final Runnable write;
+    private final long delayMs;
+
+    //Guarded by this
+    private boolean pending = false;
+    private boolean writing = false;
+    //Next write should not wait for the delay
+    private boolean flushing = false;
+    private ScheduledFuture<?> scheduled = null;
+    private long requests = 0;
+    private long writes = 0;
+
+    /**
+     * @param write writes the file ; it should write atomically (temporary file, then rename)
+     */
+    WriteBehind(Executor executor, long delayMs, Runnable write)
+    {
+        this.executor = executor;
+        this.delayMs = delayMs;
+        this.write = write;
+    }
+
+    /**
+     * Requests a write ; it is done later, with other requests made meanwhile
+     */
+    synchronized void request()
+    {
+        requests++;
+        if(pending) return;
+
+        pending = true;
+        //A write is running : it schedules the next one when it is done
+        if(!writing) schedule(delayMs);
+    }
+
+    /**
+     * Writes pending changes now, without waiting for the delay (e.g. app going to background,
+     * where process can be killed)
+     */
+    synchronized void flush()
+    {
+        if(!pending) return;
+
+        if(writing)
+        {
+            flushing = true;
+            return;
+        }
+        if(scheduled != null) scheduled.cancel(false);
+        schedule(0);
+    }
+
+    //Holding this
+    private void schedule(long delay)
+    {
+        scheduled = timer.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void start()
+    {
+        synchronized(this)
+        {
+            //Started already (flush)
+            if(!pending || writing) return;
+            pending = false;
+            writing = true;
+        }
+
+        try
+        {
+            executor.execute(this::write);
+        }
+        catch(RuntimeException e)
+        {
+            //e.g. executor rejected write : try again later, else nothing would be written anymore
+            System.err.println("BLADE: Could not start write : " + e.getMessage());
+            synchronized(this)
+            {
+                writing = false;
+                pending = true;
+                schedule(delayMs);
+            }
+        }
+    }
+
+    private void write()
+    {
+        try
+        {
+            write.run();
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                writes++;
+                writing = false;
+                if(pending) schedule(flushing ? 0 : delayMs);
+                flushing = false;
+            }
+        }
+    }
+
+    synchronized long getRequests()
+    {
+        return requests;
+    }
+
+    synchronized long getWrites()
+    {
+        return writes;
+    }
+
+    /**
+     * @return requests that did not need a write of their own
+     */
+    synchronized long getAvoided()
+    {
+        return requests - writes - (pending ? 1 : 0) - (writing ? 1 : 0);
+    }
+}
@@ -6,26 +6,31 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 
+import okhttp3.CacheControl;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import retrofit2.Call;
-import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 import v.blade.BladeApplication;
 import v.blade.BuildConfig;
 import v.blade.R;
+import v.blade.library.IngestSession;
 import v.blade.library.Library;
 import v.blade.library.Playlist;
 import v.blade.library.Song;
+import v.blade.sources.AccessToken;
+import v.blade.sources.ParallelPager;
+import v.blade.sources.RequestScheduler;
 import v.blade.sources.Source;
 import v.blade.ui.ExploreFragment;
 import v.blade.ui.SettingsActivity;
@@ -48,12 +53,14 @@ public class Deezer extends Source
     protected String account_password;
 
     //API login
-    private String ACCESS_TOKEN;
+    private volatile String ACCESS_TOKEN;
     private int TOKEN_EXPIRES_IN;
 
     protected String AUTH_STRING;
+    private final AccessToken token = new AccessToken(this::requestAccessToken);
+    //Deezer allows 50 requests every 5 seconds
+    private final RequestScheduler scheduler = new RequestScheduler(10, 10);
 
-    private Retrofit retrofit;
     private DeezerService service;
 
     public Deezer()
@@ -96,7 +103,19 @@ public class Deezer extends Source
         }
     }
 
+    /**
+     * Refreshes access token ; if other threads do it at the same time, only one refresh request is done
+     */
     protected boolean refreshAccessTokenSync()
+    {
+        return token.refresh();
+    }
+
+    /*
+     * Requests a new access token
+     * @return token lifetime in seconds (0 if it does not expire), or -1
+     */
+    private int requestAccessToken()
     {
         System.out.println("BLADE-DEEZER: Refreshing access token...");
 
@@ -114,7 +133,7 @@ public class Deezer extends Source
         {
             System.err.println("BLADE-DEEZER: NoSuchAlgorithmException (MD5)");
             e.printStackTrace();
-            return false;
+            return -1;
         }
 
         // Compute MD5 hash of request (client id + login + password + client secret)
@@ -132,17 +151,19 @@ public class Deezer extends Source
         {
             System.err.println("BLADE-DEEZER: NoSuchAlgorithmException (MD5)");
             e.printStackTrace();
-            return false;
+            return -1;
         }
 
         // Emit request
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = BladeApplication.obtainHttpClient();
         HttpUrl.Builder httpBuilder = Objects.requireNonNull(HttpUrl.parse("https://api.deezer.com/auth/token")).newBuilder();
         httpBuilder.addQueryParameter("app_id", CLIENT_ID)
                 .addQueryParameter("login", account_login)
                 .addQueryParameter("password", hashed_password)
                 .addQueryParameter("hash", hashed_request);
+        //Token response must not be stored in HTTP cache
         Request r = new Request.Builder()
+                .cacheControl(new CacheControl.Builder().noStore().build())
                 .addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36")
                 .url(httpBuilder.build())
                 .get().build();
@@ -156,7 +177,7 @@ public class Deezer extends Source
             {
                 String responseBody = response.body() == null ? "Unknown error" : response.body().string();
                 System.err.println("BLADE-DEEZER: Could not refresh token" + " (" + response.code() + " : " + responseBody + ")");
-                return false;
+                return -1;
             }
 
             Gson gson = new Gson();
@@ -165,18 +186,18 @@ public class Deezer extends Source
             if(sr == null)
             {
                 System.err.println("BLADE-DEEZER: Could not refresh token" + " (Could not parse JSON Token)");
-                return false;
+                return -1;
             }
 
             if(sr.error != null)
             {
                 System.err.println("BLADE-DEEZER: Could not refresh token, Deezer error: " + sr.error.message);
-                return false;
+                return -1;
             }
             if(sr.access_token == null || Objects.equals(sr.access_token, ""))
             {
                 System.err.println("BLADE-DEEZER: Could not refresh token, unknown Deezer error");
-                return false;
+                return -1;
             }
 
             ACCESS_TOKEN = sr.access_token;
@@ -185,14 +206,13 @@ public class Deezer extends Source
             Source.saveSources();
 
             System.out.println("BLADE-DEEZER: Successfully refreshed access token (ACCESS_TOKEN=" + ACCESS_TOKEN + ")");
+            return Math.max(TOKEN_EXPIRES_IN, 0);
         }
         catch(IOException e)
         {
             System.err.println("BLADE-DEEZER: Could not refresh access token (IOException trying to obtain token)");
-            return false;
+            return -1;
         }
-
-        return true;
     }
 
     private void notifyUiForStatus()
@@ -229,12 +249,17 @@ public class Deezer extends Source
         notifyUiForStatus();
         System.out.println("BLADE-DEEZER: Initializing Deezer...");
 
-        //build retrofit client
-        retrofit = new Retrofit.Builder().baseUrl(BASE_API_URL).addConverterFactory(GsonConverterFactory.create()).build();
-        service = retrofit.create(DeezerService.class);
+        //build retrofit client, with a client that puts current token in requests ('access_token' parameter),
+        //and schedules them within rate limit
+        OkHttpClient client = scheduler.client(token.client(BladeApplication.obtainHttpClient(), request ->
+                request.url().queryParameter("access_token") == null || ACCESS_TOKEN == null ? request :
+                        request.newBuilder().url(request.url().newBuilder()
+                                .setQueryParameter("access_token", ACCESS_TOKEN).build()).build()));
+        service = BladeApplication.obtainRetrofit(BASE_API_URL).newBuilder().client(client).build()
+                .create(DeezerService.class);
 
         // refresh access token
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LOGIN, () ->
         {
             if(refreshAccessTokenSync()) status = SourceStatus.STATUS_READY;
             else
@@ -251,172 +276,247 @@ public class Deezer extends Source
     }
 
     @Override
-    public void synchronizeLibrary()
+    protected File getCheckpointFile()
+    {
+        return new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + "/deezer_checkpoint");
+    }
+
+    //Requests done at once during library synchronization
+    private static final int SYNC_MAX_REQUESTS = 4;
+    private static final int SYNC_PAGE_SIZE = 50;
+    //Details of saved albums, by album id
+    private static final String ALBUM_CACHE_FILE = "/deezer_albums.json";
+
+    @Override
+    public boolean synchronizeLibrary()
     {
         System.out.println("BLADE-DEEZER: Syncing lib");
 
         try
         {
-            /* Obtain user tracks */
-            int tracksLeft;
-            int trackIndex = 0;
-            do
-            {
-                Call<DeezerService.UserTracksObject> userTracks =
-                        service.getUserTracks(ACCESS_TOKEN, 50, trackIndex);
+            ParallelPager pager = new ParallelPager(SYNC_MAX_REQUESTS, sync);
 
-                Response<DeezerService.UserTracksObject> response =
-                        userTracks.execute();
+            /* Obtain user tracks, albums and playlists, at the same time */
+            ArrayList<Future<Integer>> phases = new ArrayList<>();
+            phases.add(pager.submit(() -> synchronizeTracks(pager)));
+            phases.add(pager.submit(() -> synchronizeAlbums(pager)));
+            phases.add(pager.submit(() -> synchronizePlaylists(pager)));
+            ParallelPager.awaitAll(phases, null);
 
-                if(response.code() != 200 || response.body() == null) break;
+            System.out.println("BLADE-DEEZER: Lib synced");
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE-DEEZER: IOException while trying to sync library");
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-                DeezerService.UserTracksObject tracks = response.body();
+    private int synchronizeTracks(ParallelPager pager) throws IOException
+    {
+        ParallelPager.Result result = pager.fetchAll("tracks", DeezerService.UserTracksObject.class,
+                (limit, index) -> service.getUserTracks(ACCESS_TOKEN, limit, index),
+                SYNC_PAGE_SIZE, tracks -> tracks.total, (tracks, index) ->
+                {
+                    //Pages are added to library as they arrive
+                    try(IngestSession session = Library.openIngestSession(this))
+                    {
+                        if(index == 0) session.expectTracks(tracks.total);
+
+                        // Add each track
+                        for(DeezerService.UserTrackObject track : tracks.data)
+                        {
+                            String[] artists = new String[1];
+                            String[] artistsImages = new String[1];
+                            artists[0] = track.artist.name;
+                            artistsImages[0] = track.artist.picture_medium;
+
+                            // TODO : Obtain album artists ?
+                            String[] aartists = artists;
+                            String[] aartistsImages = artistsImages;
+
+                            session.addTrack(track.title, track.album.title, artists, artistsImages, track.id,
+                                    aartists, aartistsImages, track.album.cover_medium, track.album.cover_big,
+                                    1, //TODO : Obtain track rank
+                                    DEEZER_IMAGE_LEVEL, track.duration * 1000);
+                        }
+                    }
+                });
 
-                // Compute new track index, tracks left
-                trackIndex += 50;
-                tracksLeft = tracks.total - trackIndex;
+        //Keep what we knew rather than a truncated library
+        if(result.errorCode != 0) Library.keepSongs(this);
+        return result.errorCode;
+    }
 
-                // Add each track
-                for(DeezerService.UserTrackObject track : tracks.data)
+    /*
+     * Obtains user albums ; details of albums that are not cached yet are requested at the same time
+     */
+    private int synchronizeAlbums(ParallelPager pager) throws IOException
+    {
+        File cacheFile = new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + ALBUM_CACHE_FILE);
+        DeezerAlbumCache cache = DeezerAlbumCache.load(cacheFile);
+        ArrayList<DeezerAlbumCache.Album> albums = new ArrayList<>();
+        ArrayList<Future<DeezerAlbumCache.Album>> requested = new ArrayList<>();
+
+        ParallelPager.Result result = pager.fetchAll("albums", DeezerService.UserAlbumsObject.class,
+                (limit, index) -> service.getUserAlbums(ACCESS_TOKEN, limit, index),
+                SYNC_PAGE_SIZE, userAlbums -> userAlbums.total, (userAlbums, index) ->
                 {
-                    String[] artists = new String[1];
-                    String[] artistsImages = new String[1];
-                    artists[0] = track.artist.name;
-                    artistsImages[0] = track.artist.picture_medium;
-
-                    // TODO : Obtain album artists ?
-                    String[] aartists = artists;
-                    String[] aartistsImages = artistsImages;
-
-                    Library.addSong(track.title, track.album.title, artists, this, track.id, aartists,
-                            track.album.cover_medium,
-                            1, //TODO : Obtain track rank
-                            artistsImages, aartistsImages, track.album.cover_big, DEEZER_IMAGE_LEVEL);
-                }
-            } while(tracksLeft > 0);
+                    for(DeezerService.UserAlbumObject albumObject : userAlbums.data)
+                    {
+                        DeezerAlbumCache.Album album = cache.get(albumObject.id);
+                        synchronized(albums)
+                        {
+                            if(album != null) albums.add(album);
+                            else requested.add(pager.submit(() -> obtainAlbum(pager, cache, albumObject.id)));
+                        }
+                    }
+                });
 
-            /* Obtain user albums */
-            int albumsLeft;
-            int albumsIndex = 0;
-            do
+        int cached = albums.size();
+        ParallelPager.awaitAll(requested, albums);
+        //Keep what we knew rather than a truncated library
+        if(result.errorCode != 0 || albums.contains(null)) Library.keepSongs(this);
+        try(IngestSession session = Library.openIngestSession(this))
+        {
+            for(DeezerAlbumCache.Album album : albums)
             {
-                Call<DeezerService.UserAlbumsObject> userAlbums =
-                        service.getUserAlbums(ACCESS_TOKEN, 50, albumsIndex);
+                if(album == null) continue;
 
-                Response<DeezerService.UserAlbumsObject> response =
-                        userAlbums.execute();
+                //album artists
+                String[] aartists = new String[1];
+                String[] aartistsImages = new String[1];
+                aartists[0] = album.artist;
+                aartistsImages[0] = album.artistPicture;
 
-                if(response.code() != 200 || response.body() == null) break;
-
-                DeezerService.UserAlbumsObject albums = response.body();
-
-                // Compute new album index, albums left
-                albumsIndex += 50;
-                albumsLeft = albums.total - albumsIndex;
-
-                // Obtain each album tracks
-                for(DeezerService.UserAlbumObject albumObject : albums.data)
+                //add every song in album
+                int track_number = 0;
+                for(DeezerAlbumCache.Track track : album.tracks)
                 {
-                    Call<DeezerService.AlbumObject> albumCall = service.getAlbum(albumObject.id);
-                    Response<DeezerService.AlbumObject> albumResponse = albumCall.execute();
-                    if(albumResponse.code() != 200 || albumResponse.body() == null) continue;
-
-                    DeezerService.AlbumObject album = albumResponse.body();
+                    track_number++;
 
-                    //album artists
-                    String[] aartists = new String[1];
-                    String[] aartistsImages = new String[1];
-                    aartists[0] = album.artist.name;
-                    aartistsImages[0] = album.artist.picture_medium;
-
-                    //add every song in album
-                    int track_number = 0;
-                    for(DeezerService.SimpleTrackObject track : album.tracks.data)
-                    {
-                        track_number++;
-
-                        //song artists
-                        String[] artists = new String[1];
-                        String[] artistsImages = new String[1];
-                        artists[0] = track.artist.name;
+                    //song artists
+                    String[] artists = new String[1];
+                    artists[0] = track.artist;
 
-                        Library.addSong(track.title, album.title, artists, this, track.id, aartists,
-                                album.cover_medium,
-                                track_number,
-                                artistsImages, aartistsImages, album.cover_big, DEEZER_IMAGE_LEVEL);
-                    }
+                    session.addTrack(track.title, album.title, artists, null, track.id,
+                            aartists, aartistsImages, album.coverMedium, album.coverBig,
+                            track_number, DEEZER_IMAGE_LEVEL, track.duration);
                 }
+                session.flush();
             }
-            while(albumsLeft > 0);
-
-            /* Obtain user playlists */
-            int playlistsLeft;
-            int playlistIndex = 0;
-            do
-            {
-                Call<DeezerService.UserPlaylistsObject> userPlaylists =
-                        service.getUserPlaylists(ACCESS_TOKEN, 50, playlistIndex);
-
-                Response<DeezerService.UserPlaylistsObject> response =
-                        userPlaylists.execute();
+        }
 
-                if(response.code() != 200 || response.body() == null) break;
+        //Do not forget albums we could not list
+        if(result.errorCode == 0) cache.save(cacheFile);
+        System.out.println("BLADE-DEEZER: " + cached + " albums from cache, " + requested.size() + " albums requested");
+        return result.errorCode;
+    }
 
-                DeezerService.UserPlaylistsObject playlists = response.body();
+    /*
+     * Requests album details, and caches them ; null if album could not be obtained
+     */
+    private DeezerAlbumCache.Album obtainAlbum(ParallelPager pager, DeezerAlbumCache cache, long albumId) throws IOException
+    {
+        DeezerService.AlbumObject albumObject =
+                pager.fetch("album:" + albumId, DeezerService.AlbumObject.class, service.getAlbum(albumId));
+        if(albumObject == null) return null;
+
+        DeezerAlbumCache.Album album = new DeezerAlbumCache.Album();
+        album.title = albumObject.title;
+        album.artist = albumObject.artist.name;
+        album.artistPicture = albumObject.artist.picture_medium;
+        album.coverMedium = albumObject.cover_medium;
+        album.coverBig = albumObject.cover_big;
+        for(DeezerService.SimpleTrackObject trackObject : albumObject.tracks.data)
+        {
+            DeezerAlbumCache.Track track = new DeezerAlbumCache.Track();
+            track.id = trackObject.id;
+            track.title = trackObject.title;
+            track.artist = trackObject.artist.name;
+            track.duration = trackObject.duration * 1000;
+            album.tracks.add(track);
+        }
 
-                // Compute new album index, albums left
-                playlistIndex += 50;
-                playlistsLeft = playlists.total - playlistIndex;
+        cache.put(albumId, album);
+        return album;
+    }
 
-                // Add each playlist
-                for(DeezerService.UserPlaylistObject playlist : playlists.data)
+    private int synchronizePlaylists(ParallelPager pager) throws IOException
+    {
+        TreeMap<Integer, DeezerService.UserPlaylistObject[]> pages = new TreeMap<>();
+        ParallelPager.Result result = pager.fetchAll("playlists", DeezerService.UserPlaylistsObject.class,
+                (limit, index) -> service.getUserPlaylists(ACCESS_TOKEN, limit, index),
+                SYNC_PAGE_SIZE, playlists -> playlists.total, (playlists, index) ->
                 {
-                    Call<DeezerService.PlaylistObject> playlistCall =
-                            service.getPlaylist(playlist.id, ACCESS_TOKEN);
-                    Response<DeezerService.PlaylistObject> playlistObjectResponse =
-                            playlistCall.execute();
-
-                    if(playlistObjectResponse.code() != 200 ||
-                            playlistObjectResponse.body() == null) continue;
-
-                    DeezerService.PlaylistObject p = playlistObjectResponse.body();
-
-                    ArrayList<Song> songList = new ArrayList<Song>();
-
-                    // Obtain every song in playlist
-                    for(DeezerService.UserTrackObject track : p.tracks.data)
+                    synchronized(pages)
                     {
-                        String[] artists = new String[1];
-                        String[] artistsImages = new String[1];
-                        artists[0] = track.artist.name;
-                        artistsImages[0] = track.artist.picture_medium;
-
-                        // TODO : Obtain album artists ?
-                        String[] aartists = artists;
-                        String[] aartistsImages = artistsImages;
-
-                        Song song = Library.addSongHandle(track.title, track.album.title, artists, this, track.id, aartists,
-                                track.album.cover_medium,
-                                1, // TODO : obtain track number
-                                artistsImages, aartistsImages, track.album.cover_big, DEEZER_IMAGE_LEVEL);
-                        songList.add(song);
+                        pages.put(index, playlists.data);
                     }
+                });
 
-                    Library.addPlaylist(playlist.title, songList,
-                            playlist.picture_medium,
-                            (playlist.collaborative ? (BladeApplication.appContext.getString(R.string.collaborative) + " - ") : "") +
-                                    "Deezer",//(playlist.creator.id.equals(user_id) ? "" : playlist.creator.name), // TODO keep creator id
-                            this, playlist.id);
-                }
-            } while(playlistsLeft > 0);
-
-            System.out.println("BLADE-DEEZER: Lib synced");
+        // Obtain every playlist at the same time
+        ArrayList<DeezerService.UserPlaylistObject> playlists = new ArrayList<>();
+        ArrayList<Future<DeezerService.PlaylistObject>> playlistObjects = new ArrayList<>();
+        for(DeezerService.UserPlaylistObject[] page : pages.values())
+        {
+            for(DeezerService.UserPlaylistObject playlist : page)
+            {
+                playlists.add(playlist);
+                //Playlist obtained before an interruption is used if playlist did not change since
+                playlistObjects.add(pager.submit(() ->
+                        pager.fetch("playlist:" + playlist.id + ":" + playlist.checksum,
+                                DeezerService.PlaylistObject.class, service.getPlaylist(playlist.id, ACCESS_TOKEN))));
+            }
         }
-        catch(IOException e)
+        ArrayList<DeezerService.PlaylistObject> obtained = new ArrayList<>();
+        ParallelPager.awaitAll(playlistObjects, obtained);
+
+        // Add each playlist, in user order
+        ArrayList<Long> failed = new ArrayList<>();
+        for(int i = 0; i < playlists.size(); i++)
         {
-            System.err.println("BLADE-DEEZER: IOException while trying to sync library");
-            e.printStackTrace();
+            DeezerService.UserPlaylistObject playlist = playlists.get(i);
+            DeezerService.PlaylistObject p = obtained.get(i);
+            if(p == null)
+            {
+                failed.add(playlist.id);
+                continue;
+            }
+
+            ArrayList<Song> songList = new ArrayList<Song>();
+
+            // Obtain every song in playlist
+            for(DeezerService.UserTrackObject track : p.tracks.data)
+            {
+                String[] artists = new String[1];
+                String[] artistsImages = new String[1];
+                artists[0] = track.artist.name;
+                artistsImages[0] = track.artist.picture_medium;
+
+                // TODO : Obtain album artists ?
+                String[] aartists = artists;
+                String[] aartistsImages = artistsImages;
+
+                Song song = Library.addSongHandle(track.title, track.album.title, artists, this, track.id, aartists,
+                        track.album.cover_medium,
+                        1, // TODO : obtain track number
+                        artistsImages, aartistsImages, track.album.cover_big, DEEZER_IMAGE_LEVEL, track.duration * 1000);
+                songList.add(song);
+            }
+
+            Library.addPlaylist(playlist.title, songList,
+                    playlist.picture_medium,
+                    (playlist.collaborative ? (BladeApplication.appContext.getString(R.string.collaborative) + " - ") : "") +
+                            "Deezer",//(playlist.creator.id.equals(user_id) ? "" : playlist.creator.name), // TODO keep creator id
+                    this, playlist.id);
         }
+
+        //Keep the playlists we knew but could not obtain
+        Library.keepPlaylists(this, result.errorCode == 0 ? failed : null);
+        return result.errorCode;
     }
 
     @Override
@@ -0,0 +1,116 @@
+package v.blade.sources.deezer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Details of user saved albums, by Deezer album id : album track lists do not change, so an
+ * album obtained once is never requested again
+ */
+final class DeezerAlbumCache
+{
+    private static final int VERSION = 1;
+
+    static final class Track
+    {
+        long id;
+        String title;
+        String artist;
+        //Milliseconds
+        int duration;
+    }
+
+    /**
+     * What we need of an album to add its tracks to library
+     */
+    static final class Album
+    {
+        String title;
+        String artist;
+        String artistPicture;
+        String coverMedium;
+        String coverBig;
+        final ArrayList<Track> tracks = new ArrayList<>();
+    }
+
+    private static final class CacheFile
+    {
+        int version;
+        HashMap<Long, Album> albums;
+    }
+
+    private final HashMap<Long, Album> old;
+    //Albums still saved by user ; only those are saved
+    private final HashMap<Long, Album> current = new HashMap<>();
+
+    private DeezerAlbumCache(HashMap<Long, Album> old)
+    {
+        this.old = old;
+    }
+
+    static DeezerAlbumCache load(File file)
+    {
+        if(!file.exists()) return new DeezerAlbumCache(new HashMap<>());
+
+        try(JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))))
+        {
+            CacheFile cacheFile = new Gson().fromJson(reader, CacheFile.class);
+            if(cacheFile != null && cacheFile.version == VERSION && cacheFile.albums != null)
+                return new DeezerAlbumCache(cacheFile.albums);
+        }
+        catch(IOException | JsonParseException e)
+        {
+            System.err.println("BLADE-DEEZER: Could not read album cache : " + e.getMessage());
+        }
+        return new DeezerAlbumCache(new HashMap<>());
+    }
+
+    synchronized Album get(long albumId)
+    {
+        Album album = old.get(albumId);
+        if(album != null) current.put(albumId, album);
+        return album;
+    }
+
+    synchronized void put(long albumId, Album album)
+    {
+        current.put(albumId, album);
+    }
+
+    synchronized void save(File file)
+    {
+        CacheFile cacheFile = new CacheFile();
+        cacheFile.version = VERSION;
+        cacheFile.albums = current;
+
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try(JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))))
+        {
+            new Gson().toJson(cacheFile, CacheFile.class, writer);
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE-DEEZER: Could not save album cache : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if(!tmpFile.renameTo(file))
+            System.err.println("BLADE-DEEZER: Could not save album cache : could not replace file");
+    }
+}
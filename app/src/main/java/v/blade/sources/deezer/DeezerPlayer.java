@@ -24,7 +24,7 @@ public class DeezerPlayer extends Source.Player
     }
 
     @Override
-    public void playSong(Song song)
+    public void playSong(Song song, long request)
     {
 
     }
@@ -87,7 +87,7 @@ public class DeezerSettingsFragment extends Fragment
         binding.settingsDeezerInit.setOnClickListener(v ->
         {
             //tODO CHANGE
-            BladeApplication.obtainExecutorService().execute(deezer::synchronizeLibrary);
+            BladeApplication.execute(BladeApplication.Category.LIBRARY_SYNC, deezer::synchronizeLibrary);
             //deezer.setStatus(Source.SourceStatus.STATUS_NEED_INIT);
             //deezer.initSource();
         });
@@ -3,9 +3,12 @@ package v.blade.sources.local;
 import android.Manifest;
 import android.content.ContentResolver;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,15 +22,25 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import v.blade.BladeApplication;
 import v.blade.R;
 import v.blade.databinding.SettingsFragmentLocalBinding;
+import v.blade.library.IngestSession;
 import v.blade.library.Library;
 import v.blade.library.Playlist;
 import v.blade.library.Song;
 import v.blade.sources.Source;
+import v.blade.sources.SourceInformation;
+import v.blade.sources.SyncOrchestrator;
 import v.blade.ui.ExploreFragment;
 
 public class Local extends Source
@@ -37,6 +50,20 @@ public class Local extends Source
     public static final int IMAGE_RESOURCE = R.drawable.ic_local;
 
     private static final int LOCAL_IMAGE_LEVEL = 1;
+    //MediaStore is not paged : songs are added to library by pages of that size
+    private static final int INGEST_PAGE_SIZE = 100;
+    //MediaStore changes are applied once no other change came for that long
+    private static final long OBSERVER_DELAY_MS = 300;
+    //Columns read from MediaStore for a track
+    private static final String[] TRACK_PROJECTION = {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM, MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.DURATION};
+
+    //MediaStore state of last scan : version, and generation (or latest modification date) ; mark is -1 if never scanned
+    private String scanVersion = "";
+    private boolean scanByGeneration = false;
+    private long scanMark = -1;
+    private ContentObserver observer;
 
     public Local()
     {
@@ -51,6 +78,7 @@ public class Local extends Source
         if(!checkPermission()) return;
 
         super.initSource();
+        registerObserver();
     }
 
     @Override
@@ -60,23 +88,124 @@ public class Local extends Source
     }
 
     @Override
-    public void synchronizeLibrary()
+    public boolean synchronizeLibrary()
     {
-        //Obtain library
         ContentResolver contentResolver = BladeApplication.appContext.getContentResolver();
-        Cursor musicCursor = ContentResolverCompat.query(contentResolver,
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, null, null, null,
-                null, null);
-        if(musicCursor != null && musicCursor.moveToFirst())
+        String version = mediaStoreVersion();
+        long generation = mediaStoreGeneration();
+        boolean byGeneration = generation >= 0;
+
+        //Obtain MediaStore rows, and those changed since last scan
+        MediaStoreScan scan = scanIds(contentResolver, byGeneration, scanMark);
+        if(scan == null) return false;
+
+        boolean incremental = scanMark >= 0 && scanByGeneration == byGeneration && version.equals(scanVersion);
+        ArrayList<Long> toRead = new ArrayList<>();
+        if(incremental)
         {
-            int titleColumn = musicCursor.getColumnIndex(MediaStore.MediaColumns.TITLE);
-            int idColumn = musicCursor.getColumnIndex(MediaStore.MediaColumns._ID);
-            int artistColumn = musicCursor.getColumnIndex(MediaStore.Audio.Artists.ARTIST);
-            int albumColumn = musicCursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM);
+            //Unchanged rows are kept as library has them ; rows library does not have are read, as changed ones
+            Set<Long> known = knownIds().keySet();
+            ArrayList<Long> unchanged = new ArrayList<>(scan.ids.size());
+            for(Long id : scan.ids)
+            {
+                if(scan.changed.contains(id) || !known.contains(id)) toRead.add(id);
+                else unchanged.add(id);
+            }
+            int kept = Library.keepSongs(this, unchanged);
+            System.out.println("BLADE: Local incremental scan, " + kept + " songs kept, " + toRead.size() + " rows read");
+        }
+
+        IngestSession session = Library.openIngestSession(this);
+        session.expectTracks(incremental ? toRead.size() : scan.ids.size());
+        readTracks(contentResolver, incremental ? toRead : null, session);
+        session.close();
+
+        //Obtain playlists
+
+        if(sync == null || !sync.isCancelled())
+        {
+            scanVersion = version;
+            scanByGeneration = byGeneration;
+            scanMark = byGeneration ? generation : scan.mark;
+        }
+        return true;
+    }
+
+    /*
+     * MediaStore rows, from a query of ids (and modification marks) only
+     */
+    private static final class MediaStoreScan
+    {
+        final ArrayList<Long> ids = new ArrayList<>();
+        //Rows modified after the mark
+        final HashSet<Long> changed = new HashSet<>();
+        //Latest modification date (seconds), if MediaStore has no generations
+        long mark = -1;
+    }
+
+    /*
+     * @return MediaStore rows, with those modified since mark (generation, or date), or null if MediaStore could not be queried
+     */
+    private static MediaStoreScan scanIds(ContentResolver contentResolver, boolean byGeneration, long mark)
+    {
+        String[] projection = byGeneration && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ?
+                new String[]{MediaStore.Audio.Media._ID, MediaStore.Audio.Media.GENERATION_MODIFIED} :
+                new String[]{MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media.DATE_ADDED};
+
+        Cursor cursor = ContentResolverCompat.query(contentResolver, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                projection, null, null, null, null);
+        if(cursor == null) return null;
+
+        MediaStoreScan scan = new MediaStoreScan();
+        while(cursor.moveToNext())
+        {
+            long id = cursor.getLong(0);
+            scan.ids.add(id);
+
+            //Dates are those of the file, that can be older than its addition : we also look at addition date
+            long modified = byGeneration ? cursor.getLong(1) : Math.max(cursor.getLong(1), cursor.getLong(2));
+            if(modified > mark) scan.changed.add(id);
+            if(!byGeneration) scan.mark = Math.max(scan.mark, modified);
+        }
+        cursor.close();
+        return scan;
+    }
+
+    /*
+     * Reads tracks of given ids (every track if ids is null) from MediaStore, adding them to session
+     */
+    private void readTracks(ContentResolver contentResolver, List<Long> ids, IngestSession session)
+    {
+        //MediaStore queries are limited in arguments : ids are read by pages
+        int pages = ids == null ? 1 : (ids.size() + INGEST_PAGE_SIZE - 1) / INGEST_PAGE_SIZE;
+        for(int page = 0; page < pages; page++)
+        {
+            String selection = null;
+            if(ids != null)
+            {
+                StringBuilder in = new StringBuilder(MediaStore.Audio.Media._ID).append(" IN (");
+                for(int i = page * INGEST_PAGE_SIZE; i < Math.min(ids.size(), (page + 1) * INGEST_PAGE_SIZE); i++)
+                {
+                    if(i != page * INGEST_PAGE_SIZE) in.append(',');
+                    in.append(ids.get(i));
+                }
+                selection = in.append(')').toString();
+            }
+
+            Cursor musicCursor = ContentResolverCompat.query(contentResolver,
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, TRACK_PROJECTION, selection, null,
+                    null, null);
+            if(musicCursor == null) continue;
+
+            int titleColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int idColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int artistColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int albumColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
             int trackNumberColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
-            int albumIdColumn = musicCursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ID);
+            int albumIdColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int durationColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
 
-            do
+            while(musicCursor.moveToNext())
             {
                 String title = musicCursor.getString(titleColumn);
 
@@ -92,20 +221,129 @@ public class Local extends Source
                 String album = musicCursor.getString(albumColumn);
                 long id = musicCursor.getLong(idColumn);
                 int track_number = musicCursor.getInt(trackNumberColumn);
+                int duration = musicCursor.getInt(durationColumn);
 
                 //Load album art if it exists
                 long albumId = musicCursor.getLong(albumIdColumn);
                 String pathUri = "content://media/external/audio/albumart/" + albumId;
 
-                Library.addSong(title, album, artists, this, id, artists, pathUri, track_number, new String[artists.length], new String[artists.length], pathUri, LOCAL_IMAGE_LEVEL);
+                session.addTrack(title, album, artists, null, id, artists, null, pathUri, pathUri, track_number, LOCAL_IMAGE_LEVEL, duration);
+                if(musicCursor.getPosition() % INGEST_PAGE_SIZE == INGEST_PAGE_SIZE - 1) session.flush();
             }
-            while(musicCursor.moveToNext());
-
             musicCursor.close();
         }
+    }
 
-        //Obtain playlists
+    /*
+     * @return library songs of this source, by MediaStore id
+     */
+    private HashMap<Long, Song> knownIds()
+    {
+        HashMap<Long, Song> known = new HashMap<>();
+        for(Song song : Library.getSongs())
+        {
+            for(SourceInformation si : song.getSources())
+            {
+                if(si.source == this && !si.handled && si.id instanceof Number)
+                {
+                    known.put(((Number) si.id).longValue(), song);
+                    break;
+                }
+            }
+        }
+        return known;
+    }
+
+    /*
+     * Applies MediaStore changes since last scan to library at once, without a synchronization :
+     * new rows are added, modified rows update their songs, removed rows are removed
+     * A synchronization does not start while changes are applied (see SyncOrchestrator.runOutsideSync)
+     */
+    private synchronized void applyChanges()
+    {
+        //Synchronization (or next one) obtains the changes
+        if(scanMark < 0) return;
+        SyncOrchestrator.runOutsideSync(this::applyChangesNow);
+    }
+
+    private void applyChangesNow()
+    {
+        ContentResolver contentResolver = BladeApplication.appContext.getContentResolver();
+        String version = mediaStoreVersion();
+        long generation = mediaStoreGeneration();
+        boolean byGeneration = generation >= 0;
+        if(scanByGeneration != byGeneration || !version.equals(scanVersion)) return;
+
+        MediaStoreScan scan = scanIds(contentResolver, byGeneration, scanMark);
+        if(scan == null) return;
+
+        HashMap<Long, Song> known = knownIds();
+        HashSet<Long> removed = new HashSet<>(known.keySet());
+        removed.removeAll(scan.ids);
+        ArrayList<Long> toRead = new ArrayList<>();
+        for(Long id : scan.ids)
+            if(scan.changed.contains(id) || !known.containsKey(id)) toRead.add(id);
+        if(removed.isEmpty() && toRead.isEmpty()) return;
+
+        //Modified rows update their song object (kept e.g. in play queue, playlists) ; library lists are rebuilt once, on close
+        try(IngestSession session = Library.openIngestSession(this))
+        {
+            for(Long id : toRead)
+            {
+                Song song = known.get(id);
+                if(song != null) session.updateSong(song, id);
+            }
+            for(Long id : removed) session.removeSong(known.get(id));
+            readTracks(contentResolver, toRead, session);
+        }
 
+        System.out.println("BLADE: Local changes applied, " + toRead.size() + " rows read, " + removed.size() + " removed");
+        scanMark = byGeneration ? generation : Math.max(scanMark, scan.mark);
+        Source.saveSources();
+    }
+
+    private static String mediaStoreVersion()
+    {
+        //Generations of another MediaStore version (e.g. database rebuilt) are not comparable
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return MediaStore.getVersion(BladeApplication.appContext);
+        return "";
+    }
+
+    /*
+     * @return current MediaStore generation, or -1 if MediaStore has none (before Android 11)
+     */
+    private static long mediaStoreGeneration()
+    {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return -1;
+        try
+        {
+            return MediaStore.getGeneration(BladeApplication.appContext, MediaStore.VOLUME_EXTERNAL);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return -1;
+        }
+    }
+
+    private void registerObserver()
+    {
+        if(observer != null) return;
+
+        //MediaStore notifies every step of a change (e.g. insertion, then metadata scan) : we wait for the last one
+        Handler handler = new Handler(Looper.getMainLooper());
+        Runnable apply = () -> BladeApplication.execute(BladeApplication.Category.LIBRARY_SYNC, this::applyChanges);
+        observer = new ContentObserver(handler)
+        {
+            @Override
+            public void onChange(boolean selfChange)
+            {
+                handler.removeCallbacks(apply);
+                handler.postDelayed(apply, OBSERVER_DELAY_MS);
+            }
+        };
+        BladeApplication.appContext.getContentResolver()
+                .registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer);
     }
 
     @Override
@@ -121,6 +359,9 @@ public class Local extends Source
         Gson gson = new Gson();
 
         jsonObject.add("class", gson.toJsonTree(Local.class.getName(), String.class));
+        jsonObject.addProperty("scan_version", scanVersion);
+        jsonObject.addProperty("scan_by_generation", scanByGeneration);
+        jsonObject.addProperty("scan_mark", scanMark);
 
         return jsonObject;
     }
@@ -128,7 +369,14 @@ public class Local extends Source
     @Override
     public void restoreFromJSON(JsonObject jsonObject)
     {
-
+        JsonElement scanVersionJson = jsonObject.get("scan_version");
+        JsonElement scanByGenerationJson = jsonObject.get("scan_by_generation");
+        JsonElement scanMarkJson = jsonObject.get("scan_mark");
+        if(scanVersionJson == null || scanByGenerationJson == null || scanMarkJson == null) return;
+
+        scanVersion = scanVersionJson.getAsString();
+        scanByGeneration = scanByGenerationJson.getAsBoolean();
+        scanMark = scanMarkJson.getAsLong();
     }
 
     @Override
@@ -221,12 +469,12 @@ public class Local extends Source
                 if(checkAndAskPermission())
                 {
                     Toast.makeText(requireContext(), getString(R.string.permission_already_granted), Toast.LENGTH_SHORT).show();
-                    local.status = SourceStatus.STATUS_READY;
+                    local.initSource();
                 }
                 else if(local.checkPermission())
                 {
                     Toast.makeText(requireContext(), getString(R.string.permission_granted), Toast.LENGTH_SHORT).show();
-                    local.status = SourceStatus.STATUS_READY;
+                    local.initSource();
                 }
             });
 
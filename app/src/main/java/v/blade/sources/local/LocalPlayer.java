@@ -49,7 +49,7 @@ public class LocalPlayer extends Source.Player
     }
 
     @Override
-    public void playSong(Song song)
+    public void playSong(Song song, long request)
     {
         //Obtain id
         SourceInformation current = null;
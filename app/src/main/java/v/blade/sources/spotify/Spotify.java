@@ -2,7 +2,6 @@ package v.blade.sources.spotify;
 
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Process;
 import android.util.ArrayMap;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,6 +17,7 @@ import androidx.fragment.app.Fragment;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
 import com.spotify.sdk.android.auth.AuthorizationClient;
 import com.spotify.sdk.android.auth.AuthorizationRequest;
 import com.spotify.sdk.android.auth.AuthorizationResponse;
@@ -26,10 +26,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.FormBody;
 import okhttp3.MediaType;
@@ -38,17 +43,20 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 import v.blade.BladeApplication;
 import v.blade.BuildConfig;
 import v.blade.R;
 import v.blade.databinding.SettingsFragmentSpotifyBinding;
+import v.blade.library.IngestSession;
 import v.blade.library.Library;
 import v.blade.library.Playlist;
 import v.blade.library.Song;
+import v.blade.sources.AccessToken;
+import v.blade.sources.ParallelPager;
+import v.blade.sources.RequestScheduler;
 import v.blade.sources.Source;
 import v.blade.sources.SourceInformation;
+import v.blade.sources.SyncCheckpoint;
 import v.blade.ui.ExploreFragment;
 import v.blade.ui.SettingsActivity;
 import xyz.gianlu.librespot.audio.decoders.AudioQuality;
@@ -117,9 +125,11 @@ public class Spotify extends Source
     private String ACCESS_TOKEN;
     private String REFRESH_TOKEN;
     private int TOKEN_EXPIRES_IN;
-    protected String AUTH_STRING;
+    protected volatile String AUTH_STRING;
+    private final AccessToken token = new AccessToken(this::requestAccessToken);
+    //Spotify rate limit is a rolling 30 seconds window ; we stay well below it
+    private final RequestScheduler scheduler = new RequestScheduler(10, 20);
 
-    private Retrofit retrofit;
     protected SpotifyService service;
 
     @Override
@@ -162,12 +172,11 @@ public class Spotify extends Source
         notifyUiForStatus();
 
         //build retrofit client
-        retrofit = new Retrofit.Builder().baseUrl(BASE_API_URL).addConverterFactory(GsonConverterFactory.create()).build();
-        service = retrofit.create(SpotifyService.class);
+        service = createService();
 
         //refresh access token
         System.out.println("BLADE-SPOTIFY: Refresh token " + REFRESH_TOKEN);
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = BladeApplication.obtainHttpClient();
         RequestBody requestBody = new FormBody.Builder()
                 .add("grant_type", "refresh_token")
                 .add("refresh_token", REFRESH_TOKEN)
@@ -177,10 +186,8 @@ public class Spotify extends Source
         Request request = new Request.Builder().url("https://accounts.spotify.com/api/token")
                 .post(requestBody).build();
         okhttp3.Call call = client.newCall(request);
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LOGIN, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
-
             System.out.println("BLADE-SPOTIFY: Player is logging in...");
             //First init the player
             boolean login = ((SpotifyPlayer) player).login(account_login, account_password);
@@ -227,6 +234,7 @@ public class Spotify extends Source
                     REFRESH_TOKEN = sr.refresh_token;
 
                 AUTH_STRING = AUTH_TYPE + ACCESS_TOKEN;
+                token.obtained(TOKEN_EXPIRES_IN);
 
                 status = SourceStatus.STATUS_READY;
 
@@ -245,15 +253,28 @@ public class Spotify extends Source
         });
     }
 
-    protected void refreshAccessTokenSync()
+    /*
+     * API service, with a client that puts current token in requests (see AccessToken), and
+     * schedules them within rate limit (see RequestScheduler)
+     */
+    private SpotifyService createService()
     {
-        //build retrofit client
-        retrofit = new Retrofit.Builder().baseUrl(BASE_API_URL).addConverterFactory(GsonConverterFactory.create()).build();
-        service = retrofit.create(SpotifyService.class);
+        OkHttpClient client = scheduler.client(token.client(BladeApplication.obtainHttpClient(), request ->
+                request.header("Authorization") == null || AUTH_STRING == null ? request :
+                        request.newBuilder().header("Authorization", AUTH_STRING).build()));
+        return BladeApplication.obtainRetrofit(BASE_API_URL).newBuilder().client(client).build()
+                .create(SpotifyService.class);
+    }
 
+    /*
+     * Requests a new access token
+     * @return token lifetime in seconds, or -1
+     */
+    private int requestAccessToken()
+    {
         //refresh access token
         System.out.println("BLADE-SPOTIFY: Refresh token " + REFRESH_TOKEN);
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = BladeApplication.obtainHttpClient();
         RequestBody requestBody = new FormBody.Builder()
                 .add("grant_type", "refresh_token")
                 .add("refresh_token", REFRESH_TOKEN)
@@ -270,7 +291,7 @@ public class Spotify extends Source
             {
                 String responseBody = response.body() == null ? "Unknown error" : response.body().string();
                 System.err.println("BLADE-SPOTIFY: Could not refresh token" + " (" + response.code() + " : " + responseBody + ")");
-                return;
+                return -1;
             }
 
             Gson gson = new Gson();
@@ -279,7 +300,7 @@ public class Spotify extends Source
             if(sr == null)
             {
                 System.err.println("BLADE-SPOTIFY: Could not refresh token" + " (Could not parse JSON Token)");
-                return;
+                return -1;
             }
 
             ACCESS_TOKEN = sr.access_token;
@@ -291,11 +312,13 @@ public class Spotify extends Source
             AUTH_STRING = AUTH_TYPE + ACCESS_TOKEN;
 
             Source.saveSources();
+            return Math.max(TOKEN_EXPIRES_IN, 0);
         }
         catch(IOException e)
         {
             status = SourceStatus.STATUS_NEED_INIT;
             System.err.println("BLADE-SPOTIFY: Could not refresh access token (IOException trying to obtain token)");
+            return -1;
         }
     }
 
@@ -305,208 +328,359 @@ public class Spotify extends Source
     }
 
     @Override
-    public void synchronizeLibrary()
+    protected File getCheckpointFile()
+    {
+        return new File(BladeApplication.appContext.getFilesDir().getAbsolutePath() + "/spotify_checkpoint_" + user_id);
+    }
+
+    //Requests done at once during library synchronization
+    private static final int SYNC_MAX_REQUESTS = 8;
+    private static final int PLAYLISTS_PAGE_SIZE = 50;
+    private static final int PLAYLIST_ITEMS_PAGE_SIZE = 100;
+    //Types of what we save in sync checkpoint
+    private static final Type SAVED_TRACKS_PAGE =
+            new TypeToken<SpotifyService.PagingObject<SpotifyService.SavedTrackObject>>()
+            {
+            }.getType();
+    private static final Type SAVED_ALBUMS_PAGE =
+            new TypeToken<SpotifyService.PagingObject<SpotifyService.SavedAlbumObject>>()
+            {
+            }.getType();
+    private static final Type PLAYLISTS_PAGE =
+            new TypeToken<SpotifyService.PagingObject<SpotifyService.SimplifiedPlaylistObject>>()
+            {
+            }.getType();
+
+    private static final SpotifyDelta.Ids<SpotifyService.SavedTrackObject> SAVED_TRACK_ID =
+            savedTrack -> savedTrack.track == null ? null : savedTrack.track.id;
+    private static final SpotifyDelta.Ids<SpotifyService.SavedAlbumObject> SAVED_ALBUM_ID =
+            savedAlbum -> savedAlbum.album == null ? null : savedAlbum.album.id;
+    private static final SpotifyDelta.TrackIds<SpotifyService.SavedAlbumObject> SAVED_ALBUM_TRACK_IDS = (savedAlbum, into) ->
+    {
+        if(savedAlbum.album == null || savedAlbum.album.tracks == null) return;
+        for(SpotifyService.SimplifiedTrackObject track : savedAlbum.album.tracks.items) into.add(track.id);
+    };
+
+    @Override
+    public boolean synchronizeLibrary()
     {
+        System.out.println("BLADE-SPOTIFY: Syncing lib");
         try
         {
-            System.out.println("BLADE-SPOTIFY: Syncing lib");
-            /* Obtain user tracks */
-            int tracksLeft;
-            int tracksIndex = 0;
-            do
+            String filesDir = BladeApplication.appContext.getFilesDir().getAbsolutePath();
+            File stateFile = new File(filesDir + "/spotify_sync_" + user_id + ".json");
+            File playlistCacheFile = new File(filesDir + "/spotify_playlists_" + user_id + ".json");
+            SpotifySyncState loaded = SpotifySyncState.load(stateFile);
+            SpotifySyncState state = loaded == null ? SpotifySyncState.empty() : loaded;
+            ParallelPager pager = new ParallelPager(SYNC_MAX_REQUESTS, sync);
+
+            /* Obtain user tracks, albums and playlists, at the same time */
+            ArrayList<Future<Integer>> phases = new ArrayList<>();
+            Future<SpotifyDelta.Listing<SpotifyService.SavedTrackObject>> tracks =
+                    pager.submit(() -> synchronizeSavedTracks(pager, state.tracks));
+            Future<SpotifyDelta.Listing<SpotifyService.SavedAlbumObject>> albums =
+                    pager.submit(() -> synchronizeSavedAlbums(pager, state.albums));
+            phases.add(pager.submit(() -> synchronizePlaylists(pager, playlistCacheFile)));
+            phases.add(pager.submit(() -> ParallelPager.await(tracks).errorCode));
+            phases.add(pager.submit(() -> ParallelPager.await(albums).errorCode));
+            ArrayList<Integer> errorCodes = new ArrayList<>();
+            ParallelPager.awaitAll(phases, errorCodes);
+
+            if(errorCodes.contains(401))
             {
-                Call<SpotifyService.PagingObject<SpotifyService.SavedTrackObject>> userTracks =
-                        service.getUserSavedTracks(AUTH_STRING, 50, tracksIndex * 50);
-                Response<SpotifyService.PagingObject<SpotifyService.SavedTrackObject>> response =
-                        userTracks.execute();
+                //Token could not be refreshed (see AccessToken) : keep what we knew
+                System.err.println("BLADE-SPOTIFY: Expired token while syncing library");
+                return false;
+            }
 
-                if(response.code() == 401)
+            //Remember what we obtained, with the songs library now has from it, once library has it
+            state.tracks = SpotifyDelta.next(ParallelPager.await(tracks), SAVED_TRACK_ID, null, state.tracks);
+            state.albums = SpotifyDelta.next(ParallelPager.await(albums), SAVED_ALBUM_ID, SAVED_ALBUM_TRACK_IDS, state.albums);
+            if(state.tracks != null) state.tracks.songCount = Library.countSongs(this, state.tracks.trackIds());
+            if(state.albums != null) state.albums.songCount = Library.countSongs(this, state.albums.trackIds());
+            sync.onPublished(() -> state.save(stateFile));
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE-SPOTIFY: Error while syncing library: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        System.out.println("BLADE-SPOTIFY: Lib sync done");
+        return true;
+    }
+
+    /*
+     * Obtains user saved tracks : only the ones saved since last sync, if none was removed
+     */
+    private SpotifyDelta.Listing<SpotifyService.SavedTrackObject> synchronizeSavedTracks(ParallelPager pager, SpotifyDelta.Known known)
+            throws IOException
+    {
+        SpotifyDelta.Pages<SpotifyService.SavedTrackObject> pages =
+                (limit, offset) -> service.getUserSavedTracks(AUTH_STRING, limit, offset);
+        SpotifyDelta.Listing<SpotifyService.SavedTrackObject> tracks = SpotifyDelta.list(pager, "tracks", SAVED_TRACKS_PAGE, pages, SAVED_TRACK_ID, known);
+
+        if(tracks.incremental && Library.keepSongs(this, known.ids) != known.songCount)
+        {
+            //Library does not contain every known track anymore : obtain everything
+            tracks = SpotifyDelta.list(pager, "tracks", SAVED_TRACKS_PAGE, pages, SAVED_TRACK_ID, null);
+        }
+        if(tracks.errorCode != 0)
+        {
+            System.err.println("BLADE-SPOTIFY: Error while syncing tracks: non-200 error code " + tracks.errorCode);
+            //Keep what we had
+            if(known != null) Library.keepSongs(this, known.ids);
+            return tracks;
+        }
+
+        try(IngestSession session = Library.openIngestSession(this))
+        {
+            session.expectTracks(tracks.total);
+            for(int i = 0; i < tracks.items.size(); i++)
+            {
+                SpotifyService.TrackObject track = tracks.items.get(i).track;
+                if(track == null || track.album == null || track.artists == null || track.album.images.length == 0)
+                    continue; //TODO check ?
+
+                //album artists
+                String[] aartists = new String[track.album.artists.length];
+                for(int j = 0; j < track.album.artists.length; j++)
                 {
-                    //Expired token
-                    System.err.println("BLADE-SPOTIFY: Expired token while syncing library, refreshing...");
-                    refreshAccessTokenSync();
-                    synchronizeLibrary();
-                    return;
+                    aartists[j] = track.album.artists[j].name;
                 }
 
-                if(response.code() != 200 || response.body() == null)
+                //song artists
+                String[] artists = new String[track.artists.length];
+                for(int j = 0; j < track.artists.length; j++)
                 {
-                    System.err.println("BLADE-SPOTIFY: Error while syncing library: non-200 error code " + response.code());
-                    System.err.println("BLADE-SPOTIFY: Response error body: " + response.errorBody().string());
-                    break;
+                    artists[j] = track.artists[j].name;
+                    //TODO artists images ?
                 }
-                SpotifyService.PagingObject<SpotifyService.SavedTrackObject> trackPaging = response.body();
 
-                for(SpotifyService.SavedTrackObject savedTrack : trackPaging.items)
+                session.addTrack(track.name, track.album.name, artists, null, track.id, aartists, null,
+                        track.album.images[track.album.images.length - 2].url, track.album.images[0].url,
+                        computeTrackNumber(track.disc_number, track.track_number), SPOTIFY_IMAGE_LEVEL, track.duration_ms);
+                if((i + 1) % SpotifyDelta.PAGE_SIZE == 0) session.flush();
+            }
+        }
+
+        System.out.println("BLADE-SPOTIFY: " + tracks.items.size() + " tracks obtained with " + tracks.requests
+                + " requests" + (tracks.incremental ? " (incremental)" : ""));
+        return tracks;
+    }
+
+    /*
+     * Obtains user saved albums, the same way as tracks
+     */
+    private SpotifyDelta.Listing<SpotifyService.SavedAlbumObject> synchronizeSavedAlbums(ParallelPager pager, SpotifyDelta.Known known)
+            throws IOException
+    {
+        SpotifyDelta.Pages<SpotifyService.SavedAlbumObject> pages =
+                (limit, offset) -> service.getUserSavedAlbums(AUTH_STRING, limit, offset);
+        SpotifyDelta.Listing<SpotifyService.SavedAlbumObject> albums = SpotifyDelta.list(pager, "albums", SAVED_ALBUMS_PAGE, pages, SAVED_ALBUM_ID, known);
+
+        if(albums.incremental && Library.keepSongs(this, known.trackIds) != known.songCount)
+            albums = SpotifyDelta.list(pager, "albums", SAVED_ALBUMS_PAGE, pages, SAVED_ALBUM_ID, null);
+        if(albums.errorCode != 0)
+        {
+            if(known != null) Library.keepSongs(this, known.trackIds);
+            return albums;
+        }
+
+        try(IngestSession session = Library.openIngestSession(this))
+        {
+            for(SpotifyService.SavedAlbumObject savedAlbum : albums.items)
+            {
+                SpotifyService.AlbumObject album = savedAlbum.album;
+                if(album == null || album.artists == null || album.tracks == null || album.images.length == 0)
+                    continue;
+
+                //album artists
+                String[] aartists = new String[album.artists.length];
+                for(int j = 0; j < album.artists.length; j++)
                 {
-                    SpotifyService.TrackObject track = savedTrack.track;
-                    if(track.album == null || track.artists == null || track.album.images.length == 0)
-                        continue; //TODO check ?
-
-                    //album artists
-                    String[] aartists = new String[track.album.artists.length];
-                    String[] aartistsImages = new String[track.album.artists.length];
-                    for(int j = 0; j < track.album.artists.length; j++)
-                    {
-                        aartists[j] = track.album.artists[j].name;
-                    }
+                    aartists[j] = album.artists[j].name;
+                }
 
+                //add every song in album
+                for(SpotifyService.SimplifiedTrackObject track : album.tracks.items)
+                {
                     //song artists
                     String[] artists = new String[track.artists.length];
-                    String[] artistsImages = new String[track.artists.length];
                     for(int j = 0; j < track.artists.length; j++)
                     {
                         artists[j] = track.artists[j].name;
-                        //artistsImages[j] = track.artists[j].images //TODO artists images ?
+                        //TODO artists images ?
                     }
 
-                    Library.addSong(track.name, track.album.name, artists, this, track.id, aartists,
-                            track.album.images[track.album.images.length - 2].url,
-                            computeTrackNumber(track.disc_number, track.track_number),
-                            artistsImages, aartistsImages, track.album.images[0].url, SPOTIFY_IMAGE_LEVEL);
+                    session.addTrack(track.name, album.name, artists, null, track.id, aartists, null,
+                            album.images[album.images.length - 2].url, album.images[0].url,
+                            computeTrackNumber(track.disc_number, track.track_number), SPOTIFY_IMAGE_LEVEL, track.duration_ms);
                 }
-
-                tracksLeft = trackPaging.total - 50 * (tracksIndex + 1);
-                tracksIndex++;
+                session.flush();
             }
-            while(tracksLeft > 0);
-
-            /* Obtain user albums */
-            int albumsLeft;
-            int albumIndex = 0;
-            do
-            {
-                Call<SpotifyService.PagingObject<SpotifyService.SavedAlbumObject>> userAlbums =
-                        service.getUserSavedAlbums(AUTH_STRING, 50, albumIndex * 50);
-                Response<SpotifyService.PagingObject<SpotifyService.SavedAlbumObject>> response =
-                        userAlbums.execute();
+        }
+        return albums;
+    }
 
-                if(response.code() != 200 || response.body() == null) break;
-                SpotifyService.PagingObject<SpotifyService.SavedAlbumObject> albumPaging = response.body();
+    /*
+     * Obtains user playlists, and the tracks of every playlist at the same time ; tracks of playlists
+     * that did not change since last sync are cached
+     * @return response code of the failed playlists request, or 0
+     */
+    private int synchronizePlaylists(ParallelPager pager, File cacheFile) throws IOException
+    {
+        SpotifyPlaylistCache cache = SpotifyPlaylistCache.load(cacheFile);
+        SyncCheckpoint checkpoint = sync == null ? null : sync.checkpoint();
 
-                for(SpotifyService.SavedAlbumObject savedAlbum : albumPaging.items)
+        TreeMap<Integer, SpotifyService.SimplifiedPlaylistObject[]> pages = new TreeMap<>();
+        ParallelPager.Result result = pager.fetchAll("playlists", PLAYLISTS_PAGE,
+                (limit, offset) -> service.getListOfCurrentUserPlaylists(AUTH_STRING, limit, offset),
+                PLAYLISTS_PAGE_SIZE, page -> page.total, (page, offset) ->
                 {
-                    SpotifyService.AlbumObject album = savedAlbum.album;
-                    if(album.artists == null || album.tracks == null || album.images.length == 0)
-                        continue;
-
-                    //album artists
-                    String[] aartists = new String[album.artists.length];
-                    String[] aartistsImages = new String[album.artists.length];
-                    for(int j = 0; j < album.artists.length; j++)
+                    synchronized(pages)
                     {
-                        aartists[j] = album.artists[j].name;
+                        pages.put(offset, page.items);
                     }
+                });
 
-                    //add every song in album
-                    for(SpotifyService.SimplifiedTrackObject track : album.tracks.items)
+        AtomicInteger requestsSaved = new AtomicInteger();
+        ArrayList<SpotifyService.SimplifiedPlaylistObject> playlists = new ArrayList<>();
+        ArrayList<Future<SpotifyPlaylistCache.Entry>> entries = new ArrayList<>();
+        for(SpotifyService.SimplifiedPlaylistObject[] page : pages.values())
+        {
+            for(SpotifyService.SimplifiedPlaylistObject playlist : page)
+            {
+                playlists.add(playlist);
+                entries.add(pager.submit(() ->
+                {
+                    SpotifyPlaylistCache.Entry entry = cache.get(playlist.id, playlist.snapshot_id);
+                    if(entry != null)
                     {
-                        //song artists
-                        String[] artists = new String[track.artists.length];
-                        String[] artistsImages = new String[track.artists.length];
-                        for(int j = 0; j < track.artists.length; j++)
-                        {
-                            artists[j] = track.artists[j].name;
-                            //artistsImages[j] = track.artists[j].images //TODO artists images ?
-                        }
+                        requestsSaved.addAndGet(entry.requests);
+                        return entry;
+                    }
 
-                        Library.addSong(track.name, album.name, artists, this, track.id, aartists,
-                                album.images[album.images.length - 2].url,
-                                computeTrackNumber(track.disc_number, track.track_number),
-                                artistsImages, aartistsImages, album.images[0].url, SPOTIFY_IMAGE_LEVEL);
+                    //Tracks obtained before an interruption, from the same snapshot
+                    String key = "playlist:" + playlist.id + ":" + playlist.snapshot_id;
+                    entry = checkpoint == null ? null : checkpoint.get(key, 0, SpotifyPlaylistCache.Entry.class);
+                    if(entry != null)
+                    {
+                        requestsSaved.addAndGet(entry.requests);
+                    }
+                    else
+                    {
+                        entry = obtainPlaylistTracks(pager, playlist);
+                        if(entry != null && checkpoint != null)
+                            checkpoint.put(key, 0, entry, SpotifyPlaylistCache.Entry.class);
                     }
-                }
 
-                albumsLeft = albumPaging.total - 50 * (albumIndex + 1);
-                albumIndex++;
+                    if(entry != null) cache.put(playlist.id, entry);
+                    return entry;
+                }));
             }
-            while(albumsLeft > 0);
+        }
+        ArrayList<SpotifyPlaylistCache.Entry> obtained = new ArrayList<>();
+        ParallelPager.awaitAll(entries, obtained);
 
-            /* Obtain user playlists */
-            int playlistsLeft;
-            int playlistIndex = 0;
-            do
+        //Add playlists in user order
+        ArrayList<String> failed = new ArrayList<>();
+        for(int i = 0; i < playlists.size(); i++)
+        {
+            SpotifyService.SimplifiedPlaylistObject playlist = playlists.get(i);
+            SpotifyPlaylistCache.Entry entry = obtained.get(i);
+            if(entry == null)
             {
-                Call<SpotifyService.PagingObject<SpotifyService.SimplifiedPlaylistObject>> userPlaylists =
-                        service.getListOfCurrentUserPlaylists(AUTH_STRING, 50, playlistIndex * 50);
-                Response<SpotifyService.PagingObject<SpotifyService.SimplifiedPlaylistObject>> response =
-                        userPlaylists.execute();
+                //Some items could not be obtained : keep the playlist we knew rather than a truncated one
+                failed.add(playlist.id);
+                continue;
+            }
 
-                if(response.code() != 200 || response.body() == null) break;
-                SpotifyService.PagingObject<SpotifyService.SimplifiedPlaylistObject> playlistPaging = response.body();
+            ArrayList<Song> songList = new ArrayList<>(entry.tracks.size());
+            for(SpotifyPlaylistCache.Track track : entry.tracks)
+            {
+                Song song = Library.addSongHandle(track.name, track.album, track.artists, this, track.id, track.albumArtists,
+                        track.albumMiniatureURL, track.trackNumber, new String[track.artists.length],
+                        new String[track.albumArtists.length], track.albumImageURL, SPOTIFY_IMAGE_LEVEL, track.duration);
+                songList.add(song);
+            }
 
-                for(SpotifyService.SimplifiedPlaylistObject playlist : playlistPaging.items)
-                {
-                    //Obtain song list
-                    ArrayList<Song> songList = new ArrayList<>();
+            Library.addPlaylist(playlist.name, songList,
+                    playlist.images.length == 0 ? null :
+                            (playlist.images[0] == null ? null : playlist.images[0].url),
+                    (playlist.collaborative ? (BladeApplication.appContext.getString(R.string.collaborative) + " - ") : "") +
+                            (playlist.owner.id.equals(user_id) ? "" : playlist.owner.display_name),
+                    this, playlist.id);
+        }
+
+        Library.keepPlaylists(this, failed);
 
-                    int songsLeft;
-                    int songIndex = 0;
-                    do
+        //Do not forget playlists we could not list
+        if(result.errorCode == 0) cache.save(cacheFile);
+        else Library.keepPlaylists(this, null);
+        System.out.println("BLADE-SPOTIFY: " + requestsSaved.get() + " playlist item requests saved by playlist cache");
+        return result.errorCode;
+    }
+
+    /*
+     * Obtains tracks of playlist, pages at the same time ; null if a page could not be obtained
+     */
+    private SpotifyPlaylistCache.Entry obtainPlaylistTracks(ParallelPager pager, SpotifyService.SimplifiedPlaylistObject playlist)
+            throws IOException
+    {
+        TreeMap<Integer, SpotifyService.PlaylistTrackObject[]> pages = new TreeMap<>();
+        ParallelPager.Result result = pager.fetchAll(
+                (limit, offset) -> service.getPlaylistItems(AUTH_STRING, playlist.id, limit, offset),
+                PLAYLIST_ITEMS_PAGE_SIZE, page -> page.total, (page, offset) ->
+                {
+                    synchronized(pages)
                     {
-                        Call<SpotifyService.PagingObject<SpotifyService.PlaylistTrackObject>> playlistTracks =
-                                service.getPlaylistItems(AUTH_STRING, playlist.id, 100, songIndex * 100);
-                        Response<SpotifyService.PagingObject<SpotifyService.PlaylistTrackObject>> response2 =
-                                playlistTracks.execute();
+                        pages.put(offset, page.items);
+                    }
+                });
 
-                        if(response2.code() != 200 || response2.body() == null) break;
-                        SpotifyService.PagingObject<SpotifyService.PlaylistTrackObject> songsPaging = response2.body();
+        if(result.errorCode != 0) return null;
 
-                        for(SpotifyService.PlaylistTrackObject playlistTrack : songsPaging.items)
-                        {
-                            SpotifyService.TrackObject track = playlistTrack.track;
-                            if(track.album == null || track.artists == null || track.album.images.length == 0)
-                                continue;
-
-                            //album artists
-                            String[] aartists = new String[track.album.artists.length];
-                            String[] aartistsImages = new String[track.album.artists.length];
-                            for(int j = 0; j < track.album.artists.length; j++)
-                            {
-                                aartists[j] = track.album.artists[j].name;
-                            }
-
-                            //song artists
-                            String[] artists = new String[track.artists.length];
-                            String[] artistsImages = new String[track.artists.length];
-                            for(int j = 0; j < track.artists.length; j++)
-                            {
-                                artists[j] = track.artists[j].name;
-                                //artistsImages[j] = track.artists[j].images //TODO artists images ?
-                            }
-
-                            Song song = Library.addSongHandle(track.name, track.album.name, artists, this, track.id, aartists,
-                                    track.album.images[track.album.images.length - 2].url,
-                                    computeTrackNumber(track.disc_number, track.track_number),
-                                    artistsImages, aartistsImages, track.album.images[0].url, SPOTIFY_IMAGE_LEVEL);
-                            songList.add(song);
-                        }
+        SpotifyPlaylistCache.Entry entry = new SpotifyPlaylistCache.Entry();
+        entry.snapshotId = playlist.snapshot_id;
+        entry.requests = result.requests;
+        for(SpotifyService.PlaylistTrackObject[] page : pages.values())
+        {
+            for(SpotifyService.PlaylistTrackObject playlistTrack : page)
+            {
+                SpotifyService.TrackObject track = playlistTrack.track;
+                if(track == null || track.album == null || track.artists == null || track.album.images.length == 0)
+                    continue;
+
+                SpotifyPlaylistCache.Track cached = new SpotifyPlaylistCache.Track();
+                cached.id = track.id;
+                cached.name = track.name;
+                cached.album = track.album.name;
+
+                //album artists
+                cached.albumArtists = new String[track.album.artists.length];
+                for(int j = 0; j < track.album.artists.length; j++)
+                {
+                    cached.albumArtists[j] = track.album.artists[j].name;
+                }
 
-                        songsLeft = songsPaging.total - 100 * (songIndex + 1);
-                        songIndex++;
-                    }
-                    while(songsLeft > 0);
-
-                    Library.addPlaylist(playlist.name, songList,
-                            playlist.images.length == 0 ? null :
-                                    (playlist.images[0] == null ? null : playlist.images[0].url),
-                            (playlist.collaborative ? (BladeApplication.appContext.getString(R.string.collaborative) + " - ") : "") +
-                                    (playlist.owner.id.equals(user_id) ? "" : playlist.owner.display_name),
-                            this, playlist.id);
+                //song artists
+                cached.artists = new String[track.artists.length];
+                for(int j = 0; j < track.artists.length; j++)
+                {
+                    cached.artists[j] = track.artists[j].name;
+                    //TODO artists images ?
                 }
 
-                playlistsLeft = playlistPaging.total - 50 * (playlistIndex + 1);
-                playlistIndex++;
+                cached.albumMiniatureURL = track.album.images[track.album.images.length - 2].url;
+                cached.albumImageURL = track.album.images[0].url;
+                cached.trackNumber = computeTrackNumber(track.disc_number, track.track_number);
+                cached.duration = track.duration_ms;
+                entry.tracks.add(cached);
             }
-            while(playlistsLeft > 0);
         }
-        catch(IOException e)
-        {
-            System.err.println("BLADE-SPOTIFY: Error while syncing library: " + e.getMessage());
-            e.printStackTrace();
-        }
-
-        System.out.println("BLADE-SPOTIFY: Lib sync done");
+        return entry;
     }
 
     @Override
@@ -561,10 +735,8 @@ public class Spotify extends Source
     @Override
     public void explore(ExploreFragment view)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
             Call<SpotifyService.FeaturedPlaylistsResult> call =
                     service.getFeaturedPlaylists(AUTH_STRING);
             try
@@ -572,14 +744,6 @@ public class Spotify extends Source
                 Response<SpotifyService.FeaturedPlaylistsResult> response =
                         call.execute();
 
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    explore(view);
-                    return;
-                }
-
                 SpotifyService.FeaturedPlaylistsResult r = response.body();
                 if(response.code() != 200 || r == null || r.playlists == null)
                 {
@@ -611,24 +775,14 @@ public class Spotify extends Source
     @Override
     public void exploreSearch(String query, ExploreFragment view)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
             //NOTE : for now we limit to 10 search results ; it seems ok (we could go to 50 but it is a lot...)
             Call<SpotifyService.SearchResult> call = service.search(AUTH_STRING, query, "track,artist,album", 10);
             try
             {
                 Response<SpotifyService.SearchResult> response = call.execute();
 
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    exploreSearch(query, view);
-                    return;
-                }
-
                 SpotifyService.SearchResult r = response.body();
                 if(response.code() != 200 || r == null)
                 {
@@ -650,10 +804,8 @@ public class Spotify extends Source
     @Override
     public void addSongToPlaylist(Song song, Playlist playlist, Runnable callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             String id = null;
             for(SourceInformation s : song.getSources())
             {
@@ -671,14 +823,6 @@ public class Spotify extends Source
             {
                 Response<SpotifyService.PlaylistAddResponse> response = call.execute();
 
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    addSongToPlaylist(song, playlist, callback, failureCallback);
-                    return;
-                }
-
                 if(response.code() != 201)
                 {
                     System.err.println("BLADE-SPOTIFY: Could not add " + song.getName() + " to playlist " + playlist.getName() + " : " + response.code());
@@ -699,10 +843,8 @@ public class Spotify extends Source
     @Override
     public void createPlaylist(String name, BladeApplication.Callback<Playlist> callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             Map<String, Object> jsonParams = new ArrayMap<>();
             jsonParams.put("name", name);
             JSONObject jsonBody = new JSONObject(jsonParams);
@@ -714,13 +856,6 @@ public class Spotify extends Source
             {
                 Response<SpotifyService.SimplifiedPlaylistObject> response = call.execute();
                 SpotifyService.SimplifiedPlaylistObject r = response.body();
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    createPlaylist(name, callback, failureCallback);
-                    return;
-                }
 
                 if(response.code() != 201 || r == null)
                 {
@@ -730,11 +865,7 @@ public class Spotify extends Source
                 }
 
                 //Create playlist locally
-                Playlist playlist = Library.addPlaylist(name, new ArrayList<>(), null, "", this, r.id);
-
-                //Save library
-                Library.save();
-                saveSources();
+                Playlist playlist = Library.createPlaylist(name, this, r.id);
 
                 //Run callback
                 callback.run(playlist);
@@ -749,22 +880,13 @@ public class Spotify extends Source
     @Override
     public void removePlaylist(Playlist playlist, Runnable callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             Call<Void> call = service.unfollowPlaylist(AUTH_STRING, (String) playlist.getSource().id);
 
             try
             {
                 Response<Void> response = call.execute();
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    removePlaylist(playlist, callback, failureCallback);
-                    return;
-                }
                 if(response.code() != 200)
                 {
                     System.err.println("BLADE-SPOTIFY: Could not delete playlist " + playlist.getName() + " : " + response.code());
@@ -784,10 +906,8 @@ public class Spotify extends Source
     @Override
     public void addToLibrary(Song song, Runnable callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             //Get song source
             SourceInformation current = null;
             for(SourceInformation s : song.getSources())
@@ -804,13 +924,6 @@ public class Spotify extends Source
             try
             {
                 Response<Void> response = call.execute();
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    addToLibrary(song, callback, failureCallback);
-                    return;
-                }
                 if(response.code() != 200)
                 {
                     System.err.println("BLADE-SPOTIFY: Could not save song " + song.getName() + " : " + response.code());
@@ -830,10 +943,8 @@ public class Spotify extends Source
     @Override
     public void removeFromLibrary(Song song, Runnable callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             //Get song source
             SourceInformation current = null;
             for(SourceInformation s : song.getSources())
@@ -850,13 +961,6 @@ public class Spotify extends Source
             try
             {
                 Response<Void> response = call.execute();
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    removeFromLibrary(song, callback, failureCallback);
-                    return;
-                }
                 if(response.code() != 200)
                 {
                     System.err.println("BLADE-SPOTIFY: Could not remove song " + song.getName() + " : " + response.code());
@@ -876,10 +980,8 @@ public class Spotify extends Source
     @Override
     public void removeFromPlaylist(Song song, Playlist playlist, Runnable callback, Runnable failureCallback)
     {
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LIBRARY_EDIT, () ->
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
             //Get song source
             SourceInformation current = null;
             for(SourceInformation s : song.getSources())
@@ -906,13 +1008,6 @@ public class Spotify extends Source
                 Call<SpotifyService.PlaylistAddResponse> call = service.removePlaylistItem(AUTH_STRING, (String) playlist.getSource().id, body);
 
                 Response<SpotifyService.PlaylistAddResponse> response = call.execute();
-                if(response.code() == 401)
-                {
-                    //Expired token
-                    refreshAccessTokenSync();
-                    removeFromPlaylist(song, playlist, callback, failureCallback);
-                    return;
-                }
                 if(response.code() != 200)
                 {
                     System.err.println("BLADE-SPOTIFY: Could not remove " + song.getName() + " from playlist " + playlist.getName() + " : " + response.code());
@@ -993,10 +1088,8 @@ public class Spotify extends Source
 
             //Set 'sign in' button action : call spotify auth
             binding.settingsSpotifySignIn.setOnClickListener(v ->
-                    BladeApplication.obtainExecutorService().execute(() ->
+                    BladeApplication.execute(BladeApplication.Category.LOGIN, () ->
                     {
-                        Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
-
                         //Try to login player
                         String userName = binding.settingsSpotifyUser.getText().toString();
                         String userPass = binding.settingsSpotifyPassword.getText().toString();
@@ -1140,7 +1233,7 @@ public class Spotify extends Source
             /* Authentication ok : we got code ; now we need to obtain access and refresh tokens */
             final String code = response.getCode();
 
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = BladeApplication.obtainHttpClient();
             RequestBody body = new FormBody.Builder()
                     .add("grant_type", "authorization_code")
                     .add("code", code)
@@ -1153,10 +1246,8 @@ public class Spotify extends Source
                     .post(body).build();
             okhttp3.Call call = client.newCall(request);
 
-            BladeApplication.obtainExecutorService().execute(() ->
+            BladeApplication.execute(BladeApplication.Category.LOGIN, () ->
             {
-                Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
-
                 try
                 {
                     okhttp3.Response postResponse = call.execute();
@@ -1185,10 +1276,10 @@ public class Spotify extends Source
                     spotify.REFRESH_TOKEN = sr.refresh_token;
                     spotify.TOKEN_EXPIRES_IN = sr.expires_in;
                     spotify.AUTH_STRING = AUTH_TYPE + spotify.ACCESS_TOKEN;
+                    spotify.token.obtained(spotify.TOKEN_EXPIRES_IN);
 
                     //init
-                    spotify.retrofit = new Retrofit.Builder().baseUrl(BASE_API_URL).addConverterFactory(GsonConverterFactory.create()).build();
-                    spotify.service = spotify.retrofit.create(SpotifyService.class);
+                    spotify.service = spotify.createService();
 
                     //obtain account name and id
                     System.out.println("BLADE-SPOTIFY: AUTH_STRING=" + spotify.AUTH_STRING);
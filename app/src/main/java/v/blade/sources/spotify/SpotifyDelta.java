@@ -0,0 +1,184 @@
+package v.blade.sources.spotify;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+import retrofit2.Response;
+import v.blade.sources.ParallelPager;
+
+/**
+ * Incremental listing of a Spotify saved items collection ('me/tracks', 'me/albums')
+ * Those are ordered by 'added_at', newest first : new items are the ones before the first
+ * known item, so paging stops there. Known items are unchanged if none was removed, that is
+ * if remote 'total' is known count plus new items count ; otherwise, everything is listed again,
+ * with parallel requests
+ */
+final class SpotifyDelta
+{
+    static final int PAGE_SIZE = 50;
+
+    interface Pages<T> extends ParallelPager.Pages<SpotifyService.PagingObject<T>>
+    {
+    }
+
+    interface Ids<T>
+    {
+        String id(T item);
+    }
+
+    /**
+     * What we know of a collection since last synchronization
+     */
+    static final class Known
+    {
+        //Items ids, newest first
+        final ArrayList<String> ids = new ArrayList<>();
+        //Tracks ids of items, if items are not tracks (albums)
+        final ArrayList<String> trackIds;
+        //Number of library songs obtained from those tracks, to check that library still has them
+        int songCount;
+        private HashSet<String> idSet;
+
+        Known(boolean hasTrackIds)
+        {
+            this.trackIds = hasTrackIds ? new ArrayList<>() : null;
+        }
+
+        List<String> trackIds()
+        {
+            return trackIds == null ? ids : trackIds;
+        }
+
+        boolean contains(String id)
+        {
+            if(idSet == null) idSet = new HashSet<>(ids);
+            return idSet.contains(id);
+        }
+    }
+
+    static final class Listing<T>
+    {
+        //Items to add : only new items if listing is incremental, every item otherwise
+        final ArrayList<T> items = new ArrayList<>();
+        //Known items are unchanged : they were not listed
+        boolean incremental = false;
+        int total = 0;
+        //Response code of the failed request, or 0
+        int errorCode = 0;
+        int requests = 0;
+    }
+
+    private SpotifyDelta()
+    {
+    }
+
+    /**
+     * @param key key of collection in pager checkpoint, full listings are saved with it (see SyncCheckpoint)
+     * @param pageType type of collection pages, to save them
+     */
+    static <T> Listing<T> list(ParallelPager pager, String key, Type pageType, Pages<T> pages, Ids<T> ids, Known known)
+            throws IOException
+    {
+        if(known == null) return listAll(pager, key, pageType, pages);
+
+        Listing<T> listing = new Listing<>();
+        int offset = 0;
+        boolean reachedKnown = false;
+        do
+        {
+            Response<SpotifyService.PagingObject<T>> response = pager.execute(pages.get(PAGE_SIZE, offset));
+            listing.requests++;
+            if(response.code() != 200 || response.body() == null)
+            {
+                listing.errorCode = response.code();
+                return listing;
+            }
+
+            SpotifyService.PagingObject<T> page = response.body();
+            listing.total = page.total;
+            for(T item : page.items)
+            {
+                if(known.contains(ids.id(item)))
+                {
+                    reachedKnown = true;
+                    break;
+                }
+                listing.items.add(item);
+            }
+
+            if(page.items.length == 0) break;
+            offset += page.items.length;
+        }
+        while(!reachedKnown && offset < listing.total);
+
+        if(!reachedKnown) return listing;
+        if(listing.total == known.ids.size() + listing.items.size())
+        {
+            listing.incremental = true;
+            return listing;
+        }
+
+        //Some known items were removed : list everything again
+        int requests = listing.requests;
+        Listing<T> full = listAll(pager, key, pageType, pages);
+        full.requests += requests;
+        return full;
+    }
+
+    /*
+     * Lists every item ; pages arrive in any order, items keep collection order
+     */
+    private static <T> Listing<T> listAll(ParallelPager pager, String key, Type pageType, Pages<T> pages) throws IOException
+    {
+        Listing<T> listing = new Listing<>();
+        TreeMap<Integer, T[]> received = new TreeMap<>();
+        ParallelPager.Result result = pager.fetchAll(key, pageType, pages, PAGE_SIZE, page -> page.total, (page, offset) ->
+        {
+            synchronized(received)
+            {
+                received.put(offset, page.items);
+                if(offset == 0) listing.total = page.total;
+            }
+        });
+
+        listing.requests = result.requests;
+        listing.errorCode = result.errorCode;
+        for(T[] items : received.values()) Collections.addAll(listing.items, items);
+        return listing;
+    }
+
+    interface TrackIds<T>
+    {
+        void add(T item, List<String> into);
+    }
+
+    /**
+     * What we know of collection after listing : new items, then known items if listing was incremental
+     * If listing failed, we keep what we knew
+     * @param trackIds tracks of items, or null if items are tracks
+     */
+    static <T> Known next(Listing<T> listing, Ids<T> ids, TrackIds<T> trackIds, Known known)
+    {
+        if(listing.errorCode != 0) return known;
+
+        Known next = new Known(trackIds != null);
+        for(T item : listing.items)
+        {
+            String id = ids.id(item);
+            if(id == null) continue;
+            next.ids.add(id);
+            if(trackIds != null) trackIds.add(item, next.trackIds);
+        }
+        if(listing.incremental)
+        {
+            next.ids.addAll(known.ids);
+            if(trackIds != null) next.trackIds.addAll(known.trackIds);
+        }
+        return next;
+    }
+}
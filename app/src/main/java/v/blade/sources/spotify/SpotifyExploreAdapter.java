@@ -1,7 +1,6 @@
 package v.blade.sources.spotify;
 
 import android.annotation.SuppressLint;
-import android.os.Process;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -95,7 +94,7 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
 
         return Library.addSongHandle(track.name, album.name, artists, exploreFragment.current, track.id, aartists,
                 album.images[album.images.length - 2].url, track.track_number,
-                artistsImages, aartistsImages, album.images[0].url, Spotify.SPOTIFY_IMAGE_LEVEL);
+                artistsImages, aartistsImages, album.images[0].url, Spotify.SPOTIFY_IMAGE_LEVEL, track.duration_ms);
     }
 
     private SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> albumTracks(SpotifyService.SimplifiedAlbumObject currentAlbum)
@@ -112,13 +111,6 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
             Response<SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject>> response =
                     call.execute();
 
-            if(response.code() == 401)
-            {
-                //Expired token
-                spotify.refreshAccessTokenSync();
-                return albumTracks(currentAlbum);
-            }
-
             SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> r = response.body();
             if(response.code() != 200 || r == null)
             {
@@ -154,13 +146,6 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
             Response<SpotifyService.PagingObject<SpotifyService.PlaylistTrackObject>> response =
                     call.execute();
 
-            if(response.code() == 401)
-            {
-                //Expired token
-                spotify.refreshAccessTokenSync();
-                return playlistTracks(currentPlaylist);
-            }
-
             SpotifyService.PagingObject<SpotifyService.PlaylistTrackObject> r = response.body();
             if(response.code() != 200 || r == null)
             {
@@ -220,10 +205,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedAlbumObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                             ArrayList<Song> playlist = new ArrayList<>();
                             SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> tracks = albumTracks((SpotifyService.SimplifiedAlbumObject) current);
                             if(tracks != null)
@@ -246,10 +229,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedPlaylistObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                             ArrayList<Song> playlist = new ArrayList<>();
                             SpotifyService.PagingObject<SpotifyService.TrackObject> tracks = playlistTracks((SpotifyService.SimplifiedPlaylistObject) current);
                             if(tracks != null)
@@ -284,11 +265,10 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedAlbumObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
                             ArrayList<Song> playlistAddNext = new ArrayList<>();
 
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
                             SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> tracks = albumTracks((SpotifyService.SimplifiedAlbumObject) current);
                             if(tracks != null)
                             {
@@ -315,10 +295,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedPlaylistObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                             ArrayList<Song> playlistAddNext = new ArrayList<>();
                             SpotifyService.PagingObject<SpotifyService.TrackObject> tracks = playlistTracks((SpotifyService.SimplifiedPlaylistObject) current);
                             if(tracks != null)
@@ -358,10 +336,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedAlbumObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                             ArrayList<Song> playlistAdd = new ArrayList<>();
                             SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> tracks = albumTracks((SpotifyService.SimplifiedAlbumObject) current);
                             if(tracks != null)
@@ -389,10 +365,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                     }
                     else if(current instanceof SpotifyService.SimplifiedPlaylistObject)
                     {
-                        BladeApplication.obtainExecutorService().execute(() ->
+                        BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                         {
-                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                             ArrayList<Song> playlistAdd = new ArrayList<>();
                             SpotifyService.PagingObject<SpotifyService.TrackObject> tracks = playlistTracks((SpotifyService.SimplifiedPlaylistObject) current);
                             if(tracks != null)
@@ -546,10 +520,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
 
             //OnClick action : browse album
             holder.itemView.setOnClickListener(v ->
-                    BladeApplication.obtainExecutorService().execute(() ->
+                    BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                     {
-                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                         SpotifyService.PagingObject<SpotifyService.SimplifiedTrackObject> r = albumTracks(currentAlbum);
                         if(r != null)
                         {
@@ -574,10 +546,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
 
             //OnClick action : browse artist
             holder.itemView.setOnClickListener(v ->
-                    BladeApplication.obtainExecutorService().execute(() ->
+                    BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                     {
-                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                         Spotify spotify = (Spotify) exploreFragment.current;
                         Call<SpotifyService.PagingObject<SpotifyService.SimplifiedAlbumObject>> call =
                                 spotify.service.getArtistAlbums(spotify.AUTH_STRING, currentArtist.id, 50);
@@ -587,14 +557,6 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                             Response<SpotifyService.PagingObject<SpotifyService.SimplifiedAlbumObject>> response =
                                     call.execute();
 
-                            if(response.code() == 401)
-                            {
-                                //Expired token
-                                spotify.refreshAccessTokenSync();
-                                holder.itemView.callOnClick();
-                                return;
-                            }
-
                             SpotifyService.PagingObject<SpotifyService.SimplifiedAlbumObject> r = response.body();
                             if(response.code() != 200 || r == null)
                             {
@@ -637,10 +599,8 @@ public class SpotifyExploreAdapter extends RecyclerView.Adapter<SpotifyExploreAd
                 holder.imageView.setImageResource(R.drawable.ic_playlist);
 
             holder.itemView.setOnClickListener(v ->
-                    BladeApplication.obtainExecutorService().execute(() ->
+                    BladeApplication.execute(BladeApplication.Category.EXPLORE, () ->
                     {
-                        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
                         SpotifyService.PagingObject<SpotifyService.TrackObject> tr = playlistTracks(currentPlaylist);
 
                         SpotifyExploreAdapter adapter = new SpotifyExploreAdapter(exploreFragment);
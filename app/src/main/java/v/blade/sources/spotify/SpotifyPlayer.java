@@ -4,7 +4,6 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Build;
-import android.os.Process;
 import android.provider.Settings;
 import android.widget.Toast;
 
@@ -49,8 +48,13 @@ public class SpotifyPlayer extends Source.Player
     protected final Spotify current;
     private volatile boolean isPaused;
 
-    //TODO : this 'temp' fixes the 'multiple load() -> fatal error' bug ; find a better fix ?
-    private volatile boolean isLoading = false;
+    /* librespot fails when load() is called while loading (cf https://github.com/devgianlu/librespot-android/issues/16) :
+     * songs requested while loading wait in pendingSong, and only the last one is loaded once loading is done
+     * They are guarded by loadLock */
+    private final Object loadLock = new Object();
+    private boolean isLoading = false;
+    private Song pendingSong;
+    private long pendingRequest;
 
     //TODO : remove that, temp bugfix librespot seek
     private int tempSeekPos = -1;
@@ -218,7 +222,7 @@ public class SpotifyPlayer extends Source.Player
             @Override
             public void onInactiveSession(@NotNull Player player, boolean timeout)
             {
-                isLoading = false;
+                loadDone();
             }
 
             @Override
@@ -232,7 +236,12 @@ public class SpotifyPlayer extends Source.Player
             {
                 System.out.println("BLADE-SPOTIFY: Player panic");
                 errorRetryCount++;
-                isLoading = false;
+                //We play again current song (see below) : pending songs are obsolete
+                synchronized(loadLock)
+                {
+                    isLoading = false;
+                    pendingSong = null;
+                }
                 isPaused = false;
                 if(errorRetryCount == 3)
                 {
@@ -245,10 +254,8 @@ public class SpotifyPlayer extends Source.Player
                 }
                 else
                 {
-                    BladeApplication.obtainExecutorService().execute(() ->
+                    BladeApplication.execute(BladeApplication.Category.PLAYER_RETRY, () ->
                     {
-                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
                         try
                         {
                             Thread.sleep(200);
@@ -268,7 +275,10 @@ public class SpotifyPlayer extends Source.Player
             @Override
             public void onStartedLoading(@NotNull Player player)
             {
-                isLoading = true;
+                synchronized(loadLock)
+                {
+                    isLoading = true;
+                }
             }
 
             @Override
@@ -276,7 +286,7 @@ public class SpotifyPlayer extends Source.Player
             {
                 errorRetryCount = 0;
                 System.out.println("BLADE-SPOTIFY: Player finished loading");
-                isLoading = false;
+                loadDone();
             }
         });
     }
@@ -301,16 +311,52 @@ public class SpotifyPlayer extends Source.Player
     }
 
     @Override
-    public void playSong(Song song)
+    public void playSong(Song song, long request)
     {
         if(spotifyPlayer == null) return;
 
-        //This is spamclick issue 'tryfix' ; it allows to click faster but leads to another player error
-        //cf https://github.com/devgianlu/librespot-android/issues/16
-        //noinspection StatementWithEmptyBody
-        while(isLoading) ;
-        isLoading = true;
+        synchronized(loadLock)
+        {
+            if(isLoading)
+            {
+                //Replaces any song requested before : it is loaded when current load is done
+                if(pendingSong != null)
+                    System.out.println("BLADE-SPOTIFY: playSong(" + pendingSong.getName() + ") superseded");
+                pendingSong = song;
+                pendingRequest = request;
+                return;
+            }
+            isLoading = true;
+        }
+
+        load(song);
+    }
+
+    /*
+     * Current load is done (or failed) : loads last song requested meanwhile, if any
+     */
+    private void loadDone()
+    {
+        Song next;
+        synchronized(loadLock)
+        {
+            next = pendingSong;
+            pendingSong = null;
+            //Another song (maybe from another source) was requested meanwhile
+            if(next != null && isObsolete(pendingRequest)) next = null;
+            isLoading = next != null;
+        }
+        if(next == null) return;
+
+        Song song = next;
+        BladeApplication.execute(BladeApplication.Category.PLAY_SONG, () -> load(song));
+    }
 
+    /*
+     * Loads song into librespot player ; caller has set isLoading
+     */
+    private void load(Song song)
+    {
         if(spotifyPlayer.get() == null) init();
 
         SourceInformation current = null;
@@ -322,7 +368,11 @@ public class SpotifyPlayer extends Source.Player
                 break;
             }
         }
-        if(current == null) return;
+        if(current == null)
+        {
+            loadDone();
+            return;
+        }
 
         trackChanges = 0;
 
@@ -335,22 +385,27 @@ public class SpotifyPlayer extends Source.Player
             }
             catch(IllegalStateException exception)
             {
-                isLoading = false;
                 isPaused = false;
                 System.err.println("BLADE-SPOTIFY: Player should have been ready, but effectively was not");
                 MediaBrowserService.getInstance().mediaSessionCallback.updatePlaybackState(false);
+                loadDone();
             }
             catch(RejectedExecutionException exception)
             {
-                isLoading = false;
                 isPaused = false;
                 System.err.println("BLADE-SPOTIFY: Too much tasks, skipping");
                 MediaBrowserService.getInstance().mediaSessionCallback.updatePlaybackState(false);
+                loadDone();
             }
         }
         else
         {
-            isLoading = false;
+            //Songs requested meanwhile would not load either
+            synchronized(loadLock)
+            {
+                isLoading = false;
+                pendingSong = null;
+            }
             isPaused = false;
             System.err.println("BLADE-SPOTIFY: Player was not ready");
             ContextCompat.getMainExecutor(MediaBrowserService.getInstance()).execute(() ->
@@ -360,9 +415,8 @@ public class SpotifyPlayer extends Source.Player
             MediaBrowserService.getInstance().mediaSessionCallback.updatePlaybackState(false);
 
             //ready ; does that 'try to make ready' the player ?
-            BladeApplication.obtainExecutorService().execute(() ->
+            BladeApplication.execute(BladeApplication.Category.PLAYER_RETRY, () ->
             {
-                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 spotifyPlayer.get().ready();
             });
         }
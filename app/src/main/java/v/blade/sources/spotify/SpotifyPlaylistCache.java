@@ -0,0 +1,124 @@
+package v.blade.sources.spotify;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tracks of user playlists, by playlist id, with the 'snapshot_id' of the playlist version they
+ * were obtained from : a playlist whose snapshot did not change is rebuilt from cache, without
+ * requesting its items
+ */
+final class SpotifyPlaylistCache
+{
+    private static final int VERSION = 1;
+
+    /**
+     * What we need of a playlist track to add it to library
+     */
+    static final class Track
+    {
+        String id;
+        String name;
+        String album;
+        String[] artists;
+        String[] albumArtists;
+        String albumMiniatureURL;
+        String albumImageURL;
+        int trackNumber;
+        int duration;
+    }
+
+    static final class Entry
+    {
+        String snapshotId;
+        //Item requests done to obtain the tracks : requests saved when entry is used
+        int requests;
+        final ArrayList<Track> tracks = new ArrayList<>();
+    }
+
+    private static final class CacheFile
+    {
+        int version;
+        HashMap<String, Entry> playlists;
+    }
+
+    private final HashMap<String, Entry> old;
+    //Entries of the playlists seen during this synchronization ; only those are saved
+    private final HashMap<String, Entry> current = new HashMap<>();
+
+    private SpotifyPlaylistCache(HashMap<String, Entry> old)
+    {
+        this.old = old;
+    }
+
+    static SpotifyPlaylistCache load(File file)
+    {
+        if(!file.exists()) return new SpotifyPlaylistCache(new HashMap<>());
+
+        try(JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))))
+        {
+            CacheFile cacheFile = new Gson().fromJson(reader, CacheFile.class);
+            if(cacheFile != null && cacheFile.version == VERSION && cacheFile.playlists != null)
+                return new SpotifyPlaylistCache(cacheFile.playlists);
+        }
+        catch(IOException | JsonParseException e)
+        {
+            System.err.println("BLADE-SPOTIFY: Could not read playlist cache : " + e.getMessage());
+        }
+        return new SpotifyPlaylistCache(new HashMap<>());
+    }
+
+    /**
+     * @return cached entry of playlist, if it was obtained from the same snapshot, or null
+     */
+    synchronized Entry get(String playlistId, String snapshotId)
+    {
+        Entry entry = old.get(playlistId);
+        if(entry == null || snapshotId == null || !snapshotId.equals(entry.snapshotId)) return null;
+
+        current.put(playlistId, entry);
+        return entry;
+    }
+
+    synchronized void put(String playlistId, Entry entry)
+    {
+        current.put(playlistId, entry);
+    }
+
+    synchronized void save(File file)
+    {
+        CacheFile cacheFile = new CacheFile();
+        cacheFile.version = VERSION;
+        cacheFile.playlists = current;
+
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try(JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))))
+        {
+            new Gson().toJson(cacheFile, CacheFile.class, writer);
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE-SPOTIFY: Could not save playlist cache : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if(!tmpFile.renameTo(file))
+            System.err.println("BLADE-SPOTIFY: Could not save playlist cache : could not replace file");
+    }
+}
@@ -0,0 +1,169 @@
+package v.blade.sources.spotify;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * What Spotify synchronization knows of user saved tracks and albums, saved in a file per
+ * account, so that next synchronization only obtains what changed (see SpotifyDelta)
+ */
+final class SpotifySyncState
+{
+    private static final int VERSION = 1;
+
+    SpotifyDelta.Known tracks;
+    SpotifyDelta.Known albums;
+
+    private SpotifySyncState(SpotifyDelta.Known tracks, SpotifyDelta.Known albums)
+    {
+        this.tracks = tracks;
+        this.albums = albums;
+    }
+
+    /**
+     * @return state saved in file, or null if there is none (or it is unusable) : synchronization is then full
+     */
+    static SpotifySyncState load(File file)
+    {
+        if(!file.exists()) return null;
+
+        SpotifyDelta.Known tracks = null;
+        SpotifyDelta.Known albums = null;
+        try(JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))))
+        {
+            reader.beginObject();
+            while(reader.hasNext())
+            {
+                switch(reader.nextName())
+                {
+                    case "version":
+                        if(reader.nextInt() != VERSION) return null;
+                        break;
+                    case "tracks":
+                        tracks = readKnown(reader, false);
+                        break;
+                    case "albums":
+                        albums = readKnown(reader, true);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        catch(IOException | IllegalStateException | NumberFormatException e)
+        {
+            System.err.println("BLADE-SPOTIFY: Could not read sync state : " + e.getMessage());
+            return null;
+        }
+
+        if(tracks == null || albums == null) return null;
+        return new SpotifySyncState(tracks, albums);
+    }
+
+    /**
+     * @return an empty state, for a full synchronization
+     */
+    static SpotifySyncState empty()
+    {
+        return new SpotifySyncState(null, null);
+    }
+
+    void save(File file)
+    {
+        if(tracks == null || albums == null)
+        {
+            //Nothing known : next synchronization is full
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return;
+        }
+
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try(JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))))
+        {
+            writer.beginObject();
+            writer.name("version").value(VERSION);
+            writer.name("tracks");
+            writeKnown(writer, tracks);
+            writer.name("albums");
+            writeKnown(writer, albums);
+            writer.endObject();
+        }
+        catch(IOException e)
+        {
+            System.err.println("BLADE-SPOTIFY: Could not save sync state : " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if(!tmpFile.renameTo(file))
+            System.err.println("BLADE-SPOTIFY: Could not save sync state : could not replace file");
+    }
+
+    private static SpotifyDelta.Known readKnown(JsonReader reader, boolean hasTrackIds) throws IOException
+    {
+        SpotifyDelta.Known known = new SpotifyDelta.Known(hasTrackIds);
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case "ids":
+                    readStrings(reader, known.ids);
+                    break;
+                case "track_ids":
+                    if(hasTrackIds) readStrings(reader, known.trackIds);
+                    else reader.skipValue();
+                    break;
+                case "song_count":
+                    known.songCount = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return known;
+    }
+
+    private static void readStrings(JsonReader reader, List<String> into) throws IOException
+    {
+        reader.beginArray();
+        while(reader.hasNext()) into.add(reader.nextString());
+        reader.endArray();
+    }
+
+    private static void writeKnown(JsonWriter writer, SpotifyDelta.Known known) throws IOException
+    {
+        writer.beginObject();
+        writer.name("ids");
+        writeStrings(writer, known.ids);
+        if(known.trackIds != null)
+        {
+            writer.name("track_ids");
+            writeStrings(writer, known.trackIds);
+        }
+        writer.name("song_count").value(known.songCount);
+        writer.endObject();
+    }
+
+    private static void writeStrings(JsonWriter writer, List<String> strings) throws IOException
+    {
+        writer.beginArray();
+        for(String s : strings) writer.value(s);
+        writer.endArray();
+    }
+}
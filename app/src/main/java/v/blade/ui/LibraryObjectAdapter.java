@@ -19,6 +19,7 @@ import com.squareup.picasso.RequestCreator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import v.blade.R;
 import v.blade.library.Album;
@@ -212,7 +213,10 @@ public class LibraryObjectAdapter extends RecyclerView.Adapter<LibraryObjectAdap
             }
             else if(current instanceof Album)
             {
-                viewHolder.subtitleView.setText(((Album) current).getArtistsString());
+                String subtitle = ((Album) current).getArtistsString();
+                long duration = ((Album) current).getDuration();
+                if(duration > 0) subtitle += (" \u00B7 " + formatDuration(duration));
+                viewHolder.subtitleView.setText(subtitle);
             }
             else if(current instanceof Artist)
             {
@@ -226,6 +230,8 @@ public class LibraryObjectAdapter extends RecyclerView.Adapter<LibraryObjectAdap
                 {
                     String subtitle = ((Playlist) current).getSongs().size() + " " +
                             viewHolder.itemView.getContext().getString(R.string.songs).toLowerCase();
+                    long duration = ((Playlist) current).getDuration();
+                    if(duration > 0) subtitle += (" \u00B7 " + formatDuration(duration));
                     if(((Playlist) current).getSubtitle() != null && !((Playlist) current).getSubtitle().equals(""))
                         subtitle += (" \u00B7 " + ((Playlist) current).getSubtitle());
 
@@ -282,4 +288,15 @@ public class LibraryObjectAdapter extends RecyclerView.Adapter<LibraryObjectAdap
 
         return 0;
     }
+
+    /*
+     * Total duration of an album or playlist, as 'h:mm:ss' (or 'm:ss')
+     */
+    private static String formatDuration(long millis)
+    {
+        long seconds = millis / 1000;
+        if(seconds >= 3600)
+            return String.format(Locale.getDefault(), "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        return String.format(Locale.getDefault(), "%d:%02d", seconds / 60, seconds % 60);
+    }
 }
@@ -9,8 +9,6 @@ import java.io.IOException;
 
 import retrofit2.Call;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 import v.blade.BladeApplication;
 import v.blade.R;
 import v.blade.library.Song;
@@ -27,11 +25,9 @@ public class LyricsActivity extends AppCompatActivity
         WebView webView = findViewById(R.id.lyrics_webview);
 
         Song song = MediaBrowserService.getInstance().getPlaylist().get(MediaBrowserService.getInstance().getIndex());
-        BladeApplication.obtainExecutorService().execute(() ->
+        BladeApplication.execute(BladeApplication.Category.LYRICS, () ->
         {
-            Retrofit retrofit = new Retrofit.Builder().baseUrl("https://api.genius.com")
-                    .addConverterFactory(GsonConverterFactory.create()).build();
-            GeniusService service = retrofit.create(GeniusService.class);
+            GeniusService service = BladeApplication.obtainRetrofit("https://api.genius.com").create(GeniusService.class);
 
             Call<GeniusService.SearchApiResponse> search =
                     service.search("Bearer wTGF45NZElaOrhC1LIEhdBq9ISwX7SgNLBkp_74fjUo-uwUJNrENnCJ2Uj4tJeVo",
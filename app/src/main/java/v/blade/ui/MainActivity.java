@@ -20,6 +20,7 @@ import android.view.View;
 import android.widget.SearchView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.drawerlayout.widget.DrawerLayout;
 import androidx.fragment.app.Fragment;
@@ -36,6 +37,7 @@ import v.blade.R;
 import v.blade.databinding.ActivityMainBinding;
 import v.blade.player.MediaBrowserService;
 import v.blade.sources.Source;
+import v.blade.sources.SyncOrchestrator;
 
 public class MainActivity extends AppCompatActivity
 {
@@ -257,11 +259,40 @@ public class MainActivity extends AppCompatActivity
         }
         else if(id == R.id.action_sync)
         {
-            if(Source.isSyncing) return false;
+            //Sync button stops running synchronization
+            if(Source.isSyncing)
+            {
+                Source.cancelSynchronization();
+                return true;
+            }
 
             item.setIcon(R.drawable.ic_hourglass);
-            Source.synchronizeSources(() ->
-                    this.runOnUiThread(() -> item.setIcon(R.drawable.ic_sync_24px)));
+            Source.synchronizeSources(new SyncOrchestrator.Listener()
+            {
+                @Override
+                public void onProgress(Source source, int pagesDone, int pagesTotal, int songs)
+                {
+                    runOnUiThread(() ->
+                    {
+                        ActionBar actionBar = getSupportActionBar();
+                        if(actionBar != null)
+                            actionBar.setSubtitle(getString(R.string.sync_progress, source.getName(), pagesDone, pagesTotal, songs));
+                    });
+                }
+
+                @Override
+                public void onDone(boolean cancelled)
+                {
+                    runOnUiThread(() ->
+                    {
+                        item.setIcon(R.drawable.ic_sync_24px);
+                        ActionBar actionBar = getSupportActionBar();
+                        if(actionBar != null) actionBar.setSubtitle(null);
+                        if(cancelled)
+                            Toast.makeText(MainActivity.this, R.string.sync_cancelled, Toast.LENGTH_SHORT).show();
+                    });
+                }
+            });
             return true;
         }
         else return super.onOptionsItemSelected(item);
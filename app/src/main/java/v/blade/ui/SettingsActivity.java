@@ -35,6 +35,7 @@ import v.blade.BladeApplication;
 import v.blade.BuildConfig;
 import v.blade.R;
 import v.blade.databinding.SettingsFragmentAboutBinding;
+import v.blade.databinding.SettingsFragmentDiagnosticsBinding;
 import v.blade.databinding.SettingsFragmentSourcesBinding;
 import v.blade.sources.Source;
 import v.blade.sources.deezer.Deezer;
@@ -482,6 +483,36 @@ public class SettingsActivity extends AppCompatActivity implements
         }
     }
 
+    public static class DiagnosticsFragment extends Fragment
+    {
+        private SettingsFragmentDiagnosticsBinding binding;
+
+        public DiagnosticsFragment()
+        {
+            super(R.layout.settings_fragment_diagnostics);
+        }
+
+        public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
+        {
+            binding = SettingsFragmentDiagnosticsBinding.inflate(inflater, container, false);
+
+            binding.diagnosticsReportText.setText(BladeApplication.obtainExecutorReport());
+            binding.diagnosticsRefresh.setOnClickListener(view ->
+                    binding.diagnosticsReportText.setText(BladeApplication.obtainExecutorReport()));
+            binding.diagnosticsShare.setOnClickListener(view ->
+            {
+                String report = BladeApplication.obtainExecutorReport();
+                Intent share = new Intent(Intent.ACTION_SEND);
+                share.setType("text/plain");
+                share.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics));
+                share.putExtra(Intent.EXTRA_TEXT, report);
+                startActivity(Intent.createChooser(share, getString(R.string.diagnostics_share)));
+            });
+
+            return binding.getRoot();
+        }
+    }
+
     public static class AboutFragment extends Fragment
     {
         private SettingsFragmentAboutBinding binding;
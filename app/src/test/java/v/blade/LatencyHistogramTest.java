@@ -0,0 +1,50 @@
+package v.blade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void emptyHistogramHasNoPercentile()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesAreWithinPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 1000; i++) histogram.record(i, TimeUnit.MILLISECONDS);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        for(double percentile : new double[]{50, 95, 99})
+        {
+            long expected = (long) (percentile * 10_000);
+            long value = histogram.getPercentile(percentile);
+            assertTrue(percentile + " : " + value, value >= expected);
+            assertTrue(percentile + " : " + value, value <= expected + expected / 16);
+        }
+        assertEquals(1_000_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void bucketsAreContiguous()
+    {
+        //Each bucket starts right after the highest value of the previous one
+        for(int bucket = 1; bucket < 500; bucket++)
+        {
+            long first = LatencyHistogram.highestValue(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucket(first));
+            assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.highestValue(bucket)));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.fragment.app.Fragment;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import v.blade.BladeApplication;
+import v.blade.sources.Source;
+import v.blade.sources.SourceInformation;
+import v.blade.ui.ExploreFragment;
+
+public class LibraryJournalTest
+{
+    //Source that is not in Source.SOURCES : records referencing it are replayed without effect
+    private static class TestSource extends Source
+    {
+        @Override
+        public int getImageResource()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean synchronizeLibrary()
+        {
+            return true;
+        }
+
+        @Override
+        public Fragment getSettingsFragment()
+        {
+            return null;
+        }
+
+        @Override
+        public JsonObject saveToJSON()
+        {
+            return null;
+        }
+
+        @Override
+        public void restoreFromJSON(JsonObject jsonObject)
+        {
+        }
+
+        @Override
+        public void explore(ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void exploreSearch(String query, ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void createPlaylist(String name, BladeApplication.Callback<Playlist> callback, Runnable failureCallback)
+        {
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAfterTornRecordAreReplayed() throws IOException
+    {
+        Source source = new TestSource();
+        source.setIndex(99);
+        Playlist playlist = new Playlist("Playlist", new ArrayList<>(), null, "", new SourceInformation(source, 1L, false));
+        File file = new File(folder.getRoot(), "library.journal");
+
+        LibraryJournal journal = new LibraryJournal(file);
+        journal.removePlaylist(playlist);
+        journal.removePlaylist(playlist);
+        journal.close();
+        long valid = file.length();
+
+        //Process killed while writing a record
+        try(FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.write(new byte[]{0, 0, 0, 40, 4, 0, 0});
+        }
+
+        journal = new LibraryJournal(file);
+        assertEquals(2, journal.replay());
+        assertEquals(valid, file.length());
+        journal.removePlaylist(playlist);
+        journal.close();
+
+        assertEquals(3, new LibraryJournal(file).replay());
+    }
+
+    @Test
+    public void recordsAppendedDuringSaveAreKept() throws IOException
+    {
+        Source source = new TestSource();
+        source.setIndex(99);
+        Playlist playlist = new Playlist("Playlist", new ArrayList<>(), null, "", new SourceInformation(source, 1L, false));
+        File file = new File(folder.getRoot(), "library.journal");
+
+        LibraryJournal journal = new LibraryJournal(file);
+        journal.removePlaylist(playlist);
+        journal.removePlaylist(playlist);
+        //Snapshot taken here, records below are appended while it is written
+        long saved = journal.size();
+        journal.removePlaylist(playlist);
+        journal.truncateBefore(saved);
+        assertEquals(file.length(), journal.size());
+        journal.removePlaylist(playlist);
+        journal.close();
+
+        assertEquals(2, new LibraryJournal(file).replay());
+    }
+
+    @Test
+    public void failedAppendIsRemovedBeforeNextRecord() throws IOException
+    {
+        Source source = new TestSource();
+        source.setIndex(99);
+        Playlist playlist = new Playlist("Playlist", new ArrayList<>(), null, "", new SourceInformation(source, 1L, false));
+        File file = new File(folder.getRoot(), "library.journal");
+
+        LibraryJournal journal = new LibraryJournal(file);
+        journal.removePlaylist(playlist);
+        journal.close();
+
+        //Append failed halfway, journal is still used
+        try(FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.write(new byte[]{0, 0, 0, 40, 4, 0, 0});
+        }
+        journal.removePlaylist(playlist);
+        journal.close();
+
+        assertEquals(2, new LibraryJournal(file).replay());
+    }
+}
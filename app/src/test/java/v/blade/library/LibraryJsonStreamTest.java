@@ -0,0 +1,141 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.fragment.app.Fragment;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import v.blade.BladeApplication;
+import v.blade.sources.Source;
+import v.blade.ui.ExploreFragment;
+
+/**
+ * Round-trips a big synthetic library through the streaming JSON song format
+ * This test runs with a fixed heap (see testLibraryJsonStream in build.gradle), that could not
+ * hold the whole file as a DOM : songs have to be written and read one at a time
+ */
+public class LibraryJsonStreamTest
+{
+    private static final int SONG_COUNT = 100_000;
+    private static final int ARTIST_COUNT = 100;
+    private static final int ALBUM_COUNT = 1000;
+
+    private static class TestSource extends Source
+    {
+        @Override
+        public int getImageResource()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean synchronizeLibrary()
+        {
+            return true;
+        }
+
+        @Override
+        public Fragment getSettingsFragment()
+        {
+            return null;
+        }
+
+        @Override
+        public JsonObject saveToJSON()
+        {
+            return null;
+        }
+
+        @Override
+        public void restoreFromJSON(JsonObject jsonObject)
+        {
+        }
+
+        @Override
+        public void explore(ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void exploreSearch(String query, ExploreFragment view)
+        {
+        }
+
+        @Override
+        public void createPlaylist(String name, BladeApplication.Callback<Playlist> callback, Runnable failureCallback)
+        {
+        }
+    }
+
+    private static Object syntheticId(int i)
+    {
+        return i % 2 == 0 ? (Object) (long) i : "track" + i;
+    }
+
+    @Test
+    public void roundTripLargeLibraryWithinHeapBudget() throws IOException
+    {
+        File file = File.createTempFile("library", ".json");
+        file.deleteOnExit();
+
+        Source source = new TestSource();
+        source.setIndex(3);
+
+        Artist[] artists = new Artist[ARTIST_COUNT];
+        for(int i = 0; i < ARTIST_COUNT; i++) artists[i] = new Artist("Artist " + i, null);
+        Album[] albums = new Album[ALBUM_COUNT];
+        for(int i = 0; i < ALBUM_COUNT; i++)
+            albums[i] = new Album("Album " + i, new Artist[]{artists[i % ARTIST_COUNT]}, null, null, 0);
+
+        //Songs are created while writing, and are not kept
+        try(JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))))
+        {
+            out.beginArray();
+            for(int i = 0; i < SONG_COUNT; i++)
+            {
+                Song song = new Song("Song " + i, albums[i % ALBUM_COUNT], new Artist[]{artists[i % ARTIST_COUNT]}, i % 20 + 1);
+                song.addSource(source, syntheticId(i), false);
+                song.setDuration(i % 600 * 1000);
+                Library.writeSongJson(out, song);
+            }
+            out.endArray();
+        }
+
+        int count = 0;
+        try(JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))))
+        {
+            in.beginArray();
+            while(in.hasNext())
+            {
+                Library.SongRecord record = Library.readSongRecord(in);
+                assertEquals("Song " + count, record.name);
+                assertEquals("Album " + (count % ALBUM_COUNT), record.album);
+                assertEquals(count % 20 + 1, record.trackNumber);
+                assertEquals(count % 600 * 1000, record.duration);
+                assertEquals("Artist " + (count % ARTIST_COUNT), record.artists.get(0));
+                assertEquals("Artist " + (count % ARTIST_COUNT), record.albumArtists.get(0));
+                assertEquals(3, (int) record.sources.get(0));
+                assertEquals(syntheticId(count), record.ids.get(0));
+                count++;
+            }
+            in.endArray();
+        }
+
+        assertEquals(SONG_COUNT, count);
+    }
+}
@@ -0,0 +1,142 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryKeyTest
+{
+    /*
+     * Synthetic library : names repeat a lot, as in a real library
+     * (200 artists, 600 albums, each album having a single artist)
+     */
+    private static final int TRACKS = 6000;
+
+    private static String[][] generateTracks()
+    {
+        String[][] tracks = new String[TRACKS][];
+        for(int i = 0; i < TRACKS; i++)
+        {
+            String artist = "Artist Name " + (i % 200);
+            String album = "Some Album Title " + (i % 600);
+            String title = "Track Title Number " + i;
+            tracks[i] = new String[]{artist, album, title};
+        }
+        return tracks;
+    }
+
+    @Test
+    public void keysAreCaseInsensitive()
+    {
+        NameTable names = new NameTable();
+        assertSame(names.get("Daft Punk"), names.get("DAFT PUNK"));
+
+        LibraryKey a = new LibraryKey().set(names.get("Daft Punk"), names.get("Discovery"), names.get("One More Time"));
+        LibraryKey b = new LibraryKey().set(names.get("daft punk"), names.get("DISCOVERY"), names.get("one more time"));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        LibraryKey album = new LibraryKey().set(names.get("Daft Punk"), names.get("Discovery"), null);
+        assertNotEquals(a, album);
+        assertEquals(album, album.copy());
+    }
+
+    @Test
+    public void keysMergeLikeLowercaseStringKeys()
+    {
+        //Same tracks ingested twice, the second time with other cases (e.g. another source)
+        String[][] tracks = generateTracks();
+        NameTable names = new NameTable();
+        LibraryKey probe = new LibraryKey();
+        HashSet<NameTable.Name> artists = new HashSet<>();
+        HashMap<LibraryKey, String[]> albums = new HashMap<>();
+        HashMap<LibraryKey, String[]> songs = new HashMap<>();
+        HashSet<String> stringAlbums = new HashSet<>();
+        HashSet<String> stringSongs = new HashSet<>();
+
+        for(int pass = 0; pass < 2; pass++)
+        {
+            for(String[] track : tracks)
+            {
+                String artist = pass == 0 ? track[0] : track[0].toUpperCase();
+                String album = pass == 0 ? track[1] : track[1].toLowerCase();
+                String title = pass == 0 ? track[2] : track[2].toUpperCase();
+
+                artists.add(names.get(artist));
+                if(albums.get(probe.set(names.get(artist), names.get(album), null)) == null)
+                    albums.put(probe.copy(), track);
+                if(songs.get(probe.set(names.get(artist), names.get(album), names.get(title))) == null)
+                    songs.put(probe.copy(), track);
+
+                stringAlbums.add(artist.toLowerCase() + ":" + album.toLowerCase());
+                stringSongs.add(artist.toLowerCase() + ":" + album.toLowerCase() + ":" + title.toLowerCase());
+            }
+        }
+
+        assertEquals(200, artists.size());
+        assertEquals(stringAlbums.size(), albums.size());
+        assertEquals(600, albums.size());
+        assertEquals(stringSongs.size(), songs.size());
+        assertEquals(TRACKS, songs.size());
+    }
+
+    @Test
+    public void probeReuseDoesNotChangeInsertedKeys()
+    {
+        NameTable names = new NameTable();
+        LibraryKey probe = new LibraryKey();
+        HashMap<LibraryKey, String> songs = new HashMap<>();
+
+        songs.put(probe.set(names.get("Artist"), names.get("Album"), names.get("Title")).copy(), "song");
+        probe.set(names.get("Other"), names.get("Album"), names.get("Title"));
+        assertNull(songs.get(probe));
+        assertEquals("song", songs.get(probe.set(names.get("ARTIST"), names.get("album"), names.get("title"))));
+    }
+
+    @Test
+    public void namesInternedConcurrentlyAreTheSame() throws Exception
+    {
+        NameTable names = new NameTable();
+        String[][] tracks = generateTracks();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            //Each thread interns the same names, with its own case
+            @SuppressWarnings("unchecked")
+            Future<NameTable.Name[]>[] results = new Future[4];
+            for(int t = 0; t < results.length; t++)
+            {
+                final boolean upper = t % 2 == 1;
+                results[t] = executor.submit(() ->
+                {
+                    NameTable.Name[] interned = new NameTable.Name[tracks.length];
+                    for(int i = 0; i < tracks.length; i++)
+                        interned[i] = names.get(upper ? tracks[i][1].toUpperCase() : tracks[i][1]);
+                    return interned;
+                });
+            }
+
+            NameTable.Name[] first = results[0].get();
+            for(int t = 1; t < results.length; t++)
+            {
+                NameTable.Name[] other = results[t].get();
+                for(int i = 0; i < first.length; i++) assertSame(first[i], other[i]);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package v.blade.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LibrarySearchIndexTest
+{
+    private static final int SONG_COUNT = 50_000;
+
+    private static Song song(String title, String album, String artist)
+    {
+        Artist a = new Artist(artist, null);
+        return new Song(title, new Album(album, new Artist[]{a}, null, null, 0), new Artist[]{a}, 1);
+    }
+
+    @Test
+    public void matchesFoldedPrefixesAndInfixesAcrossFields()
+    {
+        LibrarySearchIndex index = new LibrarySearchIndex();
+        Song halo = song("Halo", "I Am... Sasha Fierce", "Beyonc\u00e9");
+        Song hello = song("Hello", "25", "Adele");
+        Song other = song("Someone Like You", "21", "Adele");
+        index.add(halo);
+        index.add(hello);
+        index.add(other);
+
+        //Diacritics folding, on artist field
+        assertEquals(1, index.search("beyonce", 10).songs.size());
+        //Prefix, ranked : title matches before artist matches
+        assertEquals(hello, index.search("he", 10).songs.get(0));
+        //Every term has to match
+        assertEquals(other, index.search("adele some", 10).songs.get(0));
+        assertEquals(1, index.search("adele some", 10).songs.size());
+        //Infix (trigram)
+        assertEquals(halo, index.search("ierc", 10).songs.get(0));
+
+        index.remove(hello);
+        assertTrue(index.search("hello", 10).songs.isEmpty());
+    }
+
+    @Test
+    public void searchAsYouTypeNarrowsResults()
+    {
+        LibrarySearchIndex index = new LibrarySearchIndex();
+        Artist[] artists = new Artist[500];
+        for(int i = 0; i < artists.length; i++) artists[i] = new Artist("Artist " + i, null);
+        Album[] albums = new Album[5000];
+        for(int i = 0; i < albums.length; i++)
+            albums[i] = new Album("Album " + i, new Artist[]{artists[i % artists.length]}, null, null, 0);
+        String[] words = {"love", "night", "dance", "blue", "heart", "fire", "river", "dream", "light", "rain"};
+        for(int i = 0; i < SONG_COUNT; i++)
+        {
+            String title = words[i % words.length] + " " + words[(i / words.length) % words.length] + " " + i;
+            index.add(new Song(title, albums[i % albums.length], new Artist[]{artists[i % artists.length]}, 1));
+        }
+
+        //Each keystroke : results are limited, and every result matches what is typed so far
+        String query = "dream light 4";
+        for(int i = 1; i <= query.length(); i++)
+        {
+            String typed = query.substring(0, i);
+            LibrarySearchIndex.Result result = index.search(typed, 100);
+            assertFalse(typed, result.songs.isEmpty());
+            assertTrue(typed, result.songs.size() <= 100);
+            for(Song s : result.songs)
+            {
+                String fields = (s.getName() + " " + s.getArtists()[0].getName() + " " + s.getAlbum().getName()).toLowerCase();
+                for(String term : typed.trim().split(" "))
+                    assertTrue(typed + " : " + fields, fields.contains(term));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package v.blade.sources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+public class RequestSchedulerTest
+{
+    private final MockWebServer server = new MockWebServer();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+    }
+
+    private int get(OkHttpClient client) throws IOException
+    {
+        try(Response response = client.newCall(new Request.Builder().url(server.url("/")).build()).execute())
+        {
+            return response.code();
+        }
+    }
+
+    @Test
+    public void throttledRequestIsRetriedAfterDelay() throws IOException
+    {
+        OkHttpClient client = new RequestScheduler(10, 10).client(new OkHttpClient());
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        long start = System.nanoTime();
+        assertEquals(200, get(client));
+        assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void throttledRequestGivesUp() throws IOException
+    {
+        OkHttpClient client = new RequestScheduler(10, 10).client(new OkHttpClient());
+        for(int i = 0; i < 10; i++)
+            server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+
+        assertEquals(429, get(client));
+        assertEquals(5, server.getRequestCount());
+    }
+
+    @Test
+    public void requestsStayWithinRate() throws IOException
+    {
+        OkHttpClient client = new RequestScheduler(20, 1).client(new OkHttpClient());
+        for(int i = 0; i < 11; i++) server.enqueue(new MockResponse().setBody("ok"));
+
+        long start = System.nanoTime();
+        for(int i = 0; i < 11; i++) assertEquals(200, get(client));
+        assertTrue(System.nanoTime() - start >= 500_000_000L);
+    }
+
+    @Test
+    public void interactiveRequestGoesFirst() throws Exception
+    {
+        OkHttpClient client = new RequestScheduler(10, 3).client(new OkHttpClient());
+        for(int i = 0; i < 21; i++) server.enqueue(new MockResponse().setBody("ok"));
+
+        //Background requests take about 2 seconds
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ArrayList<Future<Object>> tasks = new ArrayList<>();
+        for(int i = 0; i < 4; i++)
+        {
+            tasks.add(executor.submit(() ->
+            {
+                RequestScheduler.setBackground(true);
+                for(int j = 0; j < 5; j++) assertEquals(200, get(client));
+                return null;
+            }));
+        }
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        assertEquals(200, get(client));
+        assertTrue(System.nanoTime() - start < 300_000_000L);
+
+        for(Future<Object> task : tasks) task.get();
+        executor.shutdown();
+    }
+}
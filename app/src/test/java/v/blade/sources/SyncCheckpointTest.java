@@ -0,0 +1,150 @@
+package v.blade.sources;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.GET;
+import retrofit2.http.Query;
+
+public class SyncCheckpointTest
+{
+    private static final int PAGE_SIZE = 50;
+
+    interface ItemsService
+    {
+        @GET("items")
+        Call<Page> getItems(@Query("limit") int limit, @Query("offset") int offset);
+    }
+
+    static class Page
+    {
+        int total;
+        int[] items;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private volatile int total = 1000;
+    //Pages from this offset fail, as if synchronization was interrupted there
+    private volatile int failFrom = Integer.MAX_VALUE;
+    private ItemsService service;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                HttpUrl url = request.getRequestUrl();
+                int limit = Integer.parseInt(url.queryParameter("limit"));
+                int offset = Integer.parseInt(url.queryParameter("offset"));
+                if(offset >= failFrom) return new MockResponse().setResponseCode(500);
+
+                JsonArray items = new JsonArray();
+                for(int i = offset; i < Math.min(offset + limit, total); i++) items.add(i);
+                JsonObject page = new JsonObject();
+                page.add("items", items);
+                page.addProperty("total", total);
+                return new MockResponse().setBody(page.toString());
+            }
+        });
+        server.start();
+
+        service = new Retrofit.Builder().baseUrl(server.url("/"))
+                .addConverterFactory(GsonConverterFactory.create()).build().create(ItemsService.class);
+        file = new File(folder.getRoot(), "checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+    }
+
+    private ParallelPager.Result sync(HashSet<Integer> received) throws IOException
+    {
+        ParallelPager pager = new ParallelPager(4, new SourceSync(null, SyncCheckpoint.open(file), null));
+        return pager.fetchAll("items", Page.class, (limit, offset) -> service.getItems(limit, offset),
+                PAGE_SIZE, page -> page.total, (page, offset) ->
+                {
+                    synchronized(received)
+                    {
+                        for(int item : page.items) received.add(item);
+                    }
+                });
+    }
+
+    @Test
+    public void interruptedSyncResumes() throws IOException
+    {
+        failFrom = 300;
+        assertEquals(500, sync(new HashSet<>()).errorCode);
+
+        //Process killed while writing a record
+        try(FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        failFrom = Integer.MAX_VALUE;
+        int before = server.getRequestCount();
+        HashSet<Integer> received = new HashSet<>();
+        ParallelPager.Result result = sync(received);
+        assertEquals(0, result.errorCode);
+        assertEquals(total, received.size());
+        //Pages 50 to 250 were saved ; first page is always requested
+        assertEquals(5, result.resumed);
+        assertEquals(total / PAGE_SIZE - 5, server.getRequestCount() - before);
+    }
+
+    @Test
+    public void changedCollectionIsRequestedAgain() throws IOException
+    {
+        failFrom = 300;
+        sync(new HashSet<>());
+
+        failFrom = Integer.MAX_VALUE;
+        total = 1010;
+        HashSet<Integer> received = new HashSet<>();
+        ParallelPager.Result result = sync(received);
+        assertEquals(0, result.resumed);
+        assertEquals(total, received.size());
+    }
+
+    @Test
+    public void discardedCheckpointIsNotResumed() throws IOException
+    {
+        failFrom = 300;
+        sync(new HashSet<>());
+        SyncCheckpoint.open(file).discard();
+
+        failFrom = Integer.MAX_VALUE;
+        assertEquals(0, sync(new HashSet<>()).resumed);
+    }
+}
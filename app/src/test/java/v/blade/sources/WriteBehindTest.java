@@ -0,0 +1,89 @@
+package v.blade.sources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBehindTest
+{
+    private static final long DELAY_MS = 50;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile int maxRunning = 0;
+    private volatile long writeMs = 0;
+
+    private final WriteBehind writer = new WriteBehind(executor, DELAY_MS, () ->
+    {
+        int concurrent = running.incrementAndGet();
+        if(concurrent > maxRunning) maxRunning = concurrent;
+        try
+        {
+            Thread.sleep(writeMs);
+        }
+        catch(InterruptedException ignored)
+        {
+        }
+        running.decrementAndGet();
+        writes.incrementAndGet();
+    });
+
+    private void awaitIdle() throws InterruptedException
+    {
+        //Requests are done once they are all written or avoided
+        for(int i = 0; i < 200 && writer.getWrites() + writer.getAvoided() < writer.getRequests(); i++)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void burstIsWrittenOnce() throws InterruptedException
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService requesters = Executors.newFixedThreadPool(8);
+        for(int i = 0; i < 8; i++)
+            requesters.execute(() ->
+            {
+                try
+                {
+                    start.await();
+                }
+                catch(InterruptedException ignored)
+                {
+                }
+                for(int j = 0; j < 100; j++) writer.request();
+            });
+        start.countDown();
+        requesters.shutdown();
+        assertTrue(requesters.awaitTermination(5, TimeUnit.SECONDS));
+        awaitIdle();
+
+        assertEquals(800, writer.getRequests());
+        assertEquals(1, writes.get());
+        assertEquals(799, writer.getAvoided());
+    }
+
+    @Test
+    public void requestDuringWriteIsWrittenAfterIt() throws InterruptedException
+    {
+        writeMs = 200;
+        writer.request();
+        Thread.sleep(DELAY_MS + 50);
+        assertEquals(1, running.get());
+
+        //Changes made while writing : they may not be in the running write
+        for(int i = 0; i < 10; i++) writer.request();
+        awaitIdle();
+
+        assertEquals(2, writes.get());
+        assertEquals(1, maxRunning);
+        assertEquals(9, writer.getAvoided());
+    }
+}
@@ -0,0 +1,136 @@
+package v.blade.sources.spotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import v.blade.sources.ParallelPager;
+
+public class SpotifyDeltaTest
+{
+    private static final int TRACK_COUNT = 10_000;
+
+    private final MockWebServer server = new MockWebServer();
+    //Saved tracks ids, newest first
+    private final ArrayList<String> saved = new ArrayList<>();
+    private SpotifyService service;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        for(int i = 0; i < TRACK_COUNT; i++) saved.add("track" + i);
+
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                HttpUrl url = request.getRequestUrl();
+                int limit = Integer.parseInt(url.queryParameter("limit"));
+                int offset = Integer.parseInt(url.queryParameter("offset"));
+
+                JsonArray items = new JsonArray();
+                for(int i = offset; i < Math.min(offset + limit, saved.size()); i++)
+                {
+                    JsonObject track = new JsonObject();
+                    track.addProperty("id", saved.get(i));
+                    JsonObject item = new JsonObject();
+                    item.add("track", track);
+                    items.add(item);
+                }
+                JsonObject page = new JsonObject();
+                page.add("items", items);
+                page.addProperty("total", saved.size());
+                page.addProperty("limit", limit);
+                page.addProperty("offset", offset);
+                return new MockResponse().setBody(page.toString());
+            }
+        });
+        server.start();
+
+        service = new Retrofit.Builder().baseUrl(server.url("/v1/"))
+                .addConverterFactory(GsonConverterFactory.create()).build().create(SpotifyService.class);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+    }
+
+    private SpotifyDelta.Listing<SpotifyService.SavedTrackObject> list(SpotifyDelta.Known known) throws IOException
+    {
+        return SpotifyDelta.list(new ParallelPager(8), null, null,
+                (limit, offset) -> service.getUserSavedTracks("Bearer token", limit, offset),
+                savedTrack -> savedTrack.track.id, known);
+    }
+
+    private SpotifyDelta.Known sync(SpotifyDelta.Known known) throws IOException
+    {
+        return SpotifyDelta.next(list(known), savedTrack -> savedTrack.track.id, null, known);
+    }
+
+    @Test
+    public void unchangedCollectionIsOneRequest() throws IOException
+    {
+        SpotifyDelta.Known known = sync(null);
+        assertEquals(TRACK_COUNT, known.ids.size());
+        int before = server.getRequestCount();
+
+        SpotifyDelta.Listing<SpotifyService.SavedTrackObject> listing = list(known);
+        assertTrue(listing.incremental);
+        assertEquals(0, listing.items.size());
+        assertEquals(1, listing.requests);
+        assertEquals(1, server.getRequestCount() - before);
+    }
+
+    @Test
+    public void newItemsAreListedUntilKnownOnes() throws IOException
+    {
+        SpotifyDelta.Known known = sync(null);
+        for(int i = 0; i < 60; i++) saved.add(0, "new" + i);
+
+        SpotifyDelta.Listing<SpotifyService.SavedTrackObject> listing = list(known);
+        assertTrue(listing.incremental);
+        assertEquals(60, listing.items.size());
+        assertEquals(2, listing.requests);
+
+        SpotifyDelta.Known next = SpotifyDelta.next(listing, savedTrack -> savedTrack.track.id, null, known);
+        assertEquals(TRACK_COUNT + 60, next.ids.size());
+        assertEquals("new59", next.ids.get(0));
+        assertEquals("track0", next.ids.get(60));
+    }
+
+    @Test
+    public void removedItemsCauseFullListing() throws IOException
+    {
+        SpotifyDelta.Known known = sync(null);
+        saved.remove("track5000");
+        saved.add(0, "new");
+
+        SpotifyDelta.Listing<SpotifyService.SavedTrackObject> listing = list(known);
+        assertFalse(listing.incremental);
+        assertEquals(TRACK_COUNT, listing.items.size());
+
+        SpotifyDelta.Known next = SpotifyDelta.next(listing, savedTrack -> savedTrack.track.id, null, known);
+        assertFalse(next.contains("track5000"));
+        assertTrue(next.contains("new"));
+    }
+}
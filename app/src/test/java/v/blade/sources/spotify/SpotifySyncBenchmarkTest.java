@@ -0,0 +1,104 @@
+package v.blade.sources.spotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import v.blade.sources.ParallelPager;
+
+public class SpotifySyncBenchmarkTest
+{
+    /*
+     * Full listing of a large saved tracks collection, against a local server answering each
+     * request after a fixed latency (as a real web API would), with sequential then parallel requests
+     */
+    private static final int TRACK_COUNT = 5000;
+    private static final long LATENCY_MS = 40;
+
+    private final MockWebServer server = new MockWebServer();
+    private SpotifyService service;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                HttpUrl url = request.getRequestUrl();
+                int limit = Integer.parseInt(url.queryParameter("limit"));
+                int offset = Integer.parseInt(url.queryParameter("offset"));
+
+                JsonArray items = new JsonArray();
+                for(int i = offset; i < Math.min(offset + limit, TRACK_COUNT); i++)
+                {
+                    JsonObject track = new JsonObject();
+                    track.addProperty("id", "track" + i);
+                    JsonObject item = new JsonObject();
+                    item.add("track", track);
+                    items.add(item);
+                }
+                JsonObject page = new JsonObject();
+                page.add("items", items);
+                page.addProperty("total", TRACK_COUNT);
+                return new MockResponse().setBody(page.toString()).setHeadersDelay(LATENCY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+
+        service = new Retrofit.Builder().baseUrl(server.url("/v1/"))
+                .addConverterFactory(GsonConverterFactory.create()).build().create(SpotifyService.class);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.shutdown();
+    }
+
+    private long listAll(int maxRequests) throws IOException
+    {
+        long start = System.nanoTime();
+        SpotifyDelta.Listing<SpotifyService.SavedTrackObject> listing = SpotifyDelta.list(new ParallelPager(maxRequests), null, null,
+                (limit, offset) -> service.getUserSavedTracks("Bearer token", limit, offset),
+                savedTrack -> savedTrack.track.id, null);
+        long time = System.nanoTime() - start;
+
+        assertEquals(0, listing.errorCode);
+        assertEquals(TRACK_COUNT, listing.items.size());
+        assertEquals("track0", listing.items.get(0).track.id);
+        assertEquals("track" + (TRACK_COUNT - 1), listing.items.get(TRACK_COUNT - 1).track.id);
+        return time;
+    }
+
+    @Test
+    public void parallelPagesCutListingTime() throws IOException
+    {
+        //Warm up
+        listAll(8);
+
+        long sequential = listAll(1);
+        long parallel = listAll(8);
+        System.out.println("BLADE-BENCHMARK: " + TRACK_COUNT + " tracks, " + LATENCY_MS + "ms latency : sequential "
+                + sequential / 1_000_000 + "ms, parallel " + parallel / 1_000_000 + "ms");
+
+        assertTrue(parallel * 3 < sequential);
+    }
+}